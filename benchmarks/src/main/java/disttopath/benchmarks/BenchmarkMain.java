@@ -0,0 +1,57 @@
+/*
+    file   : BenchmarkMain.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Runs the DistToPath benchmarks with the GC profiler, so that allocation
+    per operation is reported next to throughput, and writes the results as
+    JSON (results.json unless -rff is given) for comparison with a baseline
+    by CompareBaseline. Takes the usual JMH options, e.g.
+        java -jar benchmarks.jar computeDistances -p points=1000,100000
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+package disttopath.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder opts = new OptionsBuilder().parent(cmd);
+
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        if (cmd.shouldList()) {
+            new Runner(cmd).list();
+            return;
+        }
+        if (cmd.getIncludes().isEmpty()) {
+            opts.include(ProfileBenchmarks.class.getName());
+        }
+        if (cmd.getProfilers().isEmpty()) {
+            opts.addProfiler(GCProfiler.class);
+        }
+        if (!cmd.getResult().hasValue()) {
+            opts.result("results.json");
+        }
+        if (!cmd.getResultFormat().hasValue()) {
+            opts.resultFormat(ResultFormatType.JSON);
+        }
+        new Runner(opts.build()).run();
+    }
+
+} // end of BenchmarkMain
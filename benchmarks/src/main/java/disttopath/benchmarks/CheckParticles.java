@@ -0,0 +1,128 @@
+/*
+    file   : CheckParticles.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Checks the gold particle detection of DistToPath against ImageJ's
+    particle analyzer, e.g.
+        java -cp benchmarks.jar disttopath.benchmarks.CheckParticles [particles]
+    Draws irregular elliptic blobs without holes (enclosed background is
+    filled) from a fixed seed, detects them with both at several minimum
+    circularities, and prints the number of particles each keeps. Exits
+    with status 1 if the particles or their centroids differ.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+package disttopath.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import ij.ImagePlus;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ByteProcessor;
+import ij.process.FloodFiller;
+import ij.process.ImageProcessor;
+
+
+public class CheckParticles {
+    static final long seed = 20140101L;
+    static final int size = 2048;
+    static final double minArea = 10;
+    static final double[] minCircs = {0, 0.5, 0.8, 0.9};
+
+
+    public static void main(String[] args) throws Throwable {
+        int nblobs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        ByteProcessor ip = drawBlobs(nblobs);
+        ImagePlus imp = new ImagePlus("blobs", ip);
+        int failed = 0;
+
+        for (double minCirc : minCircs) {
+            float[][] dtp = (float[][]) Plugin.detect.invoke(Plugin.newDetector.invoke(ip),
+                    minArea, Double.POSITIVE_INFINITY, minCirc);
+            ResultsTable rt = new ResultsTable();
+            ParticleAnalyzer pa = new ParticleAnalyzer(0, Measurements.AREA | Measurements.CENTROID,
+                    rt, minArea, Double.POSITIVE_INFINITY, minCirc, 1.0);
+            pa.setHideOutputImage(true);
+            pa.analyze(imp, ip);
+            boolean same = sameCentroids(dtp, rt.getColumn(ResultsTable.X_CENTROID),
+                    rt.getColumn(ResultsTable.Y_CENTROID));
+            System.out.println("min circularity " + minCirc + ": particle analyzer " +
+                    rt.getCounter() + ", DistToPath " + dtp[0].length + (same ? "" : "  DIFFERENT"));
+            if (!same) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Irregular blobs, thresholded at 255, with enclosed background filled
+    // so that no particle has holes.
+    static ByteProcessor drawBlobs(int nblobs) {
+        Random random = new Random(seed);
+        ByteProcessor ip = new ByteProcessor(size, size);
+        int i, x, y;
+
+        for (i = 0; i < nblobs; i++) {
+            double cx = random.nextInt(size), cy = random.nextInt(size);
+            double rx = 2 + 10 * random.nextDouble(), ry = rx * (0.4 + 0.6 * random.nextDouble());
+            double cos = Math.cos(3 * random.nextDouble()), sin = Math.sqrt(1 - cos * cos);
+            for (y = Math.max(0, (int) cy - 15); y <= Math.min(size - 1, cy + 15); y++) {
+                for (x = Math.max(0, (int) cx - 15); x <= Math.min(size - 1, cx + 15); x++) {
+                    double u = ((x - cx) * cos + (y - cy) * sin) / rx;
+                    double v = (-(x - cx) * sin + (y - cy) * cos) / ry;
+                    if (u * u + v * v <= 1 + 0.15 * random.nextGaussian()) {
+                        ip.set(x, y, 255);
+                    }
+                }
+            }
+        }
+        // Background not reached from outside the image is a hole
+        ByteProcessor outside = new ByteProcessor(size + 2, size + 2);
+        outside.insert(ip, 1, 1);
+        outside.setValue(128);
+        new FloodFiller(outside).fill(0, 0);
+        for (y = 0; y < size; y++) {
+            for (x = 0; x < size; x++) {
+                if (outside.get(x + 1, y + 1) == 0) {
+                    ip.set(x, y, 255);
+                }
+            }
+        }
+        ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+        return ip;
+    }
+
+    // Whether both found the same centroids, to within float precision.
+    static boolean sameCentroids(float[][] dtp, float[] x, float[] y) {
+        int n = dtp[0].length, i;
+
+        if (x == null || y == null) {
+            return n == 0;
+        }
+        if (x.length != n) {
+            return false;
+        }
+        String[] a = new String[n], b = new String[n];
+        for (i = 0; i < n; i++) {
+            a[i] = key(dtp[0][i], dtp[1][i]);
+            b[i] = key(x[i], y[i]);
+        }
+        Arrays.sort(a);
+        Arrays.sort(b);
+        return Arrays.equals(a, b);
+    }
+
+    private static String key(double x, double y) {
+        return String.format("%.3f %.3f", x, y);
+    }
+
+} // end of CheckParticles
@@ -0,0 +1,121 @@
+/*
+    file   : CompareBaseline.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Compares two JMH JSON result files of the DistToPath benchmarks, e.g. the
+    checked-in baseline and a new run:
+        java -cp benchmarks.jar disttopath.benchmarks.CompareBaseline \
+            baseline.json results.json [tolerance %]
+    Prints the change in score and in allocation per operation of every
+    benchmark present in both, and exits with status 1 if any got worse by
+    more than the tolerance (default 10%).
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+package disttopath.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+
+public class CompareBaseline {
+    static final String allocMetric = "gc.alloc.rate.norm";   // bytes per operation
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareBaseline baseline.json results.json [tolerance %]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.1;
+        Map<String, JsonObject> baseline = read(args[0]);
+        Map<String, JsonObject> current = read(args[1]);
+        int worse = 0;
+
+        System.out.println(String.format("%-72s %12s %12s %8s %12s %8s",
+                "Benchmark", "Baseline", "Current", "Change", "Alloc B/op", "Change"));
+        for (Map.Entry<String, JsonObject> e : current.entrySet()) {
+            JsonObject base = baseline.get(e.getKey());
+            if (base == null) {
+                System.out.println(String.format("%-72s %12s", e.getKey(), "(new)"));
+                continue;
+            }
+            JsonObject primary = e.getValue().getAsJsonObject("primaryMetric");
+            double score = primary.get("score").getAsDouble();
+            double baseScore = base.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+            // Throughput is better higher, times per operation lower
+            boolean higherIsBetter = !primary.get("scoreUnit").getAsString().endsWith("/op");
+            double change = score / baseScore - 1;
+            double alloc = getAlloc(e.getValue());
+            double baseAlloc = getAlloc(base);
+            double allocChange = baseAlloc > 0 ? alloc / baseAlloc - 1 : 0;
+            boolean regressed = (higherIsBetter ? -change : change) > tolerance
+                    || (alloc - baseAlloc > 64 && allocChange > tolerance);
+            if (regressed) {
+                worse++;
+            }
+            System.out.println(String.format("%-72s %12.4g %12.4g %+7.1f%% %12.0f %+7.1f%%%s",
+                    e.getKey(), baseScore, score, 100 * change, alloc, 100 * allocChange,
+                    regressed ? "  WORSE" : ""));
+        }
+        if (worse > 0) {
+            System.out.println(worse + " benchmark(s) worse than the baseline by more than "
+                    + 100 * tolerance + "%.");
+            System.exit(1);
+        }
+    }
+
+    // Returns the results in 'path' by benchmark name and parameters.
+    private static Map<String, JsonObject> read(String path) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<String, JsonObject>();
+        Reader in = new InputStreamReader(new FileInputStream(path), "UTF-8");
+
+        try {
+            JsonArray a = new JsonParser().parse(in).getAsJsonArray();
+            for (JsonElement e : a) {
+                JsonObject o = e.getAsJsonObject();
+                String name = o.get("benchmark").getAsString();
+                name = name.substring(name.lastIndexOf('.') + 1);
+                if (o.has("params")) {
+                    StringBuilder sb = new StringBuilder(name);
+                    for (Map.Entry<String, JsonElement> p : o.getAsJsonObject("params").entrySet()) {
+                        sb.append(' ').append(p.getKey()).append('=').append(p.getValue().getAsString());
+                    }
+                    name = sb.toString();
+                }
+                results.put(name, o);
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    // Returns bytes allocated per operation, or NaN if not profiled.
+    private static double getAlloc(JsonObject result) {
+        JsonObject secondary = result.getAsJsonObject("secondaryMetrics");
+        if (secondary != null) {
+            // JMH prefixes profiler metrics with a separator character
+            for (Map.Entry<String, JsonElement> e : secondary.entrySet()) {
+                if (e.getKey().endsWith(allocMetric)) {
+                    return e.getValue().getAsJsonObject().get("score").getAsDouble();
+                }
+            }
+        }
+        return Double.NaN;
+    }
+
+} // end of CompareBaseline
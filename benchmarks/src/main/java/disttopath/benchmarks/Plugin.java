@@ -0,0 +1,150 @@
+/*
+    file   : Plugin.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Access to the DistToPath plugin classes for the benchmarks.
+
+    The plugin classes are package private and in the default package, which
+    JMH generated code cannot refer to, so they are reached through method
+    handles. The handles are static and final, so the JIT treats them as
+    constants and the calls cost about as much as direct calls.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+package disttopath.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+
+final class Plugin {
+    static final Class<?> profileClass = load("ProfileDataDTP");
+    static final Class<?> typeClass = load("ComponentTypeDTP");
+    static final Class<?> engineClass = load("DistanceEngineDTP");
+    static final Class<?> statsClass = load("ProfileStatsDTP");
+    static final Class<?> jobClass = load("SaveQueueDTP$Job");
+    static final Class<?> detectorClass = load("ParticleDetectorDTP");
+
+    static final Object PATH = type("PATH");
+    static final Object POINTS = type("POINTS");
+    static final Object POSITIVE_POLARITY = type("POSITIVE_POLARITY");
+    static final Object HOLE = type("HOLE");
+    static final Object FRAME = type("FRAME");
+    static final Object RANDOM_POINTS = type("RANDOM_POINTS");
+    static final Object[] types = typeClass.getEnumConstants();
+
+    // ProfileDataDTP
+    static final MethodHandle newProfile = constructor(profileClass);
+    static final MethodHandle add = method(profileClass, "add", typeClass, float[].class,
+            float[].class, int.class);
+    static final MethodHandle getNum = method(profileClass, "getNum", typeClass);
+    static final MethodHandle getNumPoints = method(profileClass, "getNumPoints", typeClass);
+    static final MethodHandle isSameImage = method(profileClass, "isSameImage", ImagePlus.class);
+    static final MethodHandle placeRandomPoints = method(profileClass, "placeRandomPoints",
+            ImagePlus.class);
+    static final MethodHandle createSaveJob = method(profileClass, "createSaveJob",
+            ImagePlus.class, String.class, String.class);
+    static final MethodHandle getAnalyzedExtension = method(profileClass,
+            "getAnalyzedExtension");
+    static final MethodHandle writeProfile = method(profileClass, "writeProfile",
+            ImagePlus.class, String.class);
+    static final MethodHandle drawComponents = method(profileClass, "drawComponents",
+            ImageProcessor.class, double.class, int.class);
+    static final MethodHandle writeIDtext = method(profileClass, "writeIDtext",
+            ImageProcessor.class, double.class);
+    static final MethodHandle getStats = method(profileClass, "getStats");
+    static final MethodHandle setRandompn = setter(profileClass, "randompn");
+    static final MethodHandle setRandomSeed = setter(profileClass, "randomSeed");
+    static final MethodHandle setID = setter(profileClass, "ID");
+    static final MethodHandle setAnalyzedFormat = setter(profileClass, "analyzedFormat");
+
+    // SaveQueueDTP.Job
+    static final MethodHandle runJob = method(jobClass, "run");
+
+    // DistanceEngineDTP
+    static final MethodHandle newEngine = constructor(engineClass, float[].class,
+            float[].class, int.class);
+    static final MethodHandle computeAll = method(engineClass, "computeAll", float[].class,
+            float[].class, int.class);
+
+    // ParticleDetectorDTP
+    static final MethodHandle newDetector = constructor(detectorClass, ImageProcessor.class);
+    static final MethodHandle detect = method(detectorClass, "detect", double.class,
+            double.class, double.class);
+
+    // ProfileStatsDTP
+    static final MethodHandle statsChanged = method(statsClass, "changed", typeClass,
+            profileClass);
+    static final MethodHandle getMedian = method(statsClass, "getMedian");
+
+
+    private Plugin() {
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("DistToPath plugin not on the class path", e);
+        }
+    }
+
+    private static Object type(String name) {
+        for (Object t : typeClass.getEnumConstants()) {
+            if (((Enum<?>) t).name().equals(name)) {
+                return t;
+            }
+        }
+        throw new IllegalStateException("No component type " + name);
+    }
+
+    private static MethodHandle constructor(Class<?> c, Class<?>... args) {
+        try {
+            Constructor<?> ctor = c.getDeclaredConstructor(args);
+            return erase(MethodHandles.lookup().unreflectConstructor(accessible(ctor)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> c, String name, Class<?>... args) {
+        try {
+            Method m = c.getDeclaredMethod(name, args);
+            return erase(MethodHandles.lookup().unreflect(accessible(m)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle setter(Class<?> c, String name) {
+        try {
+            Field f = c.getDeclaredField(name);
+            return erase(MethodHandles.lookup().unreflectSetter(accessible(f)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T extends AccessibleObject> T accessible(T o) {
+        o.setAccessible(true);
+        return o;
+    }
+
+    // Plugin types (the receiver included) become Object, so that callers
+    // need not know them; primitives are kept, so nothing is boxed.
+    private static MethodHandle erase(MethodHandle h) {
+        return h.asType(h.type().erase());
+    }
+
+} // end of Plugin
@@ -0,0 +1,142 @@
+/*
+    file   : ProfileBenchmarks.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    JMH benchmarks of the profile hot paths of the DistToPath plugin: saving
+    (with the dialogs left out), burning the components and ID into the
+    analyzed image, random point placement, component counts, and the
+    distance computation behind the info panel and the saved profile.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+package disttopath.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Benchmark)
+public class ProfileBenchmarks {
+    Object engine;      // DistanceEngineDTP of the path
+    Object stats;       // ProfileStatsDTP of the profile
+
+
+    // Options of the analyzed image written by save().
+    @State(Scope.Benchmark)
+    public static class SaveOptions {
+        @Param({"TIFF"})
+        public String analyzedFormat;   // one of OptionsDTP.analyzedFormats
+
+        @Setup(Level.Trial)
+        public void setup(SyntheticProfile s) throws Throwable {
+            Plugin.setAnalyzedFormat.invoke(s.profile, analyzedFormat);
+        }
+    }
+
+    // Options of random point placement.
+    @State(Scope.Benchmark)
+    public static class RandomOptions {
+        @Param({"200"})
+        public int randomPoints;
+
+        @Setup(Level.Trial)
+        public void setup(SyntheticProfile s) throws Throwable {
+            Plugin.setRandompn.invoke(s.profile, randomPoints);
+        }
+    }
+
+
+    @Setup(Level.Trial)
+    public void setup(SyntheticProfile s) throws Throwable {
+        engine = Plugin.newEngine.invoke(s.pathx, s.pathy, s.pathNodes);
+        stats = Plugin.getStats.invoke(s.profile);
+    }
+
+    // Everything save() does once the user has answered the dialogs: the
+    // snapshot, the profile file, and the analyzed image.
+    @Benchmark
+    public void save(SyntheticProfile s, SaveOptions o) throws Throwable {
+        String ext = (String) Plugin.getAnalyzedExtension.invoke(s.profile);
+        Object job = Plugin.createSaveJob.invoke(s.profile, s.imp,
+                new File(s.dir, "profile.dtp").getPath(),
+                new File(s.dir, "analyzed" + ext).getPath());
+        Plugin.runJob.invoke(job);
+    }
+
+    @Benchmark
+    public void writeProfile(SyntheticProfile s) throws Throwable {
+        Plugin.writeProfile.invoke(s.profile, s.imp, new File(s.dir, "profile.dtp").getPath());
+    }
+
+    // Drawing over the same image every time costs the same as drawing on a
+    // fresh copy, without timing the copy.
+    @Benchmark
+    public Object drawComponents(SyntheticProfile s) throws Throwable {
+        Plugin.drawComponents.invoke(s.profile, s.rgb, 1.0, 0);
+        return s.rgb;
+    }
+
+    @Benchmark
+    public Object writeIDtext(SyntheticProfile s) throws Throwable {
+        Plugin.writeIDtext.invoke(s.profile, s.rgb, 1.0);
+        return s.rgb;
+    }
+
+    @Benchmark
+    public Object placeRandomPoints(SyntheticProfile s, RandomOptions o) throws Throwable {
+        return Plugin.placeRandomPoints.invoke(s.profile, s.imp);
+    }
+
+    // Number of components and points of every type, as the info panel asks.
+    @Benchmark
+    public int getNum(SyntheticProfile s) throws Throwable {
+        int sum = 0;
+
+        for (Object t : Plugin.types) {
+            sum += (int) Plugin.getNum.invoke(s.profile, t);
+            sum += (int) Plugin.getNumPoints.invoke(s.profile, t);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public Object buildDistanceEngine(SyntheticProfile s) throws Throwable {
+        return Plugin.newEngine.invoke(s.pathx, s.pathy, s.pathNodes);
+    }
+
+    // Distances of all points to the path.
+    @Benchmark
+    public Object computeDistances(SyntheticProfile s) throws Throwable {
+        return Plugin.computeAll.invoke(engine, s.pointx, s.pointy, s.points);
+    }
+
+    // The info panel statistics after the points are redefined.
+    @Benchmark
+    public double updateStats(SyntheticProfile s) throws Throwable {
+        Plugin.statsChanged.invoke(stats, Plugin.POINTS, s.profile);
+        return (double) Plugin.getMedian.invoke(stats);
+    }
+
+} // end of ProfileBenchmarks
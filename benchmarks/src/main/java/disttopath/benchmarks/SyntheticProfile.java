@@ -0,0 +1,150 @@
+/*
+    file   : SyntheticProfile.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Synthetic profile for the DistToPath benchmarks: a square image with a
+    wavy path across it, points scattered over the image, small octagonal
+    holes, a positive polarity and a sampling frame. The sizes are JMH
+    parameters, so that they can be set on the command line, e.g.
+    -p points=1000,100000. Coordinates come from a fixed seed, so every run
+    measures the same profile.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+package disttopath.benchmarks;
+
+import java.io.File;
+import java.util.Random;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+@State(Scope.Benchmark)
+public class SyntheticProfile {
+    static final long seed = 20140101L;
+
+    @Param({"2000"})
+    public int pathNodes;
+
+    @Param({"10000"})
+    public int points;
+
+    @Param({"10"})
+    public int holes;
+
+    @Param({"4096"})
+    public int imageSize;       // pixels, width and height
+
+    Object profile;             // ProfileDataDTP
+    ImagePlus imp;
+    ColorProcessor rgb;         // a copy of the image to draw on
+    float[] pathx, pathy, pointx, pointy;
+    File dir;                   // for saved files
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Random random = new Random(seed);
+        int i;
+
+        imp = createImage(imageSize);
+        rgb = (ColorProcessor) imp.getProcessor().convertToRGB();
+        profile = Plugin.newProfile.invoke();
+        Plugin.isSameImage.invoke(profile, imp);
+        Plugin.setID.invoke(profile, "bench");
+        Plugin.setRandomSeed.invoke(profile, seed);
+
+        // A path of two periods of a sine wave across the middle
+        pathx = new float[pathNodes];
+        pathy = new float[pathNodes];
+        for (i = 0; i < pathNodes; i++) {
+            double t = (double) i / Math.max(1, pathNodes - 1);
+            pathx[i] = (float) (imageSize * (0.1 + 0.8 * t));
+            pathy[i] = (float) (imageSize * (0.5 + 0.2 * Math.sin(4 * Math.PI * t)));
+        }
+        Plugin.add.invoke(profile, Plugin.PATH, pathx, pathy, pathNodes);
+
+        pointx = new float[points];
+        pointy = new float[points];
+        for (i = 0; i < points; i++) {
+            pointx[i] = random.nextFloat() * imageSize;
+            pointy[i] = random.nextFloat() * imageSize;
+        }
+        Plugin.add.invoke(profile, Plugin.POINTS, pointx, pointy, points);
+
+        for (i = 0; i < holes; i++) {
+            addOctagon(Plugin.HOLE, random.nextFloat() * imageSize,
+                    random.nextFloat() * imageSize, imageSize / 40f);
+        }
+        Plugin.add.invoke(profile, Plugin.POSITIVE_POLARITY,
+                new float[] {imageSize / 2f}, new float[] {imageSize * 0.1f}, 1);
+        float lo = imageSize * 0.05f, hi = imageSize * 0.95f;
+        Plugin.add.invoke(profile, Plugin.FRAME, new float[] {lo, hi, hi, lo},
+                new float[] {lo, lo, hi, hi}, 4);
+
+        dir = createTempDir();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+        imp.flush();
+    }
+
+    // A calibrated 8-bit image with a regular texture, so that compressed
+    // formats have something to compress.
+    static ImagePlus createImage(int size) {
+        ByteProcessor ip = new ByteProcessor(size, size);
+        byte[] pixels = (byte[]) ip.getPixels();
+        int x, y;
+
+        for (y = 0; y < size; y++) {
+            for (x = 0; x < size; x++) {
+                pixels[y * size + x] = (byte) (64 + ((x ^ y) & 127));
+            }
+        }
+        ImagePlus imp = new ImagePlus("synthetic.tif", ip);
+        Calibration cal = imp.getCalibration();
+        cal.pixelWidth = cal.pixelHeight = 2.0;
+        cal.setUnit("nm");
+        return imp;
+    }
+
+    private void addOctagon(Object type, float cx, float cy, float r) throws Throwable {
+        float[] x = new float[8], y = new float[8];
+
+        for (int i = 0; i < 8; i++) {
+            x[i] = cx + r * (float) Math.cos(i * Math.PI / 4);
+            y[i] = cy + r * (float) Math.sin(i * Math.PI / 4);
+        }
+        Plugin.add.invoke(profile, type, x, y, 8);
+    }
+
+    private static File createTempDir() throws Exception {
+        File f = File.createTempFile("dtpbench", "");
+        if (!f.delete() || !f.mkdir()) {
+            throw new IllegalStateException("Could not create " + f);
+        }
+        return f;
+    }
+
+} // end of SyntheticProfile
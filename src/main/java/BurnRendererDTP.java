@@ -0,0 +1,177 @@
+/*
+    file   : BurnRendererDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Renderer that burns profile components into the analyzed image of the
+    DistToPath ImageJ plugin.
+
+    Drawing thousands of points through ImageProcessor.drawLine() costs two
+    virtual calls per pixel. This renderer writes into the pixel array of an
+    RGB image in one pass instead: each point is stamped as a cross glyph
+    with clipping, and lines are drawn with the same stepping and rounding
+    as ImageProcessor.lineTo(), so that the result is identical pixel for
+    pixel to drawing with the processor.
+
+    The vertices of paths, holes, frames and other point ROIs are those
+    ImageJ itself would draw: the ROI draws itself on a recording processor,
+    which keeps the moveTo/lineTo calls instead of drawing. All components
+    are recorded before anything is drawn, so that if a component would not
+    be drawn with one pixel wide lines, the caller can draw all of it the
+    usual way instead.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.util.Arrays;
+import java.util.List;
+import ij.gui.Roi;
+import ij.plugin.filter.Analyzer;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+
+class BurnRendererDTP {
+    static final int crossArm = 3;      // pixels either side of the center
+    // Drawing operations, as (op, x, y) triples; for COLOR, x is the RGB
+    // value, and for POINTS, the index of the component whose points to draw
+    private static final int COLOR = 0, MOVE = 1, LINE = 2, POINTS = 3;
+    private int[] ops = new int[3 * 1024];
+    private int nops = 0;
+    private boolean unsupported = false;
+    private final Recorder recorder = new Recorder();
+
+
+    // Keeps the drawing calls of a ROI instead of drawing.
+    private class Recorder extends ColorProcessor {
+        Recorder() {
+            super(1, 1);
+        }
+
+        public void moveTo(int x, int y) {
+            record(MOVE, x, y);
+        }
+
+        public void lineTo(int x, int y) {
+            record(LINE, x, y);
+        }
+
+        public void setLineWidth(int width) {
+            if (width > 1) {
+                unsupported = true;
+            }
+        }
+    }
+
+
+    // Draws 'components' on 'ip', which holds the image at 1 / scale of full
+    // resolution, from row y0 (of ip) down, as drawing them one by one with
+    // the processor would. Returns false, without drawing anything, if that
+    // cannot be done exactly here: if ip is not RGB or lines or point marks
+    // would be wider than a pixel.
+    boolean render(ImageProcessor ip, List<ComponentDTP> components, double scale, int y0) {
+        int k = 0;
+
+        if (!(ip instanceof ColorProcessor) || ip.getLineWidth() != 1 || Analyzer.markWidth > 1) {
+            return false;
+        }
+        nops = 0;
+        unsupported = false;
+        for (ComponentDTP comp : components) {
+            record(COLOR, comp.type.color.getRGB(), 0);
+            if (comp.type == ComponentTypeDTP.POINTS) {
+                record(POINTS, k, 0);
+            } else {
+                Roi roi = comp.viewScale == scale && y0 == 0 ?
+                        comp.getRoi() : comp.createRoi(scale, 0, y0 * scale);
+                if (roi.getStrokeWidth() > 1) {
+                    return false;
+                }
+                roi.drawPixels(recorder);
+            }
+            if (unsupported) {
+                return false;
+            }
+            k++;
+        }
+        draw((int[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), components, scale, y0);
+        return true;
+    }
+
+    private void record(int op, int x, int y) {
+        if (nops + 3 > ops.length) {
+            ops = Arrays.copyOf(ops, 2 * ops.length);
+        }
+        ops[nops++] = op;
+        ops[nops++] = x;
+        ops[nops++] = y;
+    }
+
+    private void draw(int[] pixels, int width, int height,
+                      List<ComponentDTP> components, double scale, int y0) {
+        int color = 0, cx = 0, cy = 0, k, i, j;
+
+        for (k = 0; k < nops; k += 3) {
+            int x = ops[k + 1], y = ops[k + 2];
+            switch (ops[k]) {
+                case COLOR:
+                    color = x;
+                    break;
+                case MOVE:
+                    cx = x;
+                    cy = y;
+                    break;
+                case LINE:
+                    line(pixels, width, height, color, cx, cy, x, y);
+                    cx = x;
+                    cy = y;
+                    break;
+                case POINTS:
+                    ComponentDTP comp = components.get(x);
+                    for (j = 0; j < comp.n; j++) {
+                        int px = (int) (comp.x[j] / scale), py = (int) (comp.y[j] / scale) - y0;
+                        // As drawLine(px - 3, py, px + 3, py), drawLine(px, py - 3, px, py + 3)
+                        if (py >= 0 && py < height) {
+                            int row = py * width;
+                            for (i = Math.max(0, px - crossArm); i <= Math.min(width - 1, px + crossArm); i++) {
+                                pixels[row + i] = color;
+                            }
+                        }
+                        if (px >= 0 && px < width) {
+                            for (i = Math.max(0, py - crossArm); i <= Math.min(height - 1, py + crossArm); i++) {
+                                pixels[i * width + px] = color;
+                            }
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    // Draws a line one pixel wide from (x1, y1) to (x2, y2), stepping and
+    // rounding as ImageProcessor.lineTo() does.
+    private static void line(int[] pixels, int width, int height, int color,
+                             int x1, int y1, int x2, int y2) {
+        int dx = x2 - x1, dy = y2 - y1;
+        int n = Math.max(Math.abs(dx), Math.abs(dy));
+        double xinc = (double) dx / n, yinc = (double) dy / n;
+        double x = x1, y = y1;
+
+        n++;
+        if (n > 1000000) {
+            return;
+        }
+        do {
+            int px = (int) Math.round(x), py = (int) Math.round(y);
+            if (px >= 0 && px < width && py >= 0 && py < height) {
+                pixels[py * width + px] = color;
+            }
+            x += xinc;
+            y += yinc;
+        } while (--n > 0);
+    }
+
+} // end of BurnRendererDTP
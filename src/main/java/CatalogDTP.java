@@ -0,0 +1,296 @@
+/*
+    file   : CatalogDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Catalog of the saved profiles in a folder tree, for the DistToPath
+    ImageJ plugin: for each .dtp file, the image it was drawn on, the profile
+    ID and the number of nodes or points of each component type.
+
+    The catalog is kept in a small text file in the top folder, one line per
+    profile with the modification time and size of its file. When the
+    catalog is updated, only files that are new or whose time or size has
+    changed are read again, in parallel; entries of removed files are
+    dropped. Files are only scanned for the header and the number of lines
+    in each block, so coordinates are not parsed.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.util.*;
+
+
+class CatalogDTP {
+    static final String fileName = "DistToPath.catalog";
+    static final String version = "# DistToPath catalog 1";
+    static final int nchunks = 64;
+    final File root;
+    // By path relative to root, with '/' separators
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+
+    static class Entry {
+        String path = "";
+        long modified, length;
+        String image = "", id = "";
+        // Nodes or points of each component type (by ordinal), and holes
+        final int[] counts = new int[ComponentTypeDTP.values().length];
+        int holes;
+
+        int get(ComponentTypeDTP t) {
+            return counts[t.ordinal()];
+        }
+    }
+
+
+    CatalogDTP(File root) {
+        this.root = root;
+    }
+
+    File getFile(Entry e) {
+        return new File(root, e.path.replace('/', File.separatorChar));
+    }
+
+    // Returns all entries, by path.
+    synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    // Returns the entries of the profiles drawn on the image titled 'image'.
+    synchronized List<Entry> getProfiles(String image) {
+        List<Entry> l = new ArrayList<Entry>();
+
+        for (Entry e : entries.values()) {
+            if (e.image.equals(image)) {
+                l.add(e);
+            }
+        }
+        return l;
+    }
+
+    // Returns the entries grouped by image, images in name order.
+    synchronized Map<String, List<Entry>> byImage() {
+        Map<String, List<Entry>> m = new TreeMap<String, List<Entry>>();
+
+        for (Entry e : entries.values()) {
+            List<Entry> l = m.get(e.image);
+            if (l == null) {
+                l = new ArrayList<Entry>();
+                m.put(e.image, l);
+            }
+            l.add(e);
+        }
+        return m;
+    }
+
+
+    // Reads the saved catalog, if any, brings it up to date with the files
+    // and saves it if anything changed. Returns the number of files read.
+    synchronized int update() throws Exception {
+        File saved = new File(root, fileName);
+        if (entries.isEmpty() && saved.isFile()) {
+            load(saved);
+        }
+        final List<File> files = new ArrayList<File>();
+        final List<String> paths = new ArrayList<String>();
+        Set<String> present = new HashSet<String>();
+        list(root, "", files, paths);
+        final List<File> changed = new ArrayList<File>();
+        final List<String> changedPaths = new ArrayList<String>();
+        for (int i = 0; i < files.size(); i++) {
+            File f = files.get(i);
+            Entry e = entries.get(paths.get(i));
+            present.add(paths.get(i));
+            if (e == null || e.modified != f.lastModified() || e.length != f.length()) {
+                changed.add(f);
+                changedPaths.add(paths.get(i));
+            }
+        }
+        boolean removed = entries.keySet().retainAll(present);
+        final Entry[] scanned = new Entry[changed.size()];
+        final int nc = Math.max(1, Math.min(nchunks, scanned.length));
+        ParallelDTP.run(nc, new ParallelDTP.ChunkTask() {
+            public void run(int chunk) throws Exception {
+                for (int i = chunk * scanned.length / nc; i < (chunk + 1) * scanned.length / nc; i++) {
+                    scanned[i] = scan(changed.get(i), changedPaths.get(i));
+                }
+            }
+        });
+        for (Entry e : scanned) {
+            entries.put(e.path, e);
+        }
+        if (scanned.length > 0 || removed) {
+            save(saved);
+        }
+        return scanned.length;
+    }
+
+    // Adds the .dtp files under 'dir' to 'files', with their paths relative
+    // to root.
+    static void list(File dir, String prefix, List<File> files, List<String> paths) {
+        File[] l = dir.listFiles();
+
+        if (l == null) {
+            return;
+        }
+        Arrays.sort(l);
+        for (File f : l) {
+            if (f.isDirectory()) {
+                list(f, prefix + f.getName() + "/", files, paths);
+            } else if (f.getName().endsWith(".dtp")) {
+                files.add(f);
+                paths.add(prefix + f.getName());
+            }
+        }
+    }
+
+    // Reads the header and counts the block lines of a .dtp file. The time
+    // and size are taken before reading, so that a file changed while read
+    // is read again next time.
+    static Entry scan(File f, String path) throws IOException {
+        Entry e = new Entry();
+        e.path = path;
+        e.modified = f.lastModified();
+        e.length = f.length();
+        BufferedReader in = new BufferedReader(new FileReader(f));
+        String line;
+
+        try {
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                int sp = line.indexOf(' ');
+                String key = sp == -1 ? line : line.substring(0, sp);
+                String value = sp == -1 ? "" : line.substring(sp + 1).trim();
+                if (key.equals("IMAGE")) {
+                    e.image = value;
+                } else if (key.equals("PROFILE_ID")) {
+                    e.id = value;
+                } else if (key.equals("POSLOC")) {
+                    e.counts[ComponentTypeDTP.POSITIVE_POLARITY.ordinal()]++;
+                } else if (sp == -1) {
+                    ComponentTypeDTP t = ProfileRecordDTP.blockType(key);
+                    int n = 0;
+                    while ((line = in.readLine()) != null && !(line = line.trim()).equals("END")) {
+                        if (line.length() > 0) {
+                            n++;
+                        }
+                    }
+                    if (t != null) {
+                        e.counts[t.ordinal()] += n;
+                        if (t == ComponentTypeDTP.HOLE) {
+                            e.holes++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return e;
+    }
+
+
+    // The column header of the catalog file; a catalog with other columns is
+    // not read, so that it is rebuilt.
+    private static String columns() {
+        StringBuilder sb = new StringBuilder("# path\tmodified\tlength\timage\tid");
+
+        for (ComponentTypeDTP t : ComponentTypeDTP.values()) {
+            sb.append('\t').append(t.blockName);
+        }
+        return sb.append("\tholes").toString();
+    }
+
+    private void load(File f) {
+        int ntypes = ComponentTypeDTP.values().length;
+        String line;
+
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(f), "UTF-8"));
+            try {
+                if (!version.equals(in.readLine()) || !columns().equals(in.readLine())) {
+                    return;
+                }
+                while ((line = in.readLine()) != null) {
+                    String[] v = line.split("\t", -1);
+                    if (v.length != 6 + ntypes) {
+                        continue;
+                    }
+                    Entry e = new Entry();
+                    e.path = unescape(v[0]);
+                    e.modified = Long.parseLong(v[1]);
+                    e.length = Long.parseLong(v[2]);
+                    e.image = unescape(v[3]);
+                    e.id = unescape(v[4]);
+                    for (int i = 0; i < ntypes; i++) {
+                        e.counts[i] = Integer.parseInt(v[5 + i]);
+                    }
+                    e.holes = Integer.parseInt(v[5 + ntypes]);
+                    entries.put(e.path, e);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            // A damaged catalog is rebuilt from the files
+            entries.clear();
+        }
+    }
+
+    private void save(File dest) throws IOException {
+        File tmp = SaveQueueDTP.createTempFile(dest);
+        try {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), "UTF-8")));
+            try {
+                out.println(version);
+                out.println(columns());
+                for (Entry e : entries.values()) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(escape(e.path)).append('\t').append(e.modified).append('\t')
+                            .append(e.length).append('\t').append(escape(e.image)).append('\t')
+                            .append(escape(e.id));
+                    for (int c : e.counts) {
+                        sb.append('\t').append(c);
+                    }
+                    out.println(sb.append('\t').append(e.holes));
+                }
+            } finally {
+                out.close();
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + dest.getPath());
+            }
+            SaveQueueDTP.rename(tmp, dest);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                c = c == 't' ? '\t' : c == 'n' ? '\n' : c;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+} // end of CatalogDTP
@@ -0,0 +1,179 @@
+/*
+    file   : ComponentDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Profile components for the DistToPath ImageJ plugin.
+
+    A component keeps its coordinates in float arrays, so that sub-pixel
+    positions are kept. The ROI of a component is only a view of it, shown in
+    the image overlay. Coordinates are always in full resolution pixels; when
+    annotating the overview of a tiled image, the view is viewScale times
+    smaller.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Color;
+import ij.gui.*;
+import ij.process.FloatPolygon;
+
+
+enum ComponentTypeDTP implements OptionsDTP {
+    PATH("path", "PATH", true, pathCol),
+    POINTS("points", "POINTS", true, pointCol),
+    POSITIVE_POLARITY("positive polarity", "POSLOC", true, pospolCol),
+    HOLE("hole", "HOLE", false, holeCol),
+    FRAME("frame", "FRAME", true, frameCol),
+    RANDOM_POINTS("random points", "RANDOM_POINTS", true, randomCol);
+
+    final String name;       // ROI name
+    final String blockName;  // name in .dtp files
+    final boolean single;    // at most one per profile
+    final Color color;
+
+    ComponentTypeDTP(String name, String blockName, boolean single, Color color) {
+        this.name = name;
+        this.blockName = blockName;
+        this.single = single;
+        this.color = color;
+    }
+
+    // Returns the type of component named 'name', or null. The misspelled
+    // "randon points" is accepted for ROIs saved by earlier versions.
+    static ComponentTypeDTP forName(String name) {
+        if (name == null) {
+            return null;
+        }
+        if (name.equals("randon points")) {
+            return RANDOM_POINTS;
+        }
+        for (ComponentTypeDTP t : values()) {
+            if (t.name.equals(name)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    // Returns true if 'roi' has a ROI type that can define this component.
+    boolean accepts(Roi roi) {
+        switch (this) {
+            case PATH:
+                return roi.getType() == Roi.POLYLINE;
+            case HOLE:
+                return roi.getType() == Roi.POLYGON;
+            case FRAME:
+                return roi.getType() == Roi.POLYGON || roi.getType() == Roi.RECTANGLE;
+            default:
+                return roi.getType() == Roi.POINT;
+        }
+    }
+}
+
+
+class ComponentDTP {
+    final ComponentTypeDTP type;
+    final float[] x, y;
+    final int n;
+    final double viewScale;  // full resolution pixels per view pixel
+    private Roi roi;
+
+
+    // Makes a component from the coordinates of 'roi', which becomes its view.
+    ComponentDTP(ComponentTypeDTP type, Roi roi) {
+        this(type, roi, 1);
+    }
+
+    ComponentDTP(ComponentTypeDTP type, Roi roi, double viewScale) {
+        FloatPolygon pol = roi.getFloatPolygon();
+        int i;
+
+        this.type = type;
+        this.n = pol.npoints;
+        this.x = new float[n];
+        this.y = new float[n];
+        this.viewScale = viewScale;
+        for (i = 0; i < n; i++) {
+            this.x[i] = (float) (pol.xpoints[i] * viewScale);
+            this.y[i] = (float) (pol.ypoints[i] * viewScale);
+        }
+        this.roi = roi;
+        styleRoi(roi);
+    }
+
+    // Makes a component from coordinates; the arrays are not copied. The
+    // view ROI is only created when first asked for.
+    ComponentDTP(ComponentTypeDTP type, float[] x, float[] y, int n) {
+        this(type, x, y, n, 1);
+    }
+
+    ComponentDTP(ComponentTypeDTP type, float[] x, float[] y, int n, double viewScale) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.n = n;
+        this.viewScale = viewScale;
+    }
+
+    Roi getRoi() {
+        if (roi == null) {
+            roi = createRoi(viewScale, 0, 0);
+        }
+        return roi;
+    }
+
+    // Returns a new ROI of the component with coordinates ((x - dx) / scale,
+    // (y - dy) / scale), e.g. to draw it on part of a full resolution image.
+    Roi createRoi(double scale, double dx, double dy) {
+        float[] xs = x, ys = y;
+        Roi r;
+        int i;
+
+        if (scale != 1 || dx != 0 || dy != 0) {
+            xs = new float[n];
+            ys = new float[n];
+            for (i = 0; i < n; i++) {
+                xs[i] = (float) ((x[i] - dx) / scale);
+                ys[i] = (float) ((y[i] - dy) / scale);
+            }
+        }
+        switch (type) {
+            case PATH:
+                r = new PolygonRoi(xs, ys, n, Roi.POLYLINE);
+                break;
+            case HOLE:
+            case FRAME:
+                r = new PolygonRoi(xs, ys, n, Roi.POLYGON);
+                break;
+            default:
+                PointRoi p = new PointRoi(xs, ys, n);
+                if (type == ComponentTypeDTP.RANDOM_POINTS) {
+                    p.setHideLabels(true);
+                }
+                r = p;
+        }
+        styleRoi(r);
+        return r;
+    }
+
+    private void styleRoi(Roi r) {
+        r.setName(type.name);
+        r.setStrokeColor(type.color);
+    }
+
+    // Length of the polyline through the nodes, in pixels.
+    double getLength() {
+        double len = 0;
+        int i;
+
+        for (i = 1; i < n; i++) {
+            len += Math.hypot(x[i] - x[i - 1], y[i] - y[i - 1]);
+        }
+        return len;
+    }
+
+} // end of ComponentDTP
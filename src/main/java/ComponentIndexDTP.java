@@ -0,0 +1,210 @@
+/*
+    file   : ComponentIndexDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Spatial index of the profile components on one image, for the DistToPath
+    ImageJ plugin, used to find the component under the mouse.
+
+    The image is divided in square cells, and each point, path segment and
+    polygon edge is listed in the cells it passes through, so that a hit test
+    only looks at what is near the query point, however many profiles and
+    points the image holds. Holes are also listed over their bounds, so that
+    a click inside a hole selects it. Coordinates are full resolution pixels.
+
+    The index is shared by the profiles of an image, which may be changed
+    from the event thread and from background workers, so all access is
+    synchronized.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.util.*;
+
+
+class ComponentIndexDTP {
+    static final int cellSize = 64;     // full resolution pixels
+    private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+    private final Map<ComponentDTP, Set<Long>> cellsOf = new IdentityHashMap<ComponentDTP, Set<Long>>();
+    private final Map<ComponentDTP, PolygonTestDTP> holeTests = new IdentityHashMap<ComponentDTP, PolygonTestDTP>();
+
+
+    // A component found by find(), with the profile it belongs to.
+    static class Hit {
+        final ProfileDataDTP profile;
+        final ComponentDTP component;
+        final double distance;
+
+        Hit(ProfileDataDTP profile, ComponentDTP component, double distance) {
+            this.profile = profile;
+            this.component = component;
+            this.distance = distance;
+        }
+    }
+
+
+    // Point or segment i of a component; i is -1 for the area of a hole.
+    private static class Entry {
+        final ProfileDataDTP profile;
+        final ComponentDTP c;
+        final int i;
+
+        Entry(ProfileDataDTP profile, ComponentDTP c, int i) {
+            this.profile = profile;
+            this.c = c;
+            this.i = i;
+        }
+    }
+
+
+    synchronized void add(ProfileDataDTP profile, ComponentDTP c) {
+        Set<Long> keys = new HashSet<Long>();
+        int i;
+
+        cellsOf.put(c, keys);
+        switch (c.type) {
+            case PATH:
+                for (i = 0; i + 1 < c.n; i++) {
+                    addSegment(keys, new Entry(profile, c, i), c.x[i], c.y[i], c.x[i + 1], c.y[i + 1]);
+                }
+                break;
+            case HOLE:
+            case FRAME:
+                for (i = 0; i < c.n; i++) {
+                    int j = (i + 1) % c.n;
+                    addSegment(keys, new Entry(profile, c, i), c.x[i], c.y[i], c.x[j], c.y[j]);
+                }
+                if (c.type == ComponentTypeDTP.HOLE) {
+                    PolygonTestDTP test = new PolygonTestDTP(c.x, c.y, c.n);
+                    holeTests.put(c, test);
+                    addBox(keys, new Entry(profile, c, -1), test.minx, test.miny, test.maxx, test.maxy);
+                }
+                break;
+            default:
+                for (i = 0; i < c.n; i++) {
+                    addBox(keys, new Entry(profile, c, i), c.x[i], c.y[i], c.x[i], c.y[i]);
+                }
+        }
+    }
+
+    synchronized void remove(ComponentDTP c) {
+        Set<Long> keys = cellsOf.remove(c);
+
+        if (keys == null) {
+            return;
+        }
+        holeTests.remove(c);
+        for (Long key : keys) {
+            List<Entry> l = cells.get(key);
+            Iterator<Entry> it = l.iterator();
+            while (it.hasNext()) {
+                if (it.next().c == c) {
+                    it.remove();
+                }
+            }
+            if (l.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return cellsOf.isEmpty();
+    }
+
+    // Returns the component nearest to (x, y) within 'tolerance', or null.
+    // Points and lines are preferred to the inside of a hole.
+    synchronized Hit find(double x, double y, double tolerance) {
+        Entry best = null;
+        double bestd = Double.MAX_VALUE;
+        int cx, cy;
+
+        for (cy = cell(y - tolerance); cy <= cell(y + tolerance); cy++) {
+            for (cx = cell(x - tolerance); cx <= cell(x + tolerance); cx++) {
+                List<Entry> l = cells.get(key(cx, cy));
+                if (l == null) {
+                    continue;
+                }
+                for (Entry e : l) {
+                    double d = distance(e, x, y, tolerance);
+                    if (d <= tolerance && d < bestd) {
+                        best = e;
+                        bestd = d;
+                    }
+                }
+            }
+        }
+        return best == null ? null : new Hit(best.profile, best.c, bestd);
+    }
+
+    private double distance(Entry e, double px, double py, double tolerance) {
+        ComponentDTP c = e.c;
+
+        if (e.i < 0) {
+            // Just within tolerance, so that anything nearer wins
+            return holeTests.get(c).contains(px, py) ? tolerance : Double.MAX_VALUE;
+        }
+        switch (c.type) {
+            case PATH:
+                return segmentDistance(px, py, c.x[e.i], c.y[e.i], c.x[e.i + 1], c.y[e.i + 1]);
+            case HOLE:
+            case FRAME:
+                int j = (e.i + 1) % c.n;
+                return segmentDistance(px, py, c.x[e.i], c.y[e.i], c.x[j], c.y[j]);
+            default:
+                return Math.hypot(px - c.x[e.i], py - c.y[e.i]);
+        }
+    }
+
+    static double segmentDistance(double px, double py, double x0, double y0, double x1, double y1) {
+        double dx = x1 - x0, dy = y1 - y0;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : ((px - x0) * dx + (py - y0) * dy) / len2;
+
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(px - (x0 + t * dx), py - (y0 + t * dy));
+    }
+
+    // Lists 'e' in the cells a segment passes through: the segment is cut in
+    // pieces no longer than half a cell, each within at most 2 x 2 cells.
+    private void addSegment(Set<Long> keys, Entry e, double x0, double y0, double x1, double y1) {
+        int k, npieces = 1 + (int) (Math.hypot(x1 - x0, y1 - y0) / (cellSize / 2));
+
+        for (k = 0; k < npieces; k++) {
+            double t0 = (double) k / npieces, t1 = (double) (k + 1) / npieces;
+            addBox(keys, e, x0 + t0 * (x1 - x0), y0 + t0 * (y1 - y0),
+                    x0 + t1 * (x1 - x0), y0 + t1 * (y1 - y0));
+        }
+    }
+
+    private void addBox(Set<Long> keys, Entry e, double x0, double y0, double x1, double y1) {
+        int cx, cy;
+
+        for (cy = cell(Math.min(y0, y1)); cy <= cell(Math.max(y0, y1)); cy++) {
+            for (cx = cell(Math.min(x0, x1)); cx <= cell(Math.max(x0, x1)); cx++) {
+                Long key = key(cx, cy);
+                List<Entry> l = cells.get(key);
+                if (l == null) {
+                    l = new ArrayList<Entry>(4);
+                    cells.put(key, l);
+                } else if (l.get(l.size() - 1) == e) {
+                    continue;   // pieces of a segment often share cells
+                }
+                l.add(e);
+                keys.add(key);
+            }
+        }
+    }
+
+    private static int cell(double v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+} // end of ComponentIndexDTP
@@ -0,0 +1,515 @@
+/*
+    plugin : DistToPathArchive_.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    This ImageJ plugin is for use in conjunction with DistToPath.py.
+
+    Converts between folders of .dtp text files and .dtpa archives, binary
+    files that hold many profiles. An archive starts with a small header
+    that points to the offset index, followed by the profiles and indexes:
+
+        int     magic ("DTPA"), int version, long index offset
+        record  ...                     one per profile, see below
+        int     n; n * (long offset, int length, string image, string id)
+
+    Each record holds the header fields (IMAGE, PROFILE_ID, COMMENT, unit,
+    PIXELWIDTH, random seed, path note, SLICE, CHANNEL), a directory of its components (type, point
+    count, data offset) and then, per component, the x and y coordinates as
+    float columns. Nothing is overwritten but the index offset: new records
+    and then a new index are appended after the old index, forced to disk,
+    and only then is the index offset in the header changed, so that an
+    archive cut short while appending still holds its earlier profiles.
+    Archives of an earlier version are rewritten when appended to. Readers
+    map the file with FileChannel.map, so one profile, or one column of one
+    profile, can be read without parsing the rest of the file.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+
+public class DistToPathArchive_ implements PlugIn {
+
+    static final String[] actions = {"Pack .dtp files into archive", "Unpack archive to .dtp files"};
+
+
+    public void run(String arg) {
+        GenericDialog gd = new GenericDialog("DistToPath archive");
+        gd.addChoice("Action:", actions, actions[0]);
+        gd.addStringField("Folder with .dtp files:", "", 30);
+        gd.addStringField("Archive file (.dtpa):", "", 30);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        int action = gd.getNextChoiceIndex();
+        File dir = new File(gd.getNextString());
+        File archive = new File(gd.getNextString());
+        try {
+            int n = action == 0 ? pack(dir, archive) : unpack(archive, dir);
+            IJ.showStatus(n + " profiles " + (action == 0 ? "packed." : "unpacked."));
+        } catch (IOException e) {
+            IJ.error("DistToPath archive", e.getMessage());
+        }
+    }
+
+    // Appends all .dtp files in 'dir' (sorted by name) to 'archive'.
+    static int pack(File dir, File archive) throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(".dtp");
+            }
+        });
+
+        if (files == null) {
+            throw new IOException("Not a folder: " + dir);
+        }
+        Arrays.sort(files);
+        ArchiveWriterDTP writer = new ArchiveWriterDTP(archive);
+        try {
+            for (File f : files) {
+                writer.append(ProfileRecordDTP.read(f));
+            }
+        } finally {
+            writer.close();
+        }
+        return files.length;
+    }
+
+    // Writes each profile in 'archive' to 'dir' as <image>.<n>.dtp, where n
+    // counts the profiles of each image, as when saving from the plugin.
+    static int unpack(File archive, File dir) throws IOException {
+        Map<String, Integer> nPerImage = new HashMap<String, Integer>();
+        ArchiveReaderDTP reader = new ArchiveReaderDTP(archive);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create folder " + dir);
+        }
+        try {
+            for (int i = 0; i < reader.size(); i++) {
+                ProfileRecordDTP r = reader.read(i);
+                Integer n = nPerImage.get(r.image);
+                n = n == null ? 1 : n + 1;
+                nPerImage.put(r.image, n);
+                r.write(new File(dir, r.image + "." + n + ".dtp").getPath());
+            }
+            return reader.size();
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 3 && args[0].equals("pack")) {
+                System.out.println(pack(new File(args[1]), new File(args[2])) + " profiles packed.");
+            } else if (args.length == 3 && args[0].equals("unpack")) {
+                System.out.println(unpack(new File(args[1]), new File(args[2])) + " profiles unpacked.");
+            } else {
+                System.err.println("usage: DistToPathArchive_ pack <dtp folder> <archive>\n" +
+                        "       DistToPathArchive_ unpack <archive> <dtp folder>");
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+} // end of DistToPathArchive_
+
+
+class ArchiveDTP {
+    static final int MAGIC = 0x44545041;          // "DTPA"
+    static final int INDEX_MAGIC = 0x44545049;    // "DTPI"
+    static final int RECORD_MAGIC = 0x44545052;   // "DTPR"
+    // 1: index found by a trailer at the end; 2: by the header; 3: records
+    // with path note, slice and channel
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 16;
+    static final int HEADER_SIZE_V1 = 8;
+    static final int TRAILER_SIZE = 12;           // of version 1
+
+    static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    // Reads a string written by putString. Its length is checked against the
+    // bytes left before anything is allocated for it.
+    static String getString(ByteBuffer buf) throws IOException {
+        int len = buf.getInt();
+
+        if (len < 0 || len > buf.remaining()) {
+            throw new IOException("Archive is damaged: string of " + len + " bytes, " +
+                    buf.remaining() + " bytes left.");
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, "UTF-8");
+    }
+}
+
+
+class ArchiveWriterDTP {
+    private final RandomAccessFile file;
+    private final List<Long> offsets = new ArrayList<Long>();
+    private final List<Integer> lengths = new ArrayList<Integer>();
+    private final List<String> images = new ArrayList<String>();
+    private final List<String> ids = new ArrayList<String>();
+    private long end;
+
+
+    // Opens 'f' for appending, or creates it. Records are appended at the
+    // end of the file; close() appends the index and then points the header
+    // to it. An archive of an earlier version is first rewritten.
+    ArchiveWriterDTP(File f) throws IOException {
+        boolean exists = f.isFile() && f.length() > 0;
+
+        if (exists && readIndex(f) < ArchiveDTP.VERSION) {
+            upgrade(f);
+            offsets.clear();
+            lengths.clear();
+            images.clear();
+            ids.clear();
+            readIndex(f);
+        }
+        file = new RandomAccessFile(f, "rw");
+        if (exists) {
+            end = file.length();
+        } else {
+            // An empty index, so that the archive is valid from the start
+            file.setLength(0);
+            file.writeInt(ArchiveDTP.MAGIC);
+            file.writeInt(ArchiveDTP.VERSION);
+            file.writeLong(ArchiveDTP.HEADER_SIZE);
+            file.writeInt(0);
+            end = file.getFilePointer();
+        }
+    }
+
+    // Reads the index of 'f' into the lists; returns the version of f.
+    private int readIndex(File f) throws IOException {
+        ArchiveReaderDTP reader = new ArchiveReaderDTP(f);
+
+        try {
+            for (int i = 0; i < reader.size(); i++) {
+                offsets.add(reader.offsets[i]);
+                lengths.add(reader.lengths[i]);
+                images.add(reader.images[i]);
+                ids.add(reader.ids[i]);
+            }
+            return reader.version;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Rewrites archive 'f' in the current version, by way of a temporary
+    // file.
+    private static void upgrade(File f) throws IOException {
+        File tmp = SaveQueueDTP.createTempFile(f);
+
+        try {
+            ArchiveReaderDTP reader = new ArchiveReaderDTP(f);
+            try {
+                ArchiveWriterDTP writer = new ArchiveWriterDTP(tmp);
+                try {
+                    for (int i = 0; i < reader.size(); i++) {
+                        writer.append(reader.read(i));
+                    }
+                } finally {
+                    writer.close();
+                }
+            } finally {
+                reader.close();
+            }
+            SaveQueueDTP.rename(tmp, f);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    void append(ProfileRecordDTP r) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int ncomp = r.components.size();
+
+        out.writeInt(ArchiveDTP.RECORD_MAGIC);
+        ArchiveDTP.putString(out, r.image);
+        ArchiveDTP.putString(out, r.id);
+        ArchiveDTP.putString(out, r.comment);
+        ArchiveDTP.putString(out, r.unit);
+        out.writeDouble(r.pixelwidth);
+        out.writeLong(r.seed);
+        ArchiveDTP.putString(out, r.pathNote);
+        out.writeInt(r.slice);
+        out.writeInt(r.channel);
+        out.writeInt(ncomp);
+        // The directory has fixed-size entries, so data offsets are known up front
+        int offset = out.size() + ncomp * 9;
+        for (ComponentDTP c : r.components) {
+            out.writeByte(c.type.ordinal());
+            out.writeInt(c.n);
+            out.writeInt(offset);
+            offset += c.n * 8;
+        }
+        for (ComponentDTP c : r.components) {
+            for (int i = 0; i < c.n; i++) {
+                out.writeFloat(c.x[i]);
+            }
+            for (int i = 0; i < c.n; i++) {
+                out.writeFloat(c.y[i]);
+            }
+        }
+        out.flush();
+        file.seek(end);
+        bytes.writeTo(new RandomAccessFileOutputStream(file));
+        offsets.add(end);
+        lengths.add(bytes.size());
+        images.add(r.image);
+        ids.add(r.id);
+        end += bytes.size();
+    }
+
+    // Forces the records to disk, appends the index and forces it, and only
+    // then points the header to the new index.
+    void close() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(offsets.size());
+            for (int i = 0; i < offsets.size(); i++) {
+                out.writeLong(offsets.get(i));
+                out.writeInt(lengths.get(i));
+                ArchiveDTP.putString(out, images.get(i));
+                ArchiveDTP.putString(out, ids.get(i));
+            }
+            out.flush();
+            file.getChannel().force(false);
+            file.seek(end);
+            bytes.writeTo(new RandomAccessFileOutputStream(file));
+            file.setLength(end + bytes.size());
+            file.getChannel().force(false);
+            file.seek(ArchiveDTP.HEADER_SIZE_V1);
+            file.writeLong(end);
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static class RandomAccessFileOutputStream extends OutputStream {
+        private final RandomAccessFile file;
+
+        RandomAccessFileOutputStream(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        public void write(int b) throws IOException {
+            file.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            file.write(b, off, len);
+        }
+    }
+}
+
+
+class ArchiveReaderDTP {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    int version;
+    long indexOffset;
+    long[] offsets;
+    int[] lengths;
+    String[] images, ids;
+
+
+    ArchiveReaderDTP(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        try {
+            long size = channel.size();
+            if (size < ArchiveDTP.HEADER_SIZE_V1 + 4) {
+                throw new IOException(f.getName() + " is not a DistToPath archive.");
+            }
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(size, ArchiveDTP.HEADER_SIZE));
+            if (head.getInt() != ArchiveDTP.MAGIC) {
+                throw new IOException(f.getName() + " is not a DistToPath archive.");
+            }
+            version = head.getInt();
+            if (version > ArchiveDTP.VERSION) {
+                throw new IOException(f.getName() + " was written by a newer version.");
+            }
+            long indexEnd = size;
+            if (version >= 2) {
+                indexOffset = head.getLong();
+            } else {
+                ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY,
+                        size - ArchiveDTP.TRAILER_SIZE, ArchiveDTP.TRAILER_SIZE);
+                indexOffset = tail.getLong();
+                if (tail.getInt() != ArchiveDTP.INDEX_MAGIC) {
+                    throw new IOException(f.getName() + " is not a DistToPath archive.");
+                }
+                indexEnd = size - ArchiveDTP.TRAILER_SIZE;
+            }
+            if (indexOffset < ArchiveDTP.HEADER_SIZE_V1 || indexOffset + 4 > indexEnd) {
+                throw new IOException(f.getName() + " is damaged: bad index offset.");
+            }
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    indexEnd - indexOffset);
+            int n = index.getInt();
+            // An entry takes at least 20 bytes
+            if (n < 0 || 20L * n > index.remaining()) {
+                throw new IOException(f.getName() + " is damaged: bad index size.");
+            }
+            offsets = new long[n];
+            lengths = new int[n];
+            images = new String[n];
+            ids = new String[n];
+            for (int i = 0; i < n; i++) {
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                images[i] = ArchiveDTP.getString(index);
+                ids[i] = ArchiveDTP.getString(index);
+                if (offsets[i] < ArchiveDTP.HEADER_SIZE_V1 || lengths[i] < 4 ||
+                        offsets[i] + lengths[i] > indexOffset) {
+                    throw new IOException(f.getName() + " is damaged: bad record " + i + " in index.");
+                }
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (RuntimeException e) {
+            file.close();
+            throw new IOException(f.getName() + " is damaged: " + e);
+        }
+    }
+
+    int size() {
+        return offsets.length;
+    }
+
+    // Returns the index of the first profile with the given image and ID, or -1.
+    int find(String image, String id) {
+        for (int i = 0; i < offsets.length; i++) {
+            if (images[i].equals(image) && ids[i].equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private MappedByteBuffer map(int i) throws IOException {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], lengths[i]);
+        if (buf.getInt() != ArchiveDTP.RECORD_MAGIC) {
+            throw new IOException("Archive record " + i + " is damaged.");
+        }
+        return buf;
+    }
+
+    ProfileRecordDTP read(int i) throws IOException {
+        ProfileRecordDTP r = new ProfileRecordDTP();
+        MappedByteBuffer buf = map(i);
+
+        try {
+            r.image = ArchiveDTP.getString(buf);
+            r.id = ArchiveDTP.getString(buf);
+            r.comment = ArchiveDTP.getString(buf);
+            r.unit = ArchiveDTP.getString(buf);
+            r.pixelwidth = buf.getDouble();
+            r.seed = buf.getLong();
+            if (version >= 3) {
+                r.pathNote = ArchiveDTP.getString(buf);
+                r.slice = buf.getInt();
+                r.channel = buf.getInt();
+            }
+            int ncomp = buf.getInt();
+            for (int k = 0; k < ncomp; k++) {
+                ComponentTypeDTP t = getType(buf.get(), i);
+                int n = buf.getInt();
+                int offset = buf.getInt();
+                checkColumns(buf, offset, n, i);
+                r.components.add(new ComponentDTP(t, readColumn(buf, offset, n),
+                        readColumn(buf, offset + 4 * n, n), n));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Archive record " + i + " is damaged: " + e);
+        }
+        return r;
+    }
+
+    // Returns {x, y} of the k:th component of type 't' of profile i, or null
+    // if there is no such component. Only the record directory and the
+    // column itself are read.
+    float[][] readColumn(int i, ComponentTypeDTP t, int k) throws IOException {
+        MappedByteBuffer buf = map(i);
+
+        try {
+            for (int s = 0; s < 4; s++) {   // skip image, id, comment and unit
+                buf.position(buf.position() + buf.getInt());
+            }
+            buf.position(buf.position() + 16);  // pixelwidth, seed
+            if (version >= 3) {
+                buf.position(buf.position() + buf.getInt() + 8);   // path note, slice, channel
+            }
+            int ncomp = buf.getInt();
+            for (int c = 0; c < ncomp; c++) {
+                ComponentTypeDTP type = getType(buf.get(), i);
+                int n = buf.getInt();
+                int offset = buf.getInt();
+                if (type == t && k-- == 0) {
+                    checkColumns(buf, offset, n, i);
+                    return new float[][] {readColumn(buf, offset, n), readColumn(buf, offset + 4 * n, n)};
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Archive record " + i + " is damaged: " + e);
+        }
+        return null;
+    }
+
+    private static ComponentTypeDTP getType(byte b, int i) throws IOException {
+        ComponentTypeDTP[] types = ComponentTypeDTP.values();
+
+        if (b < 0 || b >= types.length) {
+            throw new IOException("Archive record " + i + " is damaged: component type " + b + ".");
+        }
+        return types[b];
+    }
+
+    private static void checkColumns(ByteBuffer buf, int offset, int n, int i) throws IOException {
+        if (n < 0 || offset < 0 || offset + 8L * n > buf.limit()) {
+            throw new IOException("Archive record " + i + " is damaged: component outside the record.");
+        }
+    }
+
+    private static float[] readColumn(ByteBuffer buf, int offset, int n) {
+        float[] a = new float[n];
+        ByteBuffer dup = buf.duplicate();
+
+        dup.position(offset);
+        dup.asFloatBuffer().get(a);
+        return a;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+}
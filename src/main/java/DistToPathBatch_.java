@@ -0,0 +1,393 @@
+/*
+    plugin : DistToPathBatch_.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    This ImageJ plugin is for use in conjunction with DistToPath.py.
+
+    Batch mode for DistToPath: converts a folder of micrographs, whose profile
+    components are stored as named ROIs (in the image overlay or in a
+    RoiManager zip file next to the image), into .dtp files without showing
+    any dialogs. It can also be run outside ImageJ, e.g.
+
+        java -cp ij.jar:DistToPath_.jar DistToPathBatch_ input=/data threads=8
+
+    which exits with status 1 if the batch could not be run or any image
+    ended in an error.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.GraphicsEnvironment;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import ij.*;
+import ij.io.*;
+import ij.gui.*;
+import ij.plugin.PlugIn;
+
+
+public class DistToPathBatch_ implements PlugIn {
+
+    static final String[] imageExtensions = {".tif", ".tiff", ".png", ".jpg", ".jpeg", ".gif", ".bmp"};
+    static final String reportName = "DistToPath_batch.txt";
+
+    String inputDir = "";
+    String outputDir = "";
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    int firstProfileN = 1;
+    boolean strict = false;
+    boolean saveAnalyzed = true;
+    String analyzedFormat = OptionsDTP.analyzedFormats[0];
+
+
+    public void run(String arg) {
+        String options = Macro.getOptions();
+
+        if (options != null || GraphicsEnvironment.isHeadless()) {
+            if (!parseOptions(options)) {
+                return;
+            }
+        } else if (!showDialog()) {
+            return;
+        }
+        runBatch();
+    }
+
+    boolean showDialog() {
+        String dir = IJ.getDirectory("Choose folder with annotated images");
+        if (dir == null) {
+            return false;
+        }
+        GenericDialog gd = new GenericDialog("DistToPath batch");
+        gd.addStringField("Output folder:", dir, 30);
+        gd.addNumericField("Threads:", nThreads, 0);
+        gd.addNumericField("First profile n:", firstProfileN, 0);
+        gd.addCheckbox("Skip profiles with warnings", strict);
+        gd.addCheckbox("Save analyzed images", saveAnalyzed);
+        gd.addChoice("Analyzed image:", OptionsDTP.analyzedFormats, analyzedFormat);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return false;
+        }
+        inputDir = dir;
+        outputDir = gd.getNextString();
+        nThreads = (int) gd.getNextNumber();
+        firstProfileN = (int) gd.getNextNumber();
+        strict = gd.getNextBoolean();
+        saveAnalyzed = gd.getNextBoolean();
+        analyzedFormat = gd.getNextChoice();
+        return true;
+    }
+
+    // Parses macro-style options, e.g. "input=/data output=/out threads=4 first=1
+    // format=png strict".
+    boolean parseOptions(String options) {
+        // Macro.getValue() expects every value to be followed by a space
+        options = options == null ? "" : options.trim() + " ";
+        if (Macro.getValue(options, "input", null) == null) {
+            IJ.log("DistToPath batch: usage: input=<folder> [output=<folder>] " +
+                    "[threads=<n>] [first=<profile n>] [format=tiff|lzw|deflate|jpeg|png] " +
+                    "[strict] [noanalyzed]");
+            return false;
+        }
+        String padded = " " + options;
+        inputDir = Macro.getValue(options, "input", "");
+        outputDir = Macro.getValue(options, "output", inputDir);
+        String format = Macro.getValue(options, "format", DistToPathRender_.formatNames[0]);
+        int k = Arrays.asList(DistToPathRender_.formatNames).indexOf(format.toLowerCase(Locale.US));
+        if (k < 0) {
+            IJ.log("DistToPath batch: unknown format " + format);
+            return false;
+        }
+        analyzedFormat = OptionsDTP.analyzedFormats[k];
+        try {
+            nThreads = Integer.parseInt(Macro.getValue(options, "threads", IJ.d2s(nThreads, 0)));
+            firstProfileN = Integer.parseInt(Macro.getValue(options, "first", IJ.d2s(firstProfileN, 0)));
+        } catch (NumberFormatException e) {
+            IJ.log("DistToPath batch: threads and first must be integers.");
+            return false;
+        }
+        strict = padded.contains(" strict ");
+        saveAnalyzed = !padded.contains(" noanalyzed ");
+        return true;
+    }
+
+    // Returns false if the batch could not be run or any image ended in an
+    // error, so that scripts can tell from the exit status of main().
+    public boolean runBatch() {
+        File in = new File(inputDir);
+        File out = new File(outputDir.equals("") ? inputDir : outputDir);
+
+        if (!in.isDirectory()) {
+            IJ.log("DistToPath batch: not a folder: " + in);
+            return false;
+        }
+        if (!out.isDirectory() && !out.mkdirs()) {
+            IJ.log("DistToPath batch: could not create output folder " + out);
+            return false;
+        }
+        File[] images = listImages(in);
+        IJ.log("DistToPath batch: " + images.length + " images in " + in +
+                ", " + Math.max(1, nThreads) + " threads");
+        long start = System.currentTimeMillis();
+        BatchResultDTP[] results;
+        try {
+            results = process(images, out);
+        } catch (InterruptedException e) {
+            IJ.log("DistToPath batch: interrupted.");
+            return false;
+        }
+        int nok = 0, nerr = 0;
+        for (BatchResultDTP r : results) {
+            if (r.isSaved()) {
+                nok++;
+            } else if (r.status.equals(BatchResultDTP.ERROR)) {
+                nerr++;
+            }
+        }
+        writeReport(results, new File(out, reportName));
+        IJ.log("DistToPath batch: " + nok + " of " + results.length + " profiles saved in " +
+                IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1) + " s.");
+        return nerr == 0;
+    }
+
+    // Returns the image files in 'dir' sorted by name, so that profile numbers
+    // only depend on the folder contents. Analyzed images, in any of the
+    // analyzed formats (.a.tif, .a.jpg, .a.png), are skipped.
+    static File[] listImages(File dir) {
+        List<File> images = new ArrayList<File>();
+        File[] files = dir.listFiles();
+
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            String name = f.getName().toLowerCase();
+            if (!f.isFile() || isAnalyzed(name)) {
+                continue;
+            }
+            for (String ext : imageExtensions) {
+                if (name.endsWith(ext)) {
+                    images.add(f);
+                    break;
+                }
+            }
+        }
+        return images.toArray(new File[images.size()]);
+    }
+
+    private static boolean isAnalyzed(String name) {
+        for (String format : OptionsDTP.analyzedFormats) {
+            if (name.endsWith(ProfileDataDTP.getAnalyzedExtension(format))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Processes 'images' on a pool of worker threads. Profile n (ntot) is the
+    // position of the image in the sorted file list plus firstProfileN, so it
+    // does not depend on the order in which the workers finish.
+    BatchResultDTP[] process(File[] images, final File out) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        List<Future<BatchResultDTP>> futures = new ArrayList<Future<BatchResultDTP>>();
+        BatchResultDTP[] results = new BatchResultDTP[images.length];
+        int i;
+
+        try {
+            for (i = 0; i < images.length; i++) {
+                final File f = images[i];
+                final int ntot = firstProfileN + i;
+                futures.add(pool.submit(new Callable<BatchResultDTP>() {
+                    public BatchResultDTP call() {
+                        return processImage(f, ntot, out);
+                    }
+                }));
+            }
+            for (i = 0; i < images.length; i++) {
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    results[i] = new BatchResultDTP(images[i], firstProfileN + i,
+                            BatchResultDTP.ERROR, String.valueOf(e.getCause()));
+                }
+                IJ.log(results[i].toString());
+                IJ.showProgress(i + 1, images.length);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    BatchResultDTP processImage(File f, int ntot, File out) {
+        List<String> errors = new ArrayList<String>();
+        List<String> warnings = new ArrayList<String>();
+        String status = BatchResultDTP.OK;
+
+        ImagePlus imp;
+        try {
+            imp = IJ.openImage(f.getPath());
+        } catch (RuntimeException e) {
+            return new BatchResultDTP(f, ntot, BatchResultDTP.ERROR, "Could not open image: " + e);
+        }
+        if (imp == null) {
+            return new BatchResultDTP(f, ntot, BatchResultDTP.ERROR, "Could not open image.");
+        }
+        try {
+            ProfileDataDTP profile = new ProfileDataDTP();
+            if (profile.addNamedComponents(loadRois(f, imp)) == 0) {
+                return new BatchResultDTP(f, ntot, BatchResultDTP.SKIPPED,
+                        "No profile components found.");
+            }
+            if (!profile.validate(imp, errors, warnings)) {
+                return new BatchResultDTP(f, ntot, BatchResultDTP.ERROR, join(errors));
+            }
+            if (!warnings.isEmpty()) {
+                if (strict) {
+                    return new BatchResultDTP(f, ntot, BatchResultDTP.SKIPPED, join(warnings));
+                }
+                status = BatchResultDTP.WARNING;
+            }
+            profile.ntot = ntot;
+            profile.n = 1;
+            profile.prevImg = imp.getTitle();
+            profile.ID = IJ.d2s(ntot, 0);
+            profile.writeProfile(imp, new File(out, imp.getTitle() + "." +
+                    IJ.d2s(profile.n, 0) + ".dtp").getPath());
+            if (saveAnalyzed) {
+                profile.analyzedFormat = analyzedFormat;
+                profile.writeAnalyzedImage(imp, new File(out, imp.getShortTitle() +
+                        profile.getAnalyzedExtension()).getPath());
+            }
+            return new BatchResultDTP(f, ntot, status, join(warnings));
+        } catch (IOException e) {
+            return new BatchResultDTP(f, ntot, BatchResultDTP.ERROR, e.getMessage());
+        } catch (RuntimeException e) {
+            // Reported with the image, like any other failure of the image
+            return new BatchResultDTP(f, ntot, BatchResultDTP.ERROR, String.valueOf(e));
+        } finally {
+            imp.flush();
+        }
+    }
+
+    // Returns the ROIs of the image overlay or, if there is no overlay, those in
+    // a RoiManager zip file named after the image.
+    static Roi[] loadRois(File f, ImagePlus imp) throws IOException {
+        Overlay overlay = imp.getOverlay();
+
+        if (overlay != null && overlay.size() > 0) {
+            return overlay.toArray();
+        }
+        File dir = f.getParentFile();
+        File[] candidates = {new File(dir, imp.getShortTitle() + ".zip"),
+                new File(dir, f.getName() + ".zip")};
+        for (File zip : candidates) {
+            if (zip.isFile()) {
+                return readRoiZip(zip);
+            }
+        }
+        return new Roi[0];
+    }
+
+    static Roi[] readRoiZip(File zip) throws IOException {
+        List<Roi> rois = new ArrayList<Roi>();
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(zip)));
+        byte[] buf = new byte[8192];
+        ZipEntry entry;
+
+        try {
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (!name.endsWith(".roi")) {
+                    continue;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                int len;
+                while ((len = in.read(buf)) > 0) {
+                    bytes.write(buf, 0, len);
+                }
+                Roi roi = new RoiDecoder(bytes.toByteArray(), name).getRoi();
+                if (roi != null) {
+                    rois.add(roi);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return rois.toArray(new Roi[rois.size()]);
+    }
+
+    static void writeReport(BatchResultDTP[] results, File f) {
+        try {
+            PrintWriter outf = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+            outf.println("file\tprofile_n\tstatus\tmessage");
+            for (BatchResultDTP r : results) {
+                outf.println(r.file.getName() + "\t" + r.ntot + "\t" + r.status + "\t" + r.message);
+            }
+            outf.close();
+        } catch (IOException e) {
+            IJ.log("DistToPath batch: could not write report: " + e.getMessage());
+        }
+    }
+
+    static String join(List<String> strings) {
+        StringBuilder sb = new StringBuilder();
+
+        for (String s : strings) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+
+    public static void main(String[] args) {
+        DistToPathBatch_ batch = new DistToPathBatch_();
+
+        boolean ok = batch.parseOptions(join(Arrays.asList(args))) && batch.runBatch();
+        System.exit(ok ? 0 : 1);
+    }
+
+} // end of DistToPathBatch_
+
+
+class BatchResultDTP {
+    static final String OK = "OK";
+    static final String WARNING = "WARNING";
+    static final String SKIPPED = "SKIPPED";
+    static final String ERROR = "ERROR";
+
+    File file;
+    int ntot;
+    String status, message;
+
+    BatchResultDTP(File file, int ntot, String status, String message) {
+        this.file = file;
+        this.ntot = ntot;
+        this.status = status;
+        this.message = message == null ? "" : message;
+    }
+
+    boolean isSaved() {
+        return status.equals(OK) || status.equals(WARNING);
+    }
+
+    public String toString() {
+        return status + "\t" + file.getName() + " (profile n " + ntot + ")" +
+                (message.equals("") ? "" : ": " + message);
+    }
+}
@@ -0,0 +1,382 @@
+/*
+    plugin : DistToPathRender_.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Re-renders the analyzed images of a folder tree of saved profiles: each
+    .dtp file is paired with its image (by the IMAGE line, in the folder of
+    the profile or in a given image folder) and the profile is burned into
+    it as when it was saved, in the analyzed image format chosen. Analyzed
+    images are named after their profile files, e.g. img.tif.1.a.tif for
+    img.tif.1.dtp, and are skipped if they are newer than both the profile
+    and the image. It can also be run outside ImageJ, e.g.
+
+        java -cp ij.jar:DistToPath_.jar DistToPathRender_ input=/data threads=8
+
+    which exits with status 1 if any profile could not be rendered.
+
+    Images are rendered in parallel, each image once for all its profiles.
+    The decoded size of each image is estimated from its header, and an
+    image is only opened when its estimate fits in the memory left by the
+    images being rendered; images that would take more than half of the
+    budget are burned one band of tiles at a time, if they are plain TIFF
+    files.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.GraphicsEnvironment;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.plugin.PlugIn;
+
+
+public class DistToPathRender_ implements PlugIn {
+
+    static final String[] formatNames = {"tiff", "lzw", "deflate", "jpeg", "png"};
+
+    String inputDir = "";
+    String imageDir = "";        // "" for the folder of each profile
+    String outputDir = "";       // "" for the folder of each profile
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    long memoryBudget = Runtime.getRuntime().maxMemory() / 2;     // bytes
+    String analyzedFormat = "TIFF";
+    boolean force = false;
+    private Semaphore memory;
+
+
+    public void run(String arg) {
+        String options = Macro.getOptions();
+
+        if (options != null || GraphicsEnvironment.isHeadless()) {
+            if (!parseOptions(options)) {
+                return;
+            }
+        } else if (!showDialog()) {
+            return;
+        }
+        runRender();
+    }
+
+    boolean showDialog() {
+        String dir = IJ.getDirectory("Choose folder of profiles");
+        if (dir == null) {
+            return false;
+        }
+        GenericDialog gd = new GenericDialog("DistToPath render");
+        gd.addStringField("Image folder (empty = with profiles):", "", 30);
+        gd.addStringField("Output folder (empty = with profiles):", "", 30);
+        gd.addChoice("Analyzed image:", OptionsDTP.analyzedFormats, analyzedFormat);
+        gd.addNumericField("Threads:", nThreads, 0);
+        gd.addNumericField("Memory budget (MB):", memoryBudget >> 20, 0);
+        gd.addCheckbox("Render all, also if up to date", force);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return false;
+        }
+        inputDir = dir;
+        imageDir = gd.getNextString().trim();
+        outputDir = gd.getNextString().trim();
+        analyzedFormat = gd.getNextChoice();
+        nThreads = (int) gd.getNextNumber();
+        memoryBudget = Math.max(16, (long) gd.getNextNumber()) << 20;
+        force = gd.getNextBoolean();
+        return true;
+    }
+
+    // Parses macro-style options, e.g. "input=/data images=/raw output=/out
+    // threads=4 format=png memory=2048 force".
+    boolean parseOptions(String options) {
+        // Macro.getValue() expects every value to be followed by a space
+        options = options == null ? "" : options.trim() + " ";
+        if (Macro.getValue(options, "input", null) == null) {
+            IJ.log("DistToPath render: usage: input=<folder> [images=<folder>] [output=<folder>] " +
+                    "[threads=<n>] [format=tiff|lzw|deflate|jpeg|png] [memory=<MB>] [force]");
+            return false;
+        }
+        inputDir = Macro.getValue(options, "input", "");
+        imageDir = Macro.getValue(options, "images", "");
+        outputDir = Macro.getValue(options, "output", "");
+        String format = Macro.getValue(options, "format", formatNames[0]);
+        int k = Arrays.asList(formatNames).indexOf(format.toLowerCase(Locale.US));
+        if (k < 0) {
+            IJ.log("DistToPath render: unknown format " + format);
+            return false;
+        }
+        analyzedFormat = OptionsDTP.analyzedFormats[k];
+        try {
+            nThreads = Integer.parseInt(Macro.getValue(options, "threads", IJ.d2s(nThreads, 0)));
+            memoryBudget = Math.max(16, Long.parseLong(Macro.getValue(options, "memory",
+                    Long.toString(memoryBudget >> 20)))) << 20;
+        } catch (NumberFormatException e) {
+            IJ.log("DistToPath render: threads and memory must be integers.");
+            return false;
+        }
+        force = (" " + options).contains(" force ");
+        return true;
+    }
+
+    // Returns false if the profiles could not be rendered or any of them
+    // failed, so that scripts can tell from the exit status of main().
+    public boolean runRender() {
+        File in = new File(inputDir);
+        CatalogDTP catalog = new CatalogDTP(in);
+
+        if (!in.isDirectory()) {
+            IJ.log("DistToPath render: not a folder: " + in);
+            return false;
+        }
+        if (!outputDir.equals("") && !new File(outputDir).isDirectory() && !new File(outputDir).mkdirs()) {
+            IJ.log("DistToPath render: could not create output folder " + outputDir);
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            catalog.update();
+        } catch (Exception e) {
+            IJ.log("DistToPath render: could not list profiles: " + e.getMessage());
+            return false;
+        }
+        // Profiles by their image file, so that each image is opened once
+        Map<File, List<File>> byImage = new TreeMap<File, List<File>>();
+        for (CatalogDTP.Entry e : catalog.getEntries()) {
+            File profile = catalog.getFile(e);
+            File image = new File(imageDir.equals("") ? profile.getParentFile() : new File(imageDir), e.image);
+            List<File> l = byImage.get(image);
+            if (l == null) {
+                l = new ArrayList<File>();
+                byImage.put(image, l);
+            }
+            l.add(profile);
+        }
+        IJ.log("DistToPath render: " + catalog.getEntries().size() + " profiles of " + byImage.size() +
+                " images in " + in + ", " + Math.max(1, nThreads) + " threads");
+        int[] counts;
+        try {
+            counts = render(byImage);
+        } catch (InterruptedException e) {
+            IJ.log("DistToPath render: interrupted.");
+            return false;
+        }
+        IJ.log("DistToPath render: " + counts[0] + " rendered, " + counts[1] + " up to date, " +
+                counts[2] + " failed, in " + IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1) +
+                " s.");
+        return counts[2] == 0;
+    }
+
+    // Renders the profiles of each image on a pool of worker threads.
+    // Returns the number of profiles rendered, up to date and failed.
+    int[] render(Map<File, List<File>> byImage) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+        int[] counts = new int[3];
+        int i = 0;
+
+        memory = new Semaphore((int) (memoryBudget >> 20), true);
+        try {
+            for (final Map.Entry<File, List<File>> m : byImage.entrySet()) {
+                futures.add(pool.submit(new Callable<List<String>>() {
+                    public List<String> call() throws InterruptedException {
+                        return renderImage(m.getKey(), m.getValue());
+                    }
+                }));
+            }
+            for (Future<List<String>> f : futures) {
+                List<String> results;
+                try {
+                    results = f.get();
+                } catch (ExecutionException e) {
+                    results = Collections.singletonList(BatchResultDTP.ERROR + "\t" + e.getCause());
+                }
+                for (String r : results) {
+                    counts[r.startsWith(BatchResultDTP.OK) ? 0 :
+                            r.startsWith(BatchResultDTP.SKIPPED) ? 1 : 2]++;
+                    if (!r.startsWith(BatchResultDTP.SKIPPED)) {
+                        IJ.log(r);
+                    }
+                }
+                IJ.showProgress(++i, futures.size());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return counts;
+    }
+
+    // Renders the profiles drawn on 'image', opening it only if some analyzed
+    // image is out of date. Returns a status line for each profile.
+    List<String> renderImage(File image, List<File> profiles) throws InterruptedException {
+        List<String> results = new ArrayList<String>();
+        List<File> todo = new ArrayList<File>();
+
+        for (File p : profiles) {
+            File out = getOutput(p);
+            if (!force && out.lastModified() > Math.max(p.lastModified(), image.lastModified())) {
+                results.add(BatchResultDTP.SKIPPED + "\t" + p.getName());
+            } else {
+                todo.add(p);
+            }
+        }
+        if (todo.isEmpty()) {
+            return results;
+        }
+        if (!image.isFile()) {
+            for (File p : todo) {
+                results.add(BatchResultDTP.ERROR + "\t" + p.getName() + ": image " + image + " not found.");
+            }
+            return results;
+        }
+        TiledImageDTP src = null;
+        long need = estimateBytes(image);
+        if (need > memoryBudget / 2) {
+            try {
+                src = TiledImageDTP.open(image);
+                need = (long) TiledImageDTP.maxOverviewSize * TiledImageDTP.maxOverviewSize * 5 +
+                        (long) TiledImageDTP.tileSize * src.width * 8;
+            } catch (IOException e) {
+                // Not a plain TIFF; it is opened whole
+            }
+        }
+        int permits = (int) Math.max(1, Math.min(memoryBudget, need) >> 20);
+        memory.acquire(permits);
+        ImagePlus imp = null;
+        try {
+            imp = src != null ? src.createOverview() : IJ.openImage(image.getPath());
+            if (imp == null) {
+                throw new IOException("could not open image " + image.getName());
+            }
+            for (File p : todo) {
+                results.add(renderProfile(p, imp));
+            }
+        } catch (IOException e) {
+            for (File p : todo) {
+                results.add(BatchResultDTP.ERROR + "\t" + p.getName() + ": " + e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            // The image could not be opened; each of its profiles is reported
+            for (File p : todo) {
+                results.add(BatchResultDTP.ERROR + "\t" + p.getName() + ": " + e);
+            }
+        } finally {
+            memory.release(permits);
+            if (imp != null) {
+                imp.flush();
+            }
+            if (src != null) {
+                try {
+                    src.close();
+                } catch (IOException e) {
+                    // Only read from
+                }
+            }
+        }
+        return results;
+    }
+
+    String renderProfile(File p, ImagePlus imp) {
+        File out = getOutput(p);
+
+        try {
+            ProfileRecordDTP r = ProfileRecordDTP.read(p);
+            ProfileDataDTP profile = new ProfileDataDTP();
+            profile.analyzedFormat = analyzedFormat;
+            if (r.slice < 0 || r.slice > imp.getStackSize()) {
+                return BatchResultDTP.ERROR + "\t" + p.getName() + ": slice " + r.slice +
+                        " not in image of " + imp.getStackSize() + " slices.";
+            }
+            profile.bind(imp, r.slice, null);
+            String warning = profile.load(r, imp);
+            File tmp = SaveQueueDTP.createTempFile(out);
+            try {
+                profile.writeAnalyzedImage(imp, tmp.getPath());
+                SaveQueueDTP.rename(tmp, out);
+            } finally {
+                tmp.delete();
+            }
+            return BatchResultDTP.OK + "\t" + p.getName() + " -> " + out.getName() +
+                    (warning.equals("") ? "" : ": " + warning);
+        } catch (IOException e) {
+            return BatchResultDTP.ERROR + "\t" + p.getName() + ": " + e.getMessage();
+        } catch (RuntimeException e) {
+            // Only this profile failed; the other profiles of the image are rendered
+            return BatchResultDTP.ERROR + "\t" + p.getName() + ": " + e;
+        }
+    }
+
+    // The analyzed image of profile file 'p': named after p, in the output
+    // folder or else next to p.
+    File getOutput(File p) {
+        String name = p.getName();
+        if (name.endsWith(".dtp")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        ProfileDataDTP formats = new ProfileDataDTP();
+        formats.analyzedFormat = analyzedFormat;
+        name += formats.getAnalyzedExtension();
+        return new File(outputDir.equals("") ? p.getParentFile() : new File(outputDir), name);
+    }
+
+    // Estimates the memory needed to render 'f' whole: the decoded image and
+    // its RGB copy. The size is read from the header, without decoding.
+    static long estimateBytes(File f) {
+        long w = 0, h = 0, n = 1;
+        int bytes = 4;
+
+        try {
+            FileInfo[] info = new TiffDecoder(f.getParent() + File.separator, f.getName()).getTiffInfo();
+            if (info != null && info.length > 0) {
+                w = info[0].width;
+                h = info[0].height;
+                n = Math.max(info.length, info[0].nImages);
+                bytes = info[0].getBytesPerPixel();
+            }
+        } catch (IOException e) {
+            // Not a TIFF file
+        }
+        if (w == 0) {
+            try {
+                ImageInputStream in = ImageIO.createImageInputStream(f);
+                try {
+                    Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                    if (readers.hasNext()) {
+                        ImageReader reader = readers.next();
+                        reader.setInput(in);
+                        w = reader.getWidth(0);
+                        h = reader.getHeight(0);
+                        reader.dispose();
+                    }
+                } finally {
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+            } catch (IOException e) {
+                // Unknown format; estimated from the file size below
+            }
+        }
+        if (w == 0) {
+            return f.length() * 8;
+        }
+        return w * h * (n * bytes + 4);
+    }
+
+
+    public static void main(String[] args) {
+        DistToPathRender_ render = new DistToPathRender_();
+
+        boolean ok = render.parseOptions(DistToPathBatch_.join(Arrays.asList(args))) && render.runRender();
+        System.exit(ok ? 0 : 1);
+    }
+
+} // end of DistToPathRender_
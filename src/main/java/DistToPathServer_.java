@@ -0,0 +1,515 @@
+/*
+    plugin : DistToPathServer_.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Analysis server mode for DistToPath: a long-running HTTP service on the
+    loopback interface, so that annotation stations and scripts can have
+    profiles checked and measured without starting ImageJ for each one. It
+    can be started from the Plugins menu (running it again stops it) or
+    outside ImageJ, e.g.
+
+        java -cp ij.jar:DistToPath_.jar DistToPathServer_ port=8765 threads=4
+
+    A profile is posted as the body of a request, in .dtp text format or in
+    the binary form of ProfileRecordDTP (recognized by its magic number):
+
+        POST /validate              errors and warnings, as JSON
+        POST /distances             distances of points and random points to
+                                    the path, in pixels and in the unit of
+                                    the profile, as JSON
+        POST /preview?size=512      the profile drawn on its image, as PNG
+        GET  /stats                 latency and throughput of each request
+                                    type, as JSON (or CSV with ?format=csv)
+
+    The image of the profile is opened if its path is given as ?image=...,
+    relative to the image folder the server was started with (images=...);
+    without an image folder no images are opened. Otherwise the profile is
+    drawn on a blank image that just holds it, up to a fixed size; a preview
+    is then drawn on a blank canvas of the preview size only. Coordinates
+    and pixel widths that are not finite numbers are refused. Requests
+    whose Host header is not the loopback address or localhost, with the
+    port of the server, are refused, so that web pages cannot reach the
+    server through a rebound host name.
+    Requests are served by a fixed pool of worker threads; when all of them
+    are busy and the queue is full, the connection thread serves the
+    request, so that clients are slowed down rather than refused. Nothing is
+    written to disk.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.GraphicsEnvironment;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+import com.sun.net.httpserver.*;
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.plugin.PlugIn;
+
+
+public class DistToPathServer_ implements PlugIn {
+
+    static final int maxRequestBytes = 64 << 20;
+    static final int margin = 16;            // pixels around a profile drawn on a blank image
+    static final int maxBlankSize = 16384;   // pixels, of each side of a blank image
+    static final String[] endpoints = {"/validate", "/distances", "/preview", "/stats"};
+    private static DistToPathServer_ running;
+
+    int port = 8765;
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    int queueSize = 64;
+    String imageDir = "";        // "" if no images are opened
+    private HttpServer server;
+    private ThreadPoolExecutor pool;
+    final MetricsDTP metrics = new MetricsDTP();
+
+
+    public void run(String arg) {
+        synchronized (DistToPathServer_.class) {
+            if (running != null) {
+                running.stop();
+                IJ.log("DistToPath server stopped.");
+                return;
+            }
+        }
+        String options = Macro.getOptions();
+        if (options != null || GraphicsEnvironment.isHeadless()) {
+            if (!parseOptions(options)) {
+                return;
+            }
+        } else if (!showDialog()) {
+            return;
+        }
+        try {
+            start();
+        } catch (IOException e) {
+            IJ.error("DistToPath", "Could not start server:\n" + e.getMessage());
+        }
+    }
+
+    boolean showDialog() {
+        GenericDialog gd = new GenericDialog("DistToPath server");
+        gd.addNumericField("Port:", port, 0);
+        gd.addNumericField("Worker threads:", nThreads, 0);
+        gd.addNumericField("Queued requests:", queueSize, 0);
+        gd.addStringField("Image folder (empty = none):", imageDir, 30);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return false;
+        }
+        port = (int) gd.getNextNumber();
+        nThreads = (int) gd.getNextNumber();
+        queueSize = (int) gd.getNextNumber();
+        imageDir = gd.getNextString().trim();
+        return true;
+    }
+
+    // Parses macro-style options, e.g. "port=8765 threads=4 queue=64
+    // images=/data".
+    boolean parseOptions(String options) {
+        // Macro.getValue() expects every value to be followed by a space
+        options = options == null ? "" : options.trim() + " ";
+        try {
+            port = Integer.parseInt(Macro.getValue(options, "port", IJ.d2s(port, 0)));
+            nThreads = Integer.parseInt(Macro.getValue(options, "threads", IJ.d2s(nThreads, 0)));
+            queueSize = Integer.parseInt(Macro.getValue(options, "queue", IJ.d2s(queueSize, 0)));
+        } catch (NumberFormatException e) {
+            IJ.log("DistToPath server: usage: [port=<n>] [threads=<n>] [queue=<n>] [images=<folder>]");
+            return false;
+        }
+        imageDir = Macro.getValue(options, "images", imageDir);
+        return true;
+    }
+
+    // Binds to the loopback interface only, so that the server cannot be
+    // reached from other hosts.
+    void start() throws IOException {
+        if (!imageDir.equals("") && !new File(imageDir).isDirectory()) {
+            throw new IOException("Not a folder: " + imageDir);
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        pool = new ThreadPoolExecutor(Math.max(1, nThreads), Math.max(1, nThreads), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+            int n = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DistToPath-server-" + ++n);
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        server.setExecutor(pool);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                serve(ex);
+            }
+        });
+        server.start();
+        synchronized (DistToPathServer_.class) {
+            running = this;
+        }
+        IJ.log("DistToPath server listening on http://127.0.0.1:" + server.getAddress().getPort() +
+                "/ (" + pool.getCorePoolSize() + " threads)");
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(1);
+        pool.shutdown();
+        synchronized (DistToPathServer_.class) {
+            if (running == this) {
+                running = null;
+            }
+        }
+    }
+
+
+    // Serves a request and times it under its path, or under "other" if it
+    // is not one of the endpoints; errors are returned to the client as
+    // plain text with the matching status.
+    void serve(HttpExchange ex) throws IOException {
+        String path = ex.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(ex.getRequestURI().getRawQuery());
+        String key = Arrays.asList(endpoints).contains(path) ? path : "other";
+        MetricsDTP.Sample sample = metrics.start(key);
+        ReplyDTP reply;
+
+        try {
+            if (!isLocalHost(ex.getRequestHeaders().getFirst("Host"))) {
+                reply = new ReplyDTP(403, "Host not allowed.");
+            } else if (path.equals("/stats")) {
+                reply = stats(query);
+            } else if (!path.equals("/validate") && !path.equals("/distances") &&
+                    !path.equals("/preview")) {
+                reply = new ReplyDTP(404, "Unknown request: " + path);
+            } else if (!ex.getRequestMethod().equals("POST")) {
+                reply = new ReplyDTP(405, "Profiles must be posted.");
+            } else {
+                ProfileRecordDTP r = readProfile(ex.getRequestBody());
+                if (path.equals("/distances")) {
+                    // Distances need no image
+                    reply = distances(r);
+                } else {
+                    String image = query.get("image");
+                    int[] blank = image == null ? blankSize(r) : null;
+                    ImagePlus imp;
+                    if (blank == null) {
+                        imp = openImage(image, imageDir);
+                    } else if (path.equals("/preview")) {
+                        // The preview is drawn on a blank canvas of its own size
+                        imp = blankImage(r, 1, 1);
+                    } else {
+                        imp = blankImage(r, blank[0], blank[1]);
+                    }
+                    ProfileDataDTP profile = new ProfileDataDTP();
+                    profile.load(r, imp);
+                    sample.pixels = blank == null ? (long) imp.getWidth() * imp.getHeight() :
+                            (long) blank[0] * blank[1];
+                    if (path.equals("/validate")) {
+                        reply = validate(profile, imp);
+                    } else {
+                        reply = preview(profile, imp, blank, query.get("size"));
+                    }
+                    imp.flush();
+                }
+                sample.components = r.components.size();
+                for (ComponentDTP c : r.components) {
+                    sample.points += c.n;
+                }
+            }
+        } catch (RequestExceptionDTP e) {
+            reply = new ReplyDTP(e.status, e.getMessage());
+        } catch (Exception e) {
+            reply = new ReplyDTP(500, String.valueOf(e));
+        }
+        try {
+            ex.getResponseHeaders().set("Content-Type", reply.type);
+            ex.sendResponseHeaders(reply.status, reply.body.length);
+            OutputStream out = ex.getResponseBody();
+            out.write(reply.body);
+            out.close();
+        } finally {
+            ex.close();
+            if (reply.status != 200) {
+                sample.name = key + " (" + reply.status + ")";
+            }
+            sample.stop(sample.pixels, sample.components, sample.points);
+        }
+    }
+
+    // Reads a profile in .dtp text format or in binary form.
+    static ProfileRecordDTP readProfile(InputStream body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int len;
+
+        while ((len = body.read(buf)) > 0) {
+            bytes.write(buf, 0, len);
+            if (bytes.size() > maxRequestBytes) {
+                throw new RequestExceptionDTP(413, "Profile larger than " + (maxRequestBytes >> 20) + " MB.");
+            }
+        }
+        byte[] b = bytes.toByteArray();
+        try {
+            int magic = b.length < 4 ? 0 : (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 |
+                    (b[2] & 0xff) << 8 | (b[3] & 0xff);
+            if (magic == ProfileRecordDTP.binaryMagic || magic == ProfileRecordDTP.binaryMagicV1) {
+                return ProfileRecordDTP.readBinary(b);
+            }
+            return ProfileRecordDTP.read(new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(b), "UTF-8")), "request");
+        } catch (IOException e) {
+            throw new RequestExceptionDTP(400, "Could not read profile: " + e.getMessage());
+        }
+    }
+
+    // Returns true if 'host' (a Host header) names this machine by its
+    // loopback address or as localhost, with the port of the server.
+    boolean isLocalHost(String host) {
+        String port = ":" + getPort();
+
+        return host != null && (host.equalsIgnoreCase("127.0.0.1" + port) ||
+                host.equalsIgnoreCase("localhost" + port));
+    }
+
+    // Opens the image at 'path' in folder 'dir'.
+    static ImagePlus openImage(String path, String dir) throws IOException {
+        if (dir.equals("")) {
+            throw new RequestExceptionDTP(403, "No image folder; the server was started without images=.");
+        }
+        File root = new File(dir).getCanonicalFile();
+        File f = new File(root, path).getCanonicalFile();
+        if (!f.getPath().startsWith(root.getPath() + File.separator)) {
+            throw new RequestExceptionDTP(403, "Image not in the image folder: " + path);
+        }
+        ImagePlus imp = f.isFile() ? IJ.openImage(f.getPath()) : null;
+        if (imp == null) {
+            throw new RequestExceptionDTP(400, "Could not open image " + path);
+        }
+        return imp;
+    }
+
+    // Returns the width and height of a blank image that holds the
+    // components of the profile, for profiles posted without an image.
+    static int[] blankSize(ProfileRecordDTP r) throws IOException {
+        float w = 0, h = 0;
+        for (ComponentDTP c : r.components) {
+            for (int i = 0; i < c.n; i++) {
+                w = Math.max(w, c.x[i]);
+                h = Math.max(h, c.y[i]);
+                if (!(c.x[i] + margin <= maxBlankSize && c.y[i] + margin <= maxBlankSize)) {
+                    throw new RequestExceptionDTP(400, "Coordinates beyond " + (maxBlankSize - margin) +
+                            " pixels need an image (?image=).");
+                }
+            }
+        }
+        return new int[] {(int) Math.ceil(w) + margin, (int) Math.ceil(h) + margin};
+    }
+
+    static ImagePlus blankImage(ProfileRecordDTP r, int width, int height) {
+        ImageProcessor ip = new ByteProcessor(width, height);
+        ip.invert();
+        return new ImagePlus(r.image.equals("") ? "profile" : r.image, ip);
+    }
+
+
+    static ReplyDTP validate(ProfileDataDTP profile, ImagePlus imp) {
+        List<String> errors = new ArrayList<String>();
+        List<String> warnings = new ArrayList<String>();
+        boolean valid = profile.validate(imp, errors, warnings);
+
+        return new ReplyDTP("{\"valid\": " + valid + ", \"errors\": " + json(errors) +
+                ", \"warnings\": " + json(warnings) + "}\n", "application/json");
+    }
+
+    // Lateral distance, position along the path and nearest segment of each
+    // point, as in the distance blocks of .dtp files.
+    static ReplyDTP distances(ProfileRecordDTP r) throws IOException {
+        DistanceEngineDTP engine = r.getDistanceEngine();
+        StringBuilder sb = new StringBuilder();
+
+        if (engine == null) {
+            throw new RequestExceptionDTP(422, "Path not defined.");
+        }
+        sb.append("{\"pixelwidth\": ").append(r.pixelwidth).append(", \"unit\": ")
+                .append(json(r.unit)).append(",\n");
+        sb.append(" \"points\": ");
+        appendDistances(sb, engine, r.get(ComponentTypeDTP.POINTS), r.pixelwidth);
+        sb.append(",\n \"random_points\": ");
+        appendDistances(sb, engine, r.get(ComponentTypeDTP.RANDOM_POINTS), r.pixelwidth);
+        return new ReplyDTP(sb.append("}\n").toString(), "application/json");
+    }
+
+    private static void appendDistances(StringBuilder sb, DistanceEngineDTP engine, ComponentDTP c,
+                                        double pixelwidth) {
+        sb.append('[');
+        if (c != null) {
+            double[][] d = engine.computeAll(c.x, c.y, c.n);
+            for (int i = 0; i < c.n; i++) {
+                sb.append(i == 0 ? "\n  " : ",\n  ");
+                sb.append(String.format(Locale.US, "{\"x\": %s, \"y\": %s, \"distance\": %.2f, " +
+                                "\"position\": %.2f, \"segment\": %d, \"scaled_distance\": %.3f, " +
+                                "\"scaled_position\": %.3f}",
+                        ProfileRecordDTP.coord(c.x[i]), ProfileRecordDTP.coord(c.y[i]), d[0][i],
+                        d[1][i], (int) d[2][i], d[0][i] * pixelwidth, d[1][i] * pixelwidth));
+            }
+        }
+        sb.append(']');
+    }
+
+    // Draws the profile on its image or, if 'blank' holds the size of a blank
+    // image, on a blank canvas of the preview size.
+    static ReplyDTP preview(ProfileDataDTP profile, ImagePlus imp, int[] blank, String size)
+            throws IOException {
+        int s;
+
+        try {
+            s = size == null ? profile.previewSize : Integer.parseInt(size);
+        } catch (NumberFormatException e) {
+            throw new RequestExceptionDTP(400, "Bad size: " + size);
+        }
+        s = Math.max(16, s);
+        ImagePlus preview = new ImagePlus(imp.getTitle(), blank == null ? profile.createPreview(imp, s) :
+                profile.createPreview(blank[0], blank[1], s));
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(preview.getBufferedImage(), "png", png);
+        preview.flush();
+        return new ReplyDTP(200, png.toByteArray(), "image/png");
+    }
+
+    ReplyDTP stats(Map<String, String> query) {
+        StringWriter s = new StringWriter();
+        PrintWriter out = new PrintWriter(s);
+        boolean csv = "csv".equals(query.get("format"));
+
+        metrics.write(out, csv);
+        out.flush();
+        return new ReplyDTP(s.toString(), csv ? "text/csv" : "application/json");
+    }
+
+
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> m = new HashMap<String, String>();
+
+        if (query == null) {
+            return m;
+        }
+        for (String kv : query.split("&")) {
+            int eq = kv.indexOf('=');
+            try {
+                if (eq > 0) {
+                    m.put(URLDecoder.decode(kv.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return m;
+    }
+
+    private static String json(List<String> l) {
+        StringBuilder sb = new StringBuilder("[");
+
+        for (int i = 0; i < l.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append(json(l.get(i)));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String json(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+
+    public static void main(String[] args) {
+        DistToPathServer_ s = new DistToPathServer_();
+        StringBuilder options = new StringBuilder();
+
+        for (String a : args) {
+            options.append(a).append(' ');
+        }
+        if (!s.parseOptions(options.toString())) {
+            System.exit(1);
+        }
+        try {
+            s.start();
+        } catch (IOException e) {
+            IJ.log("DistToPath server: could not start: " + e.getMessage());
+            System.exit(1);
+        }
+        // The HTTP dispatcher thread keeps the JVM running
+    }
+
+} // end of DistToPathServer_
+
+
+class ReplyDTP {
+    final int status;
+    final byte[] body;
+    final String type;
+
+    ReplyDTP(int status, byte[] body, String type) {
+        this.status = status;
+        this.body = body;
+        this.type = type;
+    }
+
+    ReplyDTP(String text, String type) {
+        this(200, text, type);
+    }
+
+    ReplyDTP(int status, String text) {
+        this(status, text + "\n", "text/plain; charset=utf-8");
+    }
+
+    private ReplyDTP(int status, String text, String type) {
+        this(status, utf8(text), type);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+
+// An error in a request, returned to the client with its HTTP status.
+class RequestExceptionDTP extends IOException {
+    private static final long serialVersionUID = 1L;
+    final int status;
+
+    RequestExceptionDTP(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
@@ -0,0 +1,443 @@
+/*
+    plugin : DistToPathSummary_.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Summarizes a folder tree of saved profiles: the number of points per
+    profile, path lengths, point densities and histograms of the lateral
+    distances of the points (and random points) to the path, grouped by
+    image, by comment or by ID prefix (the ID up to the first '-', '_', '.'
+    or space), or over all profiles. Distances are taken from the distance blocks
+    of the files where present, and computed from the path otherwise. It
+    can also be run outside ImageJ, e.g.
+
+        java -cp ij.jar:DistToPath_.jar DistToPathSummary_ input=/data group=prefix bin=10
+
+    and writes DistToPath_summary.csv (one row per group) and
+    DistToPath_histogram.csv (one row per group and distance bin).
+
+    The files are read in parallel, in contiguous ranges; each range is
+    reduced into running sums and histogram counts per group, and only these
+    are kept and merged, in the order of the files, so that memory use does
+    not grow with the number of profiles and the sums do not depend on the
+    number of threads.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.GraphicsEnvironment;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+
+public class DistToPathSummary_ implements PlugIn {
+
+    static final String[] groupNames = {"all", "image", "comment", "prefix"};
+    static final String summaryName = "DistToPath_summary.csv";
+    static final String histogramName = "DistToPath_histogram.csv";
+    // Fixed, so that the order of the sums does not depend on the threads
+    static final int chunks = 64;
+
+    String inputDir = "";
+    String outputDir = "";       // "" for the input folder
+    String groupBy = "image";
+    double binWidth = 10;        // nm
+    double maxDistance = 500;    // nm; the histogram spans at least +/- maxDistance
+    private final AtomicInteger nread = new AtomicInteger();
+    private final AtomicInteger nfailed = new AtomicInteger();
+
+
+    public void run(String arg) {
+        String options = Macro.getOptions();
+
+        if (options != null || GraphicsEnvironment.isHeadless()) {
+            if (!parseOptions(options)) {
+                return;
+            }
+        } else if (!showDialog()) {
+            return;
+        }
+        runSummary();
+    }
+
+    boolean showDialog() {
+        String dir = IJ.getDirectory("Choose folder of profiles");
+        if (dir == null) {
+            return false;
+        }
+        GenericDialog gd = new GenericDialog("DistToPath summary");
+        gd.addChoice("Group by:", groupNames, groupBy);
+        gd.addNumericField("Histogram bin width:", binWidth, 1, 6, "nm");
+        gd.addNumericField("Histogram range (+/-):", maxDistance, 0, 6, "nm");
+        gd.addStringField("Output folder (empty = input folder):", "", 30);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return false;
+        }
+        inputDir = dir;
+        groupBy = gd.getNextChoice();
+        binWidth = gd.getNextNumber();
+        maxDistance = gd.getNextNumber();
+        outputDir = gd.getNextString().trim();
+        if (!(binWidth > 0) || !(maxDistance >= binWidth)) {
+            IJ.error("DistToPath summary", "The bin width must be positive and not wider than the range.");
+            return false;
+        }
+        return true;
+    }
+
+    // Parses macro-style options, e.g. "input=/data output=/out group=comment
+    // bin=10 range=500".
+    boolean parseOptions(String options) {
+        // Macro.getValue() expects every value to be followed by a space
+        options = options == null ? "" : options.trim() + " ";
+        if (Macro.getValue(options, "input", null) == null) {
+            IJ.log("DistToPath summary: usage: input=<folder> [output=<folder>] " +
+                    "[group=all|image|comment|prefix] [bin=<nm>] [range=<nm>]");
+            return false;
+        }
+        inputDir = Macro.getValue(options, "input", "");
+        outputDir = Macro.getValue(options, "output", "");
+        groupBy = Macro.getValue(options, "group", groupBy).toLowerCase(Locale.US);
+        if (!Arrays.asList(groupNames).contains(groupBy)) {
+            IJ.log("DistToPath summary: unknown group " + groupBy);
+            return false;
+        }
+        try {
+            binWidth = Double.parseDouble(Macro.getValue(options, "bin", Double.toString(binWidth)));
+            maxDistance = Double.parseDouble(Macro.getValue(options, "range", Double.toString(maxDistance)));
+        } catch (NumberFormatException e) {
+            IJ.log("DistToPath summary: bin and range must be numbers.");
+            return false;
+        }
+        if (!(binWidth > 0) || !(maxDistance >= binWidth)) {
+            IJ.log("DistToPath summary: the bin width must be positive and not wider than the range.");
+            return false;
+        }
+        return true;
+    }
+
+    public void runSummary() {
+        File in = new File(inputDir);
+        File out = outputDir.equals("") ? in : new File(outputDir);
+        List<File> files = new ArrayList<File>();
+
+        if (!in.isDirectory()) {
+            IJ.log("DistToPath summary: not a folder: " + in);
+            return;
+        }
+        if (!out.isDirectory() && !out.mkdirs()) {
+            IJ.log("DistToPath summary: could not create output folder " + out);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        CatalogDTP.list(in, "", files, new ArrayList<String>());
+        IJ.log("DistToPath summary: " + files.size() + " profiles in " + in + ", grouped by " + groupBy);
+        Map<String, SummaryGroupDTP> groups;
+        try {
+            groups = summarize(files);
+        } catch (Exception e) {
+            IJ.log("DistToPath summary: " + e);
+            return;
+        }
+        try {
+            write(new File(out, summaryName), groups, false);
+            write(new File(out, histogramName), groups, true);
+        } catch (IOException e) {
+            IJ.log("DistToPath summary: " + e.getMessage());
+            return;
+        }
+        IJ.log("DistToPath summary: " + groups.size() + " groups from " + nread.get() + " profiles (" +
+                nfailed.get() + " failed) in " +
+                IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1) + " s, written to " + out);
+    }
+
+    // Reads 'files' in parallel and returns the merged groups, sorted by key.
+    Map<String, SummaryGroupDTP> summarize(final List<File> files) throws Exception {
+        final int nchunks = Math.max(1, Math.min(files.size(), chunks));
+        final List<Map<String, SummaryGroupDTP>> partial = new ArrayList<Map<String, SummaryGroupDTP>>();
+        Map<String, SummaryGroupDTP> groups = new TreeMap<String, SummaryGroupDTP>();
+
+        for (int chunk = 0; chunk < nchunks; chunk++) {
+            partial.add(new HashMap<String, SummaryGroupDTP>());
+        }
+        nread.set(0);
+        nfailed.set(0);
+        ParallelDTP.run(nchunks, new ParallelDTP.ChunkTask() {
+            public void run(int chunk) throws Exception {
+                Map<String, SummaryGroupDTP> m = partial.get(chunk);
+                int from = (int) ((long) files.size() * chunk / nchunks);
+                int to = (int) ((long) files.size() * (chunk + 1) / nchunks);
+                for (int i = from; i < to; i++) {
+                    add(m, files.get(i));
+                    int n = nread.incrementAndGet();
+                    if ((n & 1023) == 0) {
+                        IJ.showProgress(n, files.size());
+                    }
+                }
+            }
+        });
+        IJ.showProgress(1.0);
+        for (Map<String, SummaryGroupDTP> m : partial) {
+            for (SummaryGroupDTP g : m.values()) {
+                SummaryGroupDTP sum = groups.get(g.key);
+                if (sum == null) {
+                    groups.put(g.key, g);
+                } else {
+                    sum.merge(g);
+                }
+            }
+        }
+        return groups;
+    }
+
+    // Reads one profile into its group of 'm'; a file that cannot be read
+    // is logged and left out.
+    private void add(Map<String, SummaryGroupDTP> m, File f) {
+        ProfileRecordDTP r;
+
+        try {
+            r = ProfileRecordDTP.read(f);
+        } catch (IOException e) {
+            nfailed.incrementAndGet();
+            IJ.log(BatchResultDTP.ERROR + "\t" + f.getPath() + ": " + e.getMessage());
+            return;
+        }
+        String key = getGroup(r);
+        SummaryGroupDTP g = m.get(key);
+        if (g == null) {
+            g = new SummaryGroupDTP(key, binWidth, maxDistance);
+            m.put(key, g);
+        }
+        g.add(r);
+    }
+
+    String getGroup(ProfileRecordDTP r) {
+        String key;
+
+        if (groupBy.equals("image")) {
+            key = r.image;
+        } else if (groupBy.equals("comment")) {
+            key = r.comment.trim();
+        } else if (groupBy.equals("prefix")) {
+            key = r.id;
+            for (int i = 0; i < key.length(); i++) {
+                if ("-_. ".indexOf(key.charAt(i)) >= 0) {
+                    key = key.substring(0, i);
+                    break;
+                }
+            }
+        } else {
+            key = "all";
+        }
+        return key.equals("") ? "(none)" : key;
+    }
+
+    // Writes the summary table, or with 'histogram' the histogram table, to
+    // 'dest' by way of a temporary file.
+    void write(File dest, Map<String, SummaryGroupDTP> groups, boolean histogram) throws IOException {
+        File tmp = SaveQueueDTP.createTempFile(dest);
+
+        try {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), "UTF-8")));
+            try {
+                if (histogram) {
+                    out.println("group,from_nm,to_nm,points,random_points");
+                } else {
+                    out.println(SummaryGroupDTP.header);
+                }
+                for (SummaryGroupDTP g : groups.values()) {
+                    if (histogram) {
+                        g.writeHistogram(out);
+                    } else {
+                        g.writeSummary(out);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + dest.getPath());
+            }
+            SaveQueueDTP.rename(tmp, dest);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+
+    public static void main(String[] args) {
+        DistToPathSummary_ summary = new DistToPathSummary_();
+
+        if (summary.parseOptions(DistToPathBatch_.join(Arrays.asList(args)))) {
+            summary.runSummary();
+        }
+        System.exit(0);
+    }
+
+} // end of DistToPathSummary_
+
+
+// Running sums of one group of profiles. Distances, path lengths and
+// densities only include profiles whose scale is set in nm or microns;
+// the others are counted as unscaled.
+class SummaryGroupDTP {
+    static final String header = "group,profiles,unscaled,no_path,points,points_per_profile," +
+            "min_points,max_points,path_length_um,mean_path_length_um,density_per_um,random_points," +
+            "mean_distance_nm,sd_distance_nm,mean_random_distance_nm,sd_random_distance_nm";
+    final String key;
+    final double binWidth, maxDistance;
+    int profiles, unscaled, noPath;
+    long points, randomPoints, scaledPoints;
+    int minPoints = Integer.MAX_VALUE, maxPoints = 0;
+    double pathLength;       // microns
+    final Moments distances = new Moments(), randomDistances = new Moments();
+    // Bin 0 counts distances below -maxDistance and the last bin those
+    // beyond the last whole bin, which ends at maxDistance or, if the range
+    // is not a multiple of the bin width, at the next bin limit above it
+    final long[] hist, randomHist;
+
+
+    static class Moments {
+        long n;
+        double sum, sum2;
+
+        void add(double d) {
+            n++;
+            sum += d;
+            sum2 += d * d;
+        }
+
+        void merge(Moments m) {
+            n += m.n;
+            sum += m.sum;
+            sum2 += m.sum2;
+        }
+
+        double mean() {
+            return n == 0 ? Double.NaN : sum / n;
+        }
+
+        double sd() {
+            return n < 2 ? Double.NaN : Math.sqrt(Math.max(0, (sum2 - sum * sum / n) / (n - 1)));
+        }
+    }
+
+
+    SummaryGroupDTP(String key, double binWidth, double maxDistance) {
+        this.key = key;
+        this.binWidth = binWidth;
+        this.maxDistance = maxDistance;
+        int nbins = (int) Math.ceil(2 * maxDistance / binWidth) + 2;
+        hist = new long[nbins];
+        randomHist = new long[nbins];
+    }
+
+    void add(ProfileRecordDTP r) {
+        ComponentDTP path = r.get(ComponentTypeDTP.PATH);
+        ComponentDTP pts = r.get(ComponentTypeDTP.POINTS);
+        ComponentDTP random = r.get(ComponentTypeDTP.RANDOM_POINTS);
+        int n = pts == null ? 0 : pts.n;
+        double nmPerPixel;
+
+        profiles++;
+        points += n;
+        minPoints = Math.min(minPoints, n);
+        maxPoints = Math.max(maxPoints, n);
+        randomPoints += random == null ? 0 : random.n;
+        if (r.unit.equals("nm")) {
+            nmPerPixel = r.pixelwidth;
+        } else if (r.unit.equals("micron") || r.unit.equals("\u00B5m") || r.unit.equals("um")) {
+            nmPerPixel = r.pixelwidth * 1000;
+        } else {
+            unscaled++;
+            return;
+        }
+        DistanceEngineDTP engine = r.getDistanceEngine();
+        if (engine == null) {
+            noPath++;
+            return;
+        }
+        scaledPoints += n;
+        pathLength += path.getLength() * nmPerPixel / 1000;
+        addDistances(engine, pts, r.pointDistances, nmPerPixel, distances, hist);
+        addDistances(engine, random, r.randomPointDistances, nmPerPixel, randomDistances, randomHist);
+    }
+
+    // Adds the distances of 'comp' to the path: those read from the file if
+    // there is one per point, else computed by 'engine'.
+    private void addDistances(DistanceEngineDTP engine, ComponentDTP comp, float[] read,
+                              double nmPerPixel, Moments m, long[] h) {
+        int i;
+
+        if (comp == null) {
+            return;
+        }
+        if (read != null && read.length == comp.n) {
+            for (i = 0; i < comp.n; i++) {
+                addDistance(read[i] * nmPerPixel, m, h);
+            }
+        } else {
+            double[] d = engine.computeAll(comp.x, comp.y, comp.n)[0];
+            for (i = 0; i < comp.n; i++) {
+                addDistance(d[i] * nmPerPixel, m, h);
+            }
+        }
+    }
+
+    private void addDistance(double d, Moments m, long[] h) {
+        int bin = d < -maxDistance ? 0 : 1 + (int) Math.floor((d + maxDistance) / binWidth);
+        m.add(d);
+        h[Math.min(bin, h.length - 1)]++;
+    }
+
+    void merge(SummaryGroupDTP g) {
+        profiles += g.profiles;
+        unscaled += g.unscaled;
+        noPath += g.noPath;
+        points += g.points;
+        randomPoints += g.randomPoints;
+        scaledPoints += g.scaledPoints;
+        minPoints = Math.min(minPoints, g.minPoints);
+        maxPoints = Math.max(maxPoints, g.maxPoints);
+        pathLength += g.pathLength;
+        distances.merge(g.distances);
+        randomDistances.merge(g.randomDistances);
+        for (int i = 0; i < hist.length; i++) {
+            hist[i] += g.hist[i];
+            randomHist[i] += g.randomHist[i];
+        }
+    }
+
+    void writeSummary(PrintWriter out) {
+        out.println(MetricsDTP.csv(key) + "," + profiles + "," + unscaled + "," + noPath + "," +
+                points + "," + fmt((double) points / profiles) + "," + minPoints + "," + maxPoints + "," +
+                fmt(pathLength) + "," + fmt(pathLength / (profiles - unscaled - noPath)) + "," +
+                fmt(scaledPoints / pathLength) + "," + randomPoints + "," +
+                fmt(distances.mean()) + "," + fmt(distances.sd()) + "," +
+                fmt(randomDistances.mean()) + "," + fmt(randomDistances.sd()));
+    }
+
+    // One row per bin, labelled with the limits it counts; the open-ended
+    // first and last bins have an empty lower and upper bound.
+    void writeHistogram(PrintWriter out) {
+        for (int i = 0; i < hist.length; i++) {
+            String from = i == 0 ? "" : fmt(-maxDistance + (i - 1) * binWidth);
+            String to = i == hist.length - 1 ? "" : fmt(-maxDistance + i * binWidth);
+            out.println(MetricsDTP.csv(key) + "," + from + "," + to + "," + hist[i] + "," + randomHist[i]);
+        }
+    }
+
+    private static String fmt(double v) {
+        return Double.isNaN(v) || Double.isInfinite(v) ? "" : String.format(Locale.US, "%.3f", v);
+    }
+
+} // end of SummaryGroupDTP
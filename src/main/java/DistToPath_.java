@@ -14,7 +14,9 @@
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.util.Random;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import ij.*;
 import ij.IJ;
 import ij.ImagePlus;
@@ -23,6 +25,7 @@ import ij.gui.*;
 import ij.plugin.frame.*;
 import ij.plugin.filter.*;
 import ij.measure.*;
+import ij.process.*;
 
 
 interface VersionDTP {
@@ -42,7 +45,10 @@ interface OptionsDTP {
     Color pospolCol = Color.magenta;
     Color randomCol = Color.yellow;
     Color holeCol = Color.red;
+    Color frameCol = Color.cyan;
     Color textCol = Color.blue;
+    String[] goldSizes = {"5", "10", "15"};    // nm
+    String[] analyzedFormats = {"TIFF", "TIFF (LZW)", "TIFF (deflate)", "JPEG preview", "PNG preview"};
 }
 
 public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListener {
@@ -54,14 +60,28 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
     GridBagConstraints c;    
     Label profile_nLabel;
     Label pathnLabel;
+    Label pathLengthLabel;
+    Label densityLabel;
+    Label meanDistLabel;
+    Label medianDistLabel;
     Label pnLabel;    
     Label pospolLabel;
     Label holenLabel;            
     Label randomPlacedLabel;
     Label commentLabel;
     Label scaleLabel;
-    ProfileDataDTP profile;
+    Label heapLabel;
+    Label queueLabel;
+    Label profilesLabel;
+    Label sliceLabel;
+    Label workspaceLabel;
+    ProfileDataDTP profile;     // the current profile of profiles
+    ProfileSetDTP profiles;
     ImagePlus imp;
+    MouseListener selector;     // selects components on alt-click
+    CatalogDTP catalog;         // of the folder last catalogued; null if none
+    WorkspaceDTP workspace;     // of the folder of images gone through; null if none
+    private volatile boolean processingSlices = false;      // in the background
 
 
     public DistToPath_() {
@@ -72,6 +92,29 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
         }
         instance = this;
         profile = new ProfileDataDTP();
+        profile.saveQueue = new SaveQueueDTP(new Runnable() {
+            public void run() {
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        updateQueueLabel();
+                    }
+                });
+            }
+        });
+        try {
+            profile.journal = JournalDTP.open(JournalDTP.getDefaultDirectory());
+        } catch (IOException e) {
+            IJ.log("DistToPath: unsaved profiles cannot be recovered after a crash (" +
+                    e.getMessage() + ").");
+        }
+        profiles = new ProfileSetDTP(profile);
+        selector = new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                if (e.isAltDown() && e.getSource() instanceof ImageCanvas) {
+                    selectComponentAt((ImageCanvas) e.getSource(), e.getX(), e.getY());
+                }
+            }
+        };
         IJ.register(DistToPath_.class);
         setLayout(new FlowLayout());
         setBackground(SystemColor.control);
@@ -81,25 +124,40 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
         panel.setFont(new Font("Helvetica", 0, 12));
         addButton("Save profile");
         addButton("Clear profile");
+        addButton("New profile");
+        addButton("Next profile");
+        addButton("Open profile...");
         panel.add(new Label(""));
         panel.add(new Label("Define selection as:"));                
         addButton("Path");
         addButton("Points");
         addButton("Positive polarity");
         addButton("Hole");
+        addButton("Sampling frame");
         panel.add(new Label(""));
         addButton("Define thresholded particles as points");
         panel.add(new Label(""));
         addButton("Place random points");
+        addButton("Distance map");
+        addButton("Envelope test...");
+        addButton("Point pattern...");
+        addButton("Process all slices...");
         panel.add(new Label(""));
         panel.add(new Label("Delete profile components:"));
         addButton("Delete path");
         addButton("Delete points");
         addButton("Delete polarity");
+        addButton("Delete sampling frame");
         addButton("Delete random points");
         addButton("Delete selected component");
         panel.add(new Label(""));
         panel.add(new Label("Other:"));                
+        addButton("Open tiled image...");
+        addButton("Profile catalog...");
+        addButton("Open workspace...");
+        addButton("Next image");
+        addButton("Previous image");
+        addButton("Mark image done");
         addButton("Add comment");
         addButton("Set profile n");
         addButton("Options...");
@@ -120,12 +178,30 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
         addStaticInfoLabel("Profile n:");
         profile_nLabel = new Label(IJ.d2s(profile.ntot, 0), Label.RIGHT);
         addVarInfoLabel(profile_nLabel);
+        addStaticInfoLabel("Open profiles:");
+        profilesLabel = new Label("1", Label.RIGHT);
+        addVarInfoLabel(profilesLabel);
+        addStaticInfoLabel("Slice:");
+        sliceLabel = new Label("N/D", Label.RIGHT);
+        addVarInfoLabel(sliceLabel);
         addStaticInfoLabel("Points:");
         pnLabel = new Label("0", Label.RIGHT);
         addVarInfoLabel(pnLabel);
         addStaticInfoLabel("Path nodes:");
         pathnLabel = new Label("0", Label.RIGHT);
         addVarInfoLabel(pathnLabel);
+        addStaticInfoLabel("Path length:");
+        pathLengthLabel = new Label("N/D", Label.RIGHT);
+        addVarInfoLabel(pathLengthLabel);
+        addStaticInfoLabel("Point density:");
+        densityLabel = new Label("N/D", Label.RIGHT);
+        addVarInfoLabel(densityLabel);
+        addStaticInfoLabel("Mean distance:");
+        meanDistLabel = new Label("N/D", Label.RIGHT);
+        addVarInfoLabel(meanDistLabel);
+        addStaticInfoLabel("Median distance:");
+        medianDistLabel = new Label("N/D", Label.RIGHT);
+        addVarInfoLabel(medianDistLabel);
         addStaticInfoLabel("Positive polarity:");
         pospolLabel = new Label("N/D", Label.RIGHT);
         addVarInfoLabel(pospolLabel);
@@ -141,11 +217,77 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
         addStaticInfoLabel("Comment:");
         commentLabel = new Label("", Label.RIGHT);
         addVarInfoLabel(commentLabel);
+        addStaticInfoLabel("Peak profile heap:");
+        heapLabel = new Label("N/D", Label.RIGHT);
+        addVarInfoLabel(heapLabel);
+        addStaticInfoLabel("Save queue:");
+        queueLabel = new Label("idle", Label.RIGHT);
+        addVarInfoLabel(queueLabel);
+        addStaticInfoLabel("Workspace:");
+        workspaceLabel = new Label("none", Label.RIGHT);
+        addVarInfoLabel(workspaceLabel);
         infoFrame.setLayout(infoPanel);
         infoFrame.pack();
         infoFrame.setVisible(true);
         infoFrame.setSize(instance.getSize().width, infoFrame.getSize().height);
         instance.requestFocus();
+        recoverProfiles();
+    }
+
+    // Offers to restore the profiles that were left unsaved by earlier
+    // sessions, each on its image. Profiles whose image cannot be found are
+    // kept in the journal for next time.
+    void recoverProfiles() {
+        JournalDTP journal = profile.journal;
+        JournalDTP.Recovery recovery;
+
+        if (journal == null) {
+            return;
+        }
+        try {
+            recovery = journal.recover();
+        } catch (IOException e) {
+            IJ.log("DistToPath: could not read recovery journal: " + e.getMessage());
+            return;
+        }
+        if (recovery.profiles.isEmpty()) {
+            recovery.discard();
+            return;
+        }
+        YesNoCancelDialog d = new YesNoCancelDialog(this, "DistToPath",
+                recovery.profiles.size() + " unsaved profile(s) of an earlier session found.\n" +
+                        "Recover them? (No discards them.)");
+        if (d.cancelPressed()) {
+            return;
+        }
+        if (d.yesPressed()) {
+            for (JournalDTP.Profile p : recovery.profiles) {
+                ImagePlus target = p.openImage();
+                if (target == null) {
+                    journal.carryOver(p);
+                    IJ.log("DistToPath: image " + p.image + " of an unsaved profile not found; " +
+                            "the profile is kept for recovery next time.");
+                    continue;
+                }
+                imp = target;
+                showSlice(target, p.slice);
+                profile = profiles.select(target);
+                if (profile.dirty) {
+                    profile = profiles.newProfile(target);
+                }
+                p.restore(profile);
+                target.setOverlay(profiles.getOverlay(target));
+            }
+            if (imp != null) {
+                updateInfoPanel();
+            }
+        }
+        try {
+            journal.flush();
+            recovery.discard();
+        } catch (IOException e) {
+            IJ.log("DistToPath: could not write recovery journal: " + e.getMessage());
+        }
     }
 
     void addButton(String label) {
@@ -187,6 +329,16 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
         }
     }
 
+    Roi getAreaRoi(ImagePlus imp) {
+        Roi roi = imp.getRoi();
+        if (roi == null || (roi.getType() != Roi.RECTANGLE && roi.getType() != Roi.POLYGON)) {
+            IJ.error("DistToPath", "Rectangle or polygon selection required.");
+            return null;
+        } else {
+            return roi;
+        }
+    }
+
     PolygonRoi getPointRoi(ImagePlus imp) {
         Roi roi = imp.getRoi();
         if (roi == null || roi.getType() != Roi.POINT) {
@@ -202,15 +354,23 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
         String unit;
 
         profile_nLabel.setText(IJ.d2s(profile.ntot, 0));
-        pnLabel.setText(IJ.d2s(profile.getNumPoints("points"), 0));
-        pathnLabel.setText(IJ.d2s(profile.getNumPoints("path"), 0));
-        holenLabel.setText(IJ.d2s(profile.getNum("hole"), 0));
-        if (profile.overlay.getIndex("positive polarity") != -1) {
+        List<ProfileDataDTP> onImage = profiles.getProfiles(imp);
+        profilesLabel.setText(onImage.size() + " on image, " + profiles.size() + " in all");
+        if (profile.slice > 0) {
+            sliceLabel.setText(profile.slice + " / " + imp.getStackSize() +
+                    (profile.channel > 0 ? ", channel " + profile.channel : ""));
+        } else {
+            sliceLabel.setText("N/D");
+        }
+        pnLabel.setText(IJ.d2s(profile.getNumPoints(ComponentTypeDTP.POINTS), 0));
+        pathnLabel.setText(IJ.d2s(profile.getNumPoints(ComponentTypeDTP.PATH), 0));
+        holenLabel.setText(IJ.d2s(profile.getNum(ComponentTypeDTP.HOLE), 0));
+        if (profile.has(ComponentTypeDTP.POSITIVE_POLARITY)) {
             pospolLabel.setText("yes");
         } else {
             pospolLabel.setText("no");
         }        
-        if (profile.overlay.getIndex("randon points") != -1) {
+        if (profile.has(ComponentTypeDTP.RANDOM_POINTS)) {
             randomPlacedLabel.setText("yes");
         } else {
             randomPlacedLabel.setText("no");
@@ -223,8 +383,64 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
             pixelwidth = c.pixelWidth;
             unit = c.getUnit();
         }
+        pixelwidth /= TiledImageDTP.getViewScale(imp);
         scaleLabel.setText(IJ.d2s(pixelwidth, 2) + " " + unit);
+        updateStatsLabels(pixelwidth, unit);
         commentLabel.setText(profile.comment);
+        heapLabel.setText(IJ.d2s(profile.peakHeap / 1048576.0, 1) + " MB");
+    }
+
+    // Shows the live statistics of the profile; distances are in 'unit' (nm
+    // if calibrated in nm or microns) and path length and density in microns.
+    void updateStatsLabels(double pixelwidth, String unit) {
+        ProfileStatsDTP stats = profile.getStats();
+        String lengthUnit = unit;
+        double lengthScale = pixelwidth;
+
+        if (unit.equals("nm")) {
+            lengthUnit = "\u00B5m";
+            lengthScale = pixelwidth / 1000;
+        }
+        double length = stats.getPathLength() * lengthScale;
+        pathLengthLabel.setText(length > 0 ? IJ.d2s(length, 2) + " " + lengthUnit : "N/D");
+        if (length > 0) {
+            densityLabel.setText(IJ.d2s(profile.getNumPoints(ComponentTypeDTP.POINTS) / length, 2) +
+                    " /" + lengthUnit);
+        } else {
+            densityLabel.setText("N/D");
+        }
+        if (stats.getNumMeasured() > 0) {
+            String sign = stats.isSigned() ? "" : " (unsigned)";
+            meanDistLabel.setText(IJ.d2s(stats.getMean() * pixelwidth, 1) + " " + unit + sign);
+            medianDistLabel.setText(IJ.d2s(stats.getMedian() * pixelwidth, 1) + " " + unit + sign);
+        } else {
+            meanDistLabel.setText("N/D");
+            medianDistLabel.setText("N/D");
+        }
+    }
+
+    void updateWorkspaceLabel() {
+        if (workspace == null || workspace.getIndex() < 0) {
+            workspaceLabel.setText("none");
+        } else {
+            workspaceLabel.setText((workspace.getIndex() + 1) + " / " + workspace.size() + ", " +
+                    workspace.getNumDone() + " done");
+        }
+    }
+
+    // Shows the number of pending saves; the stage timings of each save are
+    // shown in the status bar when it is done.
+    void updateQueueLabel() {
+        int pending = profile.saveQueue.getPending();
+
+        if (queueLabel == null) {
+            return;
+        }
+        if (pending > 0) {
+            queueLabel.setText(pending + " pending");
+        } else {
+            queueLabel.setText("idle");
+        }
     }
 
     public boolean isImage(ImagePlus imp) {
@@ -237,20 +453,552 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
     }
 
     public void actionPerformed(ActionEvent e) {
-        PolygonRoi p;
-        Polygon randomPol;
-        PointRoi randomRoi;
-        int i, x, y;
-        String s;
-
         String command = e.getActionCommand();
         if (command == null) {
             return;
         }
+        MetricsDTP.Sample sample = MetricsDTP.registry.start(command);
+        try {
+            performCommand(command);
+        } finally {
+            profile.stopSample(sample, imp);
+            if (imp != null) {
+                imp.setOverlay(profiles.getOverlay(imp));
+            }
+        }
+    }
+
+    // Selects the component under (sx, sy) on the canvas, making its profile
+    // current.
+    void selectComponentAt(ImageCanvas ic, int sx, int sy) {
+        ImagePlus imp = ic.getImage();
+        double scale = TiledImageDTP.getViewScale(imp);
+        ComponentIndexDTP.Hit hit = profiles.find(imp, ic.offScreenXD(sx) * scale,
+                ic.offScreenYD(sy) * scale, 5 / ic.getMagnification() * scale);
+
+        if (hit == null) {
+            return;
+        }
+        this.imp = imp;
+        profile = profiles.makeCurrent(hit.profile);
+        imp.setRoi(hit.component.getRoi());
+        updateInfoPanel();
+        IJ.showStatus("Selected " + hit.component.type.name + ".");
+    }
+
+    // Returns the component that the selection on 'imp' is the view of, or
+    // else the component at a single point selection, or null; the profile
+    // of the component is made current and the component selected.
+    ComponentDTP getSelectedComponent(ImagePlus imp) {
+        Roi roi = imp.getRoi();
+        ProfileDataDTP owner = profiles.getOwner(roi);
+
+        if (owner != null) {
+            profile = profiles.makeCurrent(owner);
+            return profile.getComponent(roi);
+        }
+        if (roi == null || roi.getType() != Roi.POINT) {
+            return null;
+        }
+        java.awt.geom.Rectangle2D.Double b = roi.getFloatBounds();
+        double scale = TiledImageDTP.getViewScale(imp);
+        ImageCanvas ic = imp.getCanvas();
+        double magnification = ic == null ? 1 : ic.getMagnification();
+        ComponentIndexDTP.Hit hit = profiles.find(imp, b.x * scale, b.y * scale,
+                5 / magnification * scale);
+        if (hit == null) {
+            return null;
+        }
+        profile = profiles.makeCurrent(hit.profile);
+        imp.setRoi(hit.component.getRoi());
+        return hit.component;
+    }
+
+    // Runs the envelope test of the current profile, or of a folder of saved
+    // profiles, in the background. The results are shown and updated as the
+    // runs are done; Esc stops the test.
+    void runEnvelopeTest(ImagePlus imp) {
+        GenericDialog gd = new GenericDialog("Envelope test");
+        gd.addChoice("Profiles:", new String[] {"Current profile", "Folder of .dtp files"},
+                "Current profile");
+        gd.addNumericField("Simulation runs:", profile.envelopeRuns, 0);
+        gd.addNumericField("Bin width (nm):", profile.distanceBinWidth, 0);
+        gd.addNumericField("Largest distance (nm):", profile.envelopeRange, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        boolean folder = gd.getNextChoiceIndex() == 1;
+        profile.envelopeRuns = Math.max(19, (int) gd.getNextNumber());
+        double binWidth = gd.getNextNumber();
+        if (binWidth > 0) {
+            profile.distanceBinWidth = binWidth;
+        }
+        double range = gd.getNextNumber();
+        if (range > 0) {
+            profile.envelopeRange = range;
+        }
+        final EnvelopeTestDTP test = new EnvelopeTestDTP(profile.distanceBinWidth,
+                profile.envelopeRange);
+        try {
+            if (folder) {
+                String dir = IJ.getDirectory("Folder of .dtp files");
+                if (dir == null) {
+                    return;
+                }
+                File[] files = new File(dir).listFiles(new FilenameFilter() {
+                    public boolean accept(File d, String name) {
+                        return name.endsWith(".dtp");
+                    }
+                });
+                Arrays.sort(files);
+                for (File f : files) {
+                    ProfileRecordDTP r = ProfileRecordDTP.read(f);
+                    if (r.get(ComponentTypeDTP.POINTS) != null) {
+                        test.add(r, 0, 0);
+                    }
+                }
+            } else {
+                if (!isImage(imp)) {
+                    return;
+                }
+                test.add(profile.toRecord(imp), ProfileDataDTP.getImageWidth(imp),
+                        ProfileDataDTP.getImageHeight(imp));
+            }
+        } catch (Exception ex) {
+            IJ.error("DistToPath", "Could not start envelope test:\n" + ex.getMessage());
+            return;
+        }
+        final int nruns = profile.envelopeRuns;
+        final long seed = profile.randomSeed != 0 ? profile.randomSeed : RandomPointsDTP.newSeed();
+        new Thread(new Runnable() {
+            public void run() {
+                MetricsDTP.Sample sample = MetricsDTP.registry.start("Envelope test");
+                IJ.resetEscape();
+                try {
+                    EnvelopeTestDTP.Summary s = test.run(nruns, seed, new EnvelopeTestDTP.Listener() {
+                        public boolean progress(EnvelopeTestDTP.Summary s) {
+                            IJ.showProgress(s.runs, nruns);
+                            IJ.showStatus(String.format(Locale.US,
+                                    "Envelope test: %d/%d runs, p = %.4f (Esc to stop)",
+                                    s.runs, nruns, s.pGlobal));
+                            showEnvelope(s);
+                            return !IJ.escapePressed();
+                        }
+                    });
+                    IJ.log(String.format(Locale.US, "Envelope test of %d profile(s): %d runs " +
+                            "(seed %d), mean distance %.1f nm, p (global) = %.4f, " +
+                            "p (mean distance) = %.4f", test.getNumProfiles(), s.runs, seed,
+                            s.observedMean, s.pGlobal, s.pMean));
+                } catch (Exception ex) {
+                    IJ.error("DistToPath", "Envelope test failed:\n" + ex.getMessage());
+                } finally {
+                    IJ.showProgress(1.0);
+                    sample.stop(0, test.getNumProfiles(), 0);
+                }
+            }
+        }, "DistToPath-envelope").start();
+    }
+
+    // Shows the nearest neighbour distances and Ripley's K, L and pair
+    // correlation functions of the points, and of the random points if
+    // placed, of the current profile.
+    void runPointPattern(ImagePlus imp) {
+        GenericDialog gd = new GenericDialog("Point pattern");
+        gd.addNumericField("Bin width (nm):", profile.distanceBinWidth, 0);
+        gd.addNumericField("Largest distance (nm):", profile.patternRange, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        double binWidth = gd.getNextNumber();
+        if (binWidth > 0) {
+            profile.distanceBinWidth = binWidth;
+        }
+        double range = gd.getNextNumber();
+        if (range > 0) {
+            profile.patternRange = range;
+        }
+        if (!profile.has(ComponentTypeDTP.POINTS)) {
+            IJ.error("DistToPath", "Points not defined.");
+            return;
+        }
+        ResultsTable rt = new ResultsTable();
+        try {
+            for (ComponentTypeDTP t : new ComponentTypeDTP[] {ComponentTypeDTP.POINTS,
+                    ComponentTypeDTP.RANDOM_POINTS}) {
+                if (!profile.has(t)) {
+                    continue;
+                }
+                PointPatternDTP.Result res = profile.getPointPattern(imp, t).analyze(
+                        profile.distanceBinWidth, profile.patternRange, ProfileDataDTP.getNmPerPixel(imp));
+                String suffix = t == ComponentTypeDTP.POINTS ? "" : " (random)";
+                for (int b = 0; b < res.r.length; b++) {
+                    if (rt.getCounter() <= b) {
+                        rt.incrementCounter();
+                        rt.addValue("r (nm)", res.r[b]);
+                    }
+                    rt.setValue("G" + suffix, b, res.g[b]);
+                    rt.setValue("K (nm\u00B2)" + suffix, b, res.k[b]);
+                    rt.setValue("L - r (nm)" + suffix, b, res.l[b] - res.r[b]);
+                    rt.setValue("g" + suffix, b, res.pcf[b]);
+                    rt.setValue("n (K)" + suffix, b, res.used[b]);
+                }
+                IJ.log(String.format(Locale.US, "%s: %s of %d (%d outside window), %.2f /\u00B5m\u00B2, " +
+                                "mean nearest neighbour distance %.1f nm, Clark-Evans R = %.3f",
+                        imp.getTitle(), t.name, res.n, res.excluded, res.intensity, res.meanNnd,
+                        res.clarkEvans));
+            }
+        } catch (Exception ex) {
+            IJ.error("DistToPath", "Could not analyze point pattern:\n" + ex.getMessage());
+            return;
+        }
+        rt.show("Point pattern");
+    }
+
+    static void showEnvelope(EnvelopeTestDTP.Summary s) {
+        ResultsTable rt = new ResultsTable();
+        double length = s.pathLength / 1000;
+
+        for (int b = 0; b < s.observed.length; b++) {
+            rt.incrementCounter();
+            rt.addValue("From (nm)", s.from[b]);
+            rt.addValue("To (nm)", s.to[b]);
+            rt.addValue("Observed", s.observed[b]);
+            rt.addValue("Observed /\u00B5m path", s.observed[b] / length);
+            rt.addValue("Simulated mean", s.mean[b]);
+            rt.addValue("Low (2.5%)", s.low[b]);
+            rt.addValue("High (97.5%)", s.high[b]);
+        }
+        rt.show("Envelope test");
+    }
+
+    // Shows stack index 'slice' of imp, if imp is a stack with that slice.
+    static void showSlice(ImagePlus imp, int slice) {
+        if (slice > 0 && slice <= imp.getStackSize()) {
+            imp.setSlice(slice);
+        }
+    }
+
+    // Detects particles, places random points and burns in the profiles on
+    // every slice of a stack, the slices in parallel, in the background.
+    // Particles are detected with the threshold of the slice shown, on the
+    // most recently used profile of each slice; a new profile is only made
+    // for a slice that has none if particles are found on it. Random points
+    // are only placed on profiles that have a path and none yet, each slice
+    // with its own seed (derived from the random seed if set). Burning in
+    // makes a new RGB stack.
+    void processAllSlices(final ImagePlus imp) {
+        final int nslices = imp.getStackSize();
+        if (nslices == 1 || TiledImageDTP.get(imp) != null) {
+            IJ.error("DistToPath", "Stack required.");
+            return;
+        }
+        if (processingSlices) {
+            IJ.error("DistToPath", "The slices are already being processed.");
+            return;
+        }
+        GenericDialog gd = new GenericDialog("Process all slices");
+        gd.addCheckbox("Define thresholded particles as points", false);
+        gd.addCheckbox("Place random points", false);
+        gd.addCheckbox("Burn profiles into a new RGB stack", false);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        final boolean detect = gd.getNextBoolean();
+        final boolean random = gd.getNextBoolean();
+        final boolean burn = gd.getNextBoolean();
+        final ProfileDataDTP[] bySlice = new ProfileDataDTP[nslices + 1];
+        for (int s = 1; s <= nslices; s++) {
+            bySlice[s] = profiles.getProfile(imp, s);
+        }
+        final ProfileDataDTP settings = profile;
+        processingSlices = true;
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    processAllSlices(imp, bySlice, settings, detect, random, burn);
+                } finally {
+                    processingSlices = false;
+                }
+            }
+        }, "DistToPath-slices").start();
+    }
+
+    private void processAllSlices(final ImagePlus imp, final ProfileDataDTP[] bySlice,
+                                  final ProfileDataDTP settings, final boolean detect,
+                                  final boolean random, final boolean burn) {
+        final int nslices = bySlice.length - 1;
+        final long seed = settings.randomSeed;
+        final int[] counts = new int[2];
+        final ImageProcessor[] burned = new ImageProcessor[nslices + 1];
+        MetricsDTP.Sample sample = MetricsDTP.registry.start("Process all slices");
+        IJ.showStatus("Processing " + nslices + " slices...");
+        try {
+            ParallelDTP.run(nslices, new ParallelDTP.ChunkTask() {
+                public void run(int chunk) throws Exception {
+                    int s = chunk + 1;
+                    ProfileDataDTP p = bySlice[s];
+                    if (detect && (p == null || !p.has(ComponentTypeDTP.POINTS))) {
+                        ProfileDataDTP detector = p;
+                        if (detector == null) {
+                            // Detected with the settings on the slice; kept only if found
+                            detector = new ProfileDataDTP();
+                            detector.copySettings(settings);
+                            detector.bind(imp, s, null);
+                        }
+                        float[][] xy = detector.detectParticles(imp);
+                        if (xy[0].length > 0) {
+                            if (p == null) {
+                                p = bySlice[s] = profiles.newProfile(imp, s);
+                            }
+                            p.add(ComponentTypeDTP.POINTS, xy[0], xy[1], xy[0].length);
+                            synchronized (counts) {
+                                counts[0] += xy[0].length;
+                            }
+                        }
+                    }
+                    if (p != null && random && p.has(ComponentTypeDTP.PATH) &&
+                            !p.has(ComponentTypeDTP.RANDOM_POINTS)) {
+                        float[][] xy = p.placeRandomPoints(imp, seed != 0 ? ParallelDTP.mix(seed, s) : 0);
+                        p.add(ComponentTypeDTP.RANDOM_POINTS, xy[0], xy[1], xy[0].length);
+                        p.fieldsChanged();
+                        synchronized (counts) {
+                            counts[1]++;
+                        }
+                    }
+                    if (burn) {
+                        burned[s] = burnSlice(imp, s);
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            IJ.error("DistToPath", "Could not process all slices:\n" + ex.getMessage());
+            return;
+        } finally {
+            settings.stopSample(sample, imp);
+        }
+        if (burn) {
+            ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+            for (int s = 1; s <= nslices; s++) {
+                stack.addSlice(imp.getStack().getSliceLabel(s), burned[s]);
+            }
+            ImagePlus analyzed = new ImagePlus(imp.getShortTitle() + ".a", stack);
+            analyzed.setCalibration(imp.getCalibration());
+            if (imp.isHyperStack()) {
+                analyzed.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+                analyzed.setOpenAsHyperStack(true);
+            }
+            analyzed.show();
+        }
+        IJ.showStatus(nslices + " slices: " + counts[0] + " particles defined as points, random points " +
+                "placed on " + counts[1] + " profiles.");
+    }
+
+    // Returns an RGB copy of slice 's' of imp with the profiles of the slice
+    // that have a path burned in.
+    ImageProcessor burnSlice(ImagePlus imp, int s) {
+        ImageProcessor ip = ProfileDataDTP.getSliceProcessor(imp, s);
+        ImageProcessor rgb = ip instanceof ColorProcessor ? ip.duplicate() : ip.convertToRGB();
+        ImagePlus target = new ImagePlus("", rgb);
+        for (ProfileDataDTP p : profiles.getProfiles(imp)) {
+            if (p.slice == s && p.has(ComponentTypeDTP.PATH)) {
+                p.burnComponents(target);
+            }
+        }
+        return rgb;
+    }
+
+    // Opens a saved profile for editing on its image, which is opened from
+    // the folder of the profile if it is not open. If the profiles of the
+    // current image are in the catalog, they are offered to choose from.
+    void openProfile(ImagePlus imp) {
+        File f = null;
+
+        List<CatalogDTP.Entry> entries = catalog == null || imp == null ?
+                new ArrayList<CatalogDTP.Entry>() : catalog.getProfiles(imp.getTitle());
+        if (!entries.isEmpty()) {
+            String[] choices = new String[entries.size() + 1];
+            for (int i = 0; i < entries.size(); i++) {
+                CatalogDTP.Entry e = entries.get(i);
+                choices[i] = e.path + " (ID " + e.id + ", " + e.get(ComponentTypeDTP.POINTS) + " points)";
+            }
+            choices[entries.size()] = "Other file...";
+            GenericDialog gd = new GenericDialog("Open profile");
+            gd.addChoice("Profile:", choices, choices[0]);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            int k = gd.getNextChoiceIndex();
+            if (k < entries.size()) {
+                f = catalog.getFile(entries.get(k));
+            }
+        }
+        if (f == null) {
+            OpenDialog od = new OpenDialog("Open profile", "");
+            if (od.getFileName() == null) {
+                return;
+            }
+            f = new File(od.getDirectory(), od.getFileName());
+        }
+        ProfileRecordDTP r;
+        try {
+            r = ProfileRecordDTP.read(f);
+        } catch (IOException ex) {
+            IJ.error("DistToPath", "Could not read profile:\n" + ex.getMessage());
+            return;
+        }
+        ImagePlus target = WindowManager.getImage(r.image);
+        if (target == null) {
+            File img = new File(f.getAbsoluteFile().getParentFile(), r.image);
+            target = img.isFile() ? IJ.openImage(img.getPath()) : null;
+            if (target == null) {
+                IJ.error("DistToPath", "Could not open profile:\nImage " + r.image +
+                        " is not open, nor in the folder of the profile.");
+                return;
+            }
+            target.show();
+        }
+        this.imp = target;
+        showSlice(target, r.slice);
+        profile = profiles.select(target);
+        if (profile.dirty) {
+            profile = profiles.newProfile(target);
+        }
+        String warning = profile.load(r, target);
+        if (!warning.equals("")) {
+            IJ.log(f.getName() + ": " + warning);
+        }
+        IJ.showStatus("Opened " + f.getName() + ".");
+    }
+
+    // Brings the catalog of a folder of profiles up to date and shows it. The
+    // catalog is kept, so that Open profile can offer the profiles of the
+    // current image.
+    void showCatalog(ImagePlus imp) {
+        String dir = IJ.getDirectory("Folder of profiles");
+        if (dir == null) {
+            return;
+        }
+        File root = new File(dir);
+        if (catalog == null || !catalog.root.equals(root)) {
+            catalog = new CatalogDTP(root);
+        }
+        int nread;
+        IJ.showStatus("Updating profile catalog...");
+        try {
+            nread = catalog.update();
+        } catch (Exception ex) {
+            IJ.error("DistToPath", "Could not update profile catalog:\n" + ex.getMessage());
+            return;
+        }
+        ResultsTable rt = new ResultsTable();
+        Map<String, List<CatalogDTP.Entry>> byImage = catalog.byImage();
+        for (Map.Entry<String, List<CatalogDTP.Entry>> m : byImage.entrySet()) {
+            for (CatalogDTP.Entry e : m.getValue()) {
+                rt.incrementCounter();
+                rt.addValue("Image", m.getKey());
+                rt.addValue("Profile ID", e.id);
+                rt.addValue("File", e.path);
+                rt.addValue("Path nodes", e.get(ComponentTypeDTP.PATH));
+                rt.addValue("Points", e.get(ComponentTypeDTP.POINTS));
+                rt.addValue("Holes", e.holes);
+                rt.addValue("Frame", e.get(ComponentTypeDTP.FRAME) > 0 ? "yes" : "no");
+                rt.addValue("Random points", e.get(ComponentTypeDTP.RANDOM_POINTS));
+            }
+        }
+        rt.show("Profile catalog");
+        int n = catalog.getEntries().size();
+        String s = n + " profiles of " + byImage.size() + " images (" + nread + " files read)";
+        if (imp != null) {
+            s += ", " + catalog.getProfiles(imp.getTitle()).size() + " of " + imp.getTitle();
+        }
+        IJ.log("Profile catalog of " + dir + ": " + s);
+    }
+
+    // Opens the images of a folder as a workspace and shows the first one
+    // that is not done.
+    void openWorkspace() {
+        String dir = IJ.getDirectory("Folder of images");
+        if (dir == null) {
+            return;
+        }
+        WorkspaceDTP w;
+        try {
+            w = WorkspaceDTP.open(new File(dir));
+        } catch (IOException ex) {
+            IJ.error("DistToPath", "Could not open workspace:\n" + ex.getMessage());
+            return;
+        }
+        if (workspace != null) {
+            workspace.close();
+        }
+        workspace = w;
+        int i = workspace.nextPending(-1);
+        if (i < 0) {
+            IJ.showMessage("DistToPath", "All " + workspace.size() + " images are done.");
+            updateWorkspaceLabel();
+            return;
+        }
+        showImage(i);
+    }
+
+    // Shows image i of the workspace in place of the current image. The
+    // current image is hidden rather than closed; if it has unsaved
+    // profiles, it is kept out of the cache so that they are there when the
+    // user comes back to it.
+    void showImage(int i) {
+        ImagePlus old = imp;
+        ImagePlus next;
+        long start = System.nanoTime();
+
+        IJ.showStatus("Opening " + workspace.get(i).file.getName() + "...");
+        try {
+            next = workspace.show(i);
+        } catch (Exception ex) {
+            IJ.error("DistToPath", "Could not open image:\n" + ex.getMessage());
+            return;
+        }
+        if (next == old) {
+            return;
+        }
+        if (next.getWindow() == null) {
+            next.show();
+        }
+        next.setOverlay(profiles.getOverlay(next));
+        int k = old == null ? -1 : workspace.indexOf(old);
+        if (k >= 0 && k != i) {
+            boolean dirty = false;
+            for (ProfileDataDTP p : profiles.getProfiles(old)) {
+                dirty |= p.dirty;
+            }
+            workspace.keep(k, old, dirty);
+            old.hide();
+        }
+        imp = next;
+        profile = profiles.select(next);
+        updateWorkspaceLabel();
+        IJ.showStatus(String.format(Locale.US, "%s (%d/%d) shown in %.0f ms", next.getTitle(), i + 1,
+                workspace.size(), (System.nanoTime() - start) / 1e6));
+    }
+
+    void performCommand(String command) {
+        PolygonRoi p;
+        Roi r;
+        String s;
+
         imp = WindowManager.getCurrentImage();
-        imp.setOverlay(profile.overlay);
-        if (imp != null && imp.getType() != ImagePlus.COLOR_RGB) {
-            imp.setProcessor(imp.getTitle(), imp.getProcessor().convertToRGB());
+        profile = profiles.select(imp);
+        // Components are only drawn in the overlay while annotating; the image
+        // data is left as is, whatever its bit depth.
+        if (imp != null) {
+            imp.setOverlay(profiles.getOverlay(imp));
+            ImageCanvas ic = imp.getCanvas();
+            if (ic != null && !Arrays.asList(ic.getMouseListeners()).contains(selector)) {
+                ic.addMouseListener(selector);
+            }
         }
         if (command.equals("Save profile")) {
             if (!isImage(imp)) {
@@ -261,7 +1009,8 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
             } else {
                 boolean saved = profile.save(imp);
                 if (saved) {
-                    profile.clear();
+                    profiles.close(profile);
+                    profile = profiles.select(imp);
                 }
             }
         }
@@ -279,37 +1028,62 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
                 }
             }
             if (!profile.dirty) {
-                profile.clear();
+                profiles.close(profile);
+                profile = profiles.select(imp);
                 IJ.showStatus("Profile cleared.");
             }
         }
+        if (command.equals("New profile")) {
+            if (!isImage(imp)) {
+                return;
+            }
+            imp.deleteRoi();
+            if (profile.dirty) {
+                profile = profiles.newProfile(imp);
+            }
+            IJ.showStatus("New profile started.");
+        }
+        if (command.equals("Next profile")) {
+            if (!isImage(imp)) {
+                return;
+            }
+            profile = profiles.next(imp);
+            imp.deleteRoi();
+        }
+        if (command.equals("Open profile...")) {
+            openProfile(imp);
+        }
         if (command.equals("Path")) {
             if (!isImage(imp) || !profile.isSameImage(imp) ||
-                    profile.isDefined("path", "Path")) {
+                    profile.isDefined(ComponentTypeDTP.PATH, "Path")) {
                 return;
             }
             if ((p = getPolylineRoi(imp)) != null) {
-                p.setName("path");
-                p.setStrokeColor(pathCol);
-                profile.overlay.add(p);
-                profile.dirty = true;
+                try {
+                    s = profile.addPath(imp, p);
+                } catch (Exception ex) {
+                    IJ.error("DistToPath", "Could not process path:\n" + ex.getMessage());
+                    return;
+                }
+                if (!s.equals("")) {
+                    imp.deleteRoi();
+                    IJ.showStatus(s);
+                    IJ.log(imp.getTitle() + ": " + s);
+                }
             }
         }
         if (command.equals("Points")) {
             if (!isImage(imp) || !profile.isSameImage(imp) ||
-                    profile.isDefined("points", "Points")) {
+                    profile.isDefined(ComponentTypeDTP.POINTS, "Points")) {
                 return;
             }
             if ((p = getPointRoi(imp)) != null) {
-                p.setName("points");
-                p.setStrokeColor(pointCol);
-                profile.overlay.add(p);
-                profile.dirty = true;
+                profile.add(ComponentTypeDTP.POINTS, p);
             }
         }
         if (command.equals("Positive polarity")) {
             if (!isImage(imp) || !profile.isSameImage(imp) ||
-                    profile.overlay.getIndex("positive polarity") != -1) {
+                    profile.has(ComponentTypeDTP.POSITIVE_POLARITY)) {
                 return;
             }
             if ((p = getPointRoi(imp)) != null) {
@@ -317,10 +1091,7 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
                     IJ.error("DistToPath", "Could not define polarity:\nMore than one point selected.");
                     return;
                 }
-                p.setName("positive polarity");
-                p.setStrokeColor(pospolCol);
-                profile.overlay.add(p);
-                profile.dirty = true;
+                profile.add(ComponentTypeDTP.POSITIVE_POLARITY, p);
             }
         }
         if (command.equals("Hole")) {
@@ -328,65 +1099,120 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
                 return;
             }
             if ((p = getPolygonRoi(imp)) != null) {
-                p.setName("hole");
-                p.setStrokeColor(holeCol);
-                profile.overlay.add(p);
-                profile.dirty = true;
+                profile.add(ComponentTypeDTP.HOLE, p);
+            }
+        }
+        if (command.equals("Sampling frame")) {
+            if (!isImage(imp) || !profile.isSameImage(imp) ||
+                    profile.isDefined(ComponentTypeDTP.FRAME, "Sampling frame")) {
+                return;
+            }
+            if ((r = getAreaRoi(imp)) != null) {
+                profile.add(ComponentTypeDTP.FRAME, r);
             }
         }
         if (command.equals("Define thresholded particles as points")) {
-            if (!isImage(imp) || !profile.isSameImage(imp)) {
+            if (!isImage(imp) || !profile.isSameImage(imp) ||
+                    profile.isDefined(ComponentTypeDTP.POINTS, "Points")) {
                 return;
             }
-            RoiManager rm = new RoiManager();
-            ParticleAnalyzer.setRoiManager(rm);
-            ParticleAnalyzer pa = new ParticleAnalyzer();
-            pa.analyze(imp);
+            float[][] xy;
+            try {
+                xy = profile.detectParticles(imp);
+            } catch (Exception ex) {
+                IJ.error("DistToPath", "Could not detect particles:\n" + ex.getMessage());
+                return;
+            }
+            if (xy[0].length == 0) {
+                IJ.error("DistToPath", "No particles of the chosen size and circularity found.");
+                return;
+            }
+            profile.add(ComponentTypeDTP.POINTS, xy[0], xy[1], xy[0].length);
+            IJ.showStatus(xy[0].length + " particles defined as points.");
         }
         if (command.equals("Place random points")) {
             if (!isImage(imp) || !profile.isSameImage(imp) ||
-                    profile.overlay.getIndex("randon points") != -1) {
+                    profile.has(ComponentTypeDTP.RANDOM_POINTS)) {
+                return;
+            }
+            float[][] xy;
+            try {
+                xy = profile.placeRandomPoints(imp);
+            } catch (Exception ex) {
+                IJ.error("DistToPath", "Could not place random points:\n" + ex.getMessage());
+                return;
+            }
+            profile.add(ComponentTypeDTP.RANDOM_POINTS, xy[0], xy[1], xy[0].length);
+            profile.fieldsChanged();
+        }
+        if (command.equals("Distance map")) {
+            if (!isImage(imp) || !profile.isSameImage(imp)) {
+                return;
+            }
+            if (!profile.has(ComponentTypeDTP.PATH) && profile.heatMap == null) {
+                IJ.error("DistToPath", "Path not defined.");
+                return;
+            }
+            try {
+                if (profile.toggleHeatMap(imp) != null) {
+                    profile.getDistanceAreas(imp).show("Distance map areas");
+                }
+            } catch (Exception ex) {
+                IJ.error("DistToPath", "Could not compute distance map:\n" + ex.getMessage());
+                return;
+            }
+        }
+        if (command.equals("Envelope test...")) {
+            runEnvelopeTest(imp);
+        }
+        if (command.equals("Point pattern...")) {
+            if (!isImage(imp) || !profile.isSameImage(imp)) {
                 return;
             }
-            Random rnd = new Random();
-            randomPol = new Polygon();
-            for (i = 0; i < profile.randompn; i++) {
-                x = rnd.nextInt(imp.getWidth() - 1) + 1;
-                y = rnd.nextInt(imp.getHeight() - 1) + 1;
-                randomPol.addPoint(x, y);
+            runPointPattern(imp);
+        }
+        if (command.equals("Process all slices...")) {
+            if (!isImage(imp)) {
+                return;
             }
-            randomRoi = new PointRoi(randomPol);
-            randomRoi.setHideLabels(true);
-            randomRoi.setName("randon points");
-            randomRoi.setStrokeColor(randomCol);
-            profile.overlay.add(randomRoi);
+            processAllSlices(imp);
         }
         if (command.equals("Delete path")) {
             if (!isImage(imp) || !profile.isSameImage(imp)) {
                 return;
             }
-            profile.deleteNamedComponent(imp, "path");
+            profile.deleteNamedComponent(imp, ComponentTypeDTP.PATH);
         }
         if (command.equals("Delete points")) {
             if (!isImage(imp) || !profile.isSameImage(imp)) {
                 return;
             }
-            profile.deleteNamedComponent(imp, "points");
+            profile.deleteNamedComponent(imp, ComponentTypeDTP.POINTS);
         }
         if (command.equals("Delete polarity")) {
             if (!isImage(imp) || !profile.isSameImage(imp)) {
                 return;
             }
-            profile.deleteNamedComponent(imp, "positive polarity");
+            profile.deleteNamedComponent(imp, ComponentTypeDTP.POSITIVE_POLARITY);
+        }
+        if (command.equals("Delete sampling frame")) {
+            if (!isImage(imp) || !profile.isSameImage(imp)) {
+                return;
+            }
+            profile.deleteNamedComponent(imp, ComponentTypeDTP.FRAME);
         }
         if (command.equals("Delete random points")) {
             if (!isImage(imp) || !profile.isSameImage(imp)) {
                 return;
             }
-            profile.deleteNamedComponent(imp, "random points");
+            profile.deleteNamedComponent(imp, ComponentTypeDTP.RANDOM_POINTS);
         }
         if (command.equals("Delete selected component")) {
-            if ((imp.getRoi()) != null) {
+            if (!isImage(imp)) {
+                return;
+            }
+            if (imp.getRoi() != null) {
+                getSelectedComponent(imp);
                 profile.deleteSelectedComponent(imp);
             }
         }
@@ -394,18 +1220,90 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
             s = IJ.getString("Set profile n", IJ.d2s(profile.ntot, 0));
             profile.ntot = java.lang.Integer.parseInt(s);
         }
-        if (command.equals("Add comment")) {
-            s = IJ.getString("Comment: ", profile.comment);
-            if (!s.equals("")) {
-                profile.comment = s;
-                profile.dirty = true;
+        if (command.equals("Open tiled image...")) {
+            OpenDialog od = new OpenDialog("Open tiled image", "");
+            if (od.getFileName() == null) {
+                return;
+            }
+            try {
+                IJ.showStatus("Opening overview of " + od.getFileName() + "...");
+                TiledImageDTP.openOverview(new File(od.getDirectory(), od.getFileName())).show();
+            } catch (IOException ex) {
+                IJ.error("DistToPath", "Could not open tiled image:\n" + ex.getMessage());
+                return;
             }
         }
-        if (command.equals("Options...")) {
-            GenericDialog gd = new GenericDialog("Options");
-            gd.setInsets(0, 0, 0);
-            gd.addMessage("Random particles:");
+        if (command.equals("Profile catalog...")) {
+            showCatalog(imp);
+        }
+        if (command.equals("Open workspace...")) {
+            openWorkspace();
+        }
+        if (command.equals("Next image") || command.equals("Previous image")) {
+            if (workspace == null) {
+                IJ.error("DistToPath", "No workspace open.");
+                return;
+            }
+            int k = imp == null ? -1 : workspace.indexOf(imp);
+            if (k < 0) {
+                k = workspace.getIndex();
+            }
+            int i = command.equals("Next image") ? workspace.nextPending(k) : k - 1;
+            if (i < 0 || i >= workspace.size()) {
+                IJ.showStatus(command.equals("Next image") ? "No pending image after this one." :
+                        "This is the first image.");
+                return;
+            }
+            showImage(i);
+        }
+        if (command.equals("Mark image done")) {
+            int k = workspace == null || imp == null ? -1 : workspace.indexOf(imp);
+            if (k < 0) {
+                IJ.error("DistToPath", "The image is not in the workspace.");
+                return;
+            }
+            try {
+                workspace.setDone(k, !workspace.get(k).done);
+            } catch (IOException ex) {
+                IJ.error("DistToPath", "Could not save workspace:\n" + ex.getMessage());
+            }
+            updateWorkspaceLabel();
+            IJ.showStatus(imp.getTitle() + (workspace.get(k).done ? " done." : " pending."));
+        }
+        if (command.equals("Add comment")) {
+            s = IJ.getString("Comment: ", profile.comment);
+            if (!s.equals("")) {
+                profile.setComment(s);
+            }
+        }
+        if (command.equals("Options...")) {
+            GenericDialog gd = new GenericDialog("Options");
+            gd.setInsets(0, 0, 0);
+            gd.addMessage("Random particles:");
             gd.addNumericField("Random particle n:", profile.randompn, 0);
+            gd.addStringField("Random seed (0 = new seed each time):", Long.toString(profile.randomSeed), 20);
+            gd.addMessage("Particle detection:");
+            gd.addChoice("Gold particle diameter (nm):", goldSizes,
+                    IJ.d2s(profile.goldDiameter, 0));
+            gd.addNumericField("Diameter tolerance (%):", profile.diameterTolerance, 0);
+            gd.addNumericField("Minimum circularity:", profile.minCircularity, 2);
+            gd.addMessage("Path:");
+            gd.addNumericField("Simplification tolerance (nm, 0 = off):", profile.pathTolerance, 1);
+            gd.addCheckbox("Smooth path (spline)", profile.smoothPath);
+            gd.addNumericField("Node spacing of smoothed path (nm):", profile.pathSpacing, 1);
+            gd.addMessage("Distance map:");
+            gd.addNumericField("Distance bin width (nm):", profile.distanceBinWidth, 0);
+            gd.addMessage("Saving:");
+            gd.addChoice("Analyzed image:", analyzedFormats, profile.analyzedFormat);
+            gd.addNumericField("Preview size (pixels):", profile.previewSize, 0);
+            gd.addMessage("Tiled images:");
+            gd.addNumericField("Tile cache (MB):", TiledImageDTP.cache.getBudget() >> 20, 0);
+            gd.addMessage("Workspace:");
+            gd.addNumericField("Image cache (MB):", WorkspaceDTP.cacheBudget >> 20, 0);
+            gd.addNumericField("Images decoded ahead:", WorkspaceDTP.prefetchCount, 0);
+            gd.addMessage("Timing metrics:");
+            gd.addCheckbox("Export timing metrics (JSON or CSV)...", false);
+            gd.addCheckbox("Reset timing metrics", false);
             gd.showDialog();
             if (gd.wasCanceled())
                 return;
@@ -414,6 +1312,45 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
                 IJ.error("Random point n must be larger than 0. Reverting to default value (40).");
                 profile.randompn = 40;
             }
+            try {
+                profile.randomSeed = Long.parseLong(gd.getNextString().trim());
+            } catch (NumberFormatException ex) {
+                IJ.error("Random seed must be an integer. Using a new seed each time.");
+                profile.randomSeed = 0;
+            }
+            profile.goldDiameter = Double.parseDouble(gd.getNextChoice());
+            profile.diameterTolerance = Math.max(0, gd.getNextNumber());
+            profile.minCircularity = Math.max(0, Math.min(1, gd.getNextNumber()));
+            profile.pathTolerance = Math.max(0, gd.getNextNumber());
+            profile.smoothPath = gd.getNextBoolean();
+            double spacing = gd.getNextNumber();
+            if (spacing > 0) {
+                profile.pathSpacing = spacing;
+            }
+            double binWidth = gd.getNextNumber();
+            if (binWidth > 0) {
+                profile.distanceBinWidth = binWidth;
+            }
+            profile.analyzedFormat = gd.getNextChoice();
+            profile.previewSize = Math.max(64, (int) gd.getNextNumber());
+            TiledImageDTP.setCacheBudget(Math.max(16, (long) gd.getNextNumber()) << 20);
+            WorkspaceDTP.cacheBudget = Math.max(16, (long) gd.getNextNumber()) << 20;
+            WorkspaceDTP.prefetchCount = Math.max(0, (int) gd.getNextNumber());
+            boolean export = gd.getNextBoolean();
+            boolean reset = gd.getNextBoolean();
+            if (export) {
+                SaveDialog sd = new SaveDialog("Export timing metrics", "DistToPath-metrics", ".json");
+                if (sd.getFileName() != null) {
+                    try {
+                        MetricsDTP.registry.write(sd.getDirectory() + sd.getFileName());
+                    } catch (IOException ex) {
+                        IJ.error("DistToPath", "Could not export timing metrics:\n" + ex.getMessage());
+                    }
+                }
+            }
+            if (reset) {
+                MetricsDTP.registry.reset();
+            }
         }
         if (command.equals("About...")) {
             String aboutHtml = String.format("<html><p><strong>%s" +
@@ -436,14 +1373,28 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
                     VersionDTP.homepage);
             new HTMLDialog(VersionDTP.title, aboutHtml);
         }
-        updateInfoPanel();
-        imp.updateAndDraw();
+        profile.sampleHeap();
+        if (imp != null) {
+            updateInfoPanel();
+            imp.updateAndDraw();
+        }
         IJ.showStatus("");
     }
 
     public void processWindowEvent(WindowEvent e) {
+        if (e.getID() == WindowEvent.WINDOW_CLOSING && profile.saveQueue.getPending() > 0) {
+            IJ.showMessage("DistToPath", profile.saveQueue.getPending() +
+                    " profile(s) are still being saved.\nPlease close again when done.");
+            return;
+        }
         super.processWindowEvent(e);
         if (e.getID()==WindowEvent.WINDOW_CLOSING) {
+            if (profile.journal != null) {
+                profile.journal.close();
+            }
+            if (workspace != null) {
+                workspace.close();
+            }
             infoFrame.dispose();
             infoFrame = null;
             instance = null;
@@ -456,10 +1407,46 @@ public class DistToPath_ extends PlugInFrame implements OptionsDTP, ActionListen
 
 class ProfileDataDTP implements OptionsDTP {
     boolean dirty;
-    Overlay overlay;
-    int n, ntot, randompn, i;
+    Overlay overlay;             // view of the components, shown on the image
+    int n, ntot, randompn;
+    int viewScale;               // full resolution pixels per image pixel
+    String analyzedFormat;       // one of analyzedFormats
+    int previewSize;             // pixels, for JPEG and PNG previews
+    SaveQueueDTP saveQueue;      // null: save on the calling thread
+    JournalDTP journal;          // null: changes are not journaled
+    int journalKey;              // of the profile in the journal; 0 if none yet
+    double goldDiameter;         // nm
+    double diameterTolerance;    // percent of goldDiameter
+    double minCircularity;
+    long randomSeed, usedSeed;   // randomSeed 0: new seed for every placement
+    long peakHeap;               // bytes held by the profile, since last cleared
+    // Bytes of the image copies and working images of pending save jobs
+    private final java.util.concurrent.atomic.AtomicLong pendingBytes =
+            new java.util.concurrent.atomic.AtomicLong();
+    double distanceBinWidth;     // nm, for the areas of the distance map
+    int envelopeRuns;            // simulation runs of the envelope test
+    double envelopeRange;        // nm, largest distance in the envelope test
+    double patternRange;         // nm, largest distance of point pattern analysis
+    double pathTolerance;        // nm; 0: traced paths are not simplified
+    boolean smoothPath;          // fit a spline to traced paths
+    double pathSpacing;          // nm, between nodes of smoothed paths
+    String pathNote;             // how the path was processed, if it was
+    Roi heatMap;                 // view of the distance map; null if not shown
     int imgID;
+    int slice, channel;          // stack index and channel on a stack; 0 if not on a stack
     String ID, comment, prevImg;
+    // Components by type (indexed by ordinal) and in the order they were
+    // added. Changed under the profile lock; copy-on-write, so that readers
+    // (the event thread, and workers that process all slices) can iterate
+    // them while another thread adds or removes components.
+    private final List<List<ComponentDTP>> byType = new ArrayList<List<ComponentDTP>>();
+    private final List<ComponentDTP> components = new CopyOnWriteArrayList<ComponentDTP>();
+    private final Map<Roi, ComponentDTP> byRoi = new IdentityHashMap<Roi, ComponentDTP>();
+    private final int[] numPoints = new int[ComponentTypeDTP.values().length];
+    // Index of the components of all profiles of the image; null if none
+    private ComponentIndexDTP index;
+    // Live statistics for the info panel; null in snapshots, which need none
+    private ProfileStatsDTP stats = new ProfileStatsDTP();
 
     ProfileDataDTP() {
         this.n = 0;
@@ -469,128 +1456,461 @@ class ProfileDataDTP implements OptionsDTP {
         this.dirty = false;
         this.overlay = new Overlay();
         this.randompn = 200;
+        this.viewScale = 1;
+        this.analyzedFormat = analyzedFormats[0];
+        this.previewSize = 2048;
+        this.goldDiameter = 10;
+        this.diameterTolerance = 30;
+        this.minCircularity = 0.6;
+        this.distanceBinWidth = 10;
+        this.envelopeRuns = 999;
+        this.envelopeRange = 500;
+        this.patternRange = 200;
+        this.pathTolerance = 0;
+        this.smoothPath = false;
+        this.pathSpacing = 5;
+        this.pathNote = "";
+        this.randomSeed = 0;
+        this.usedSeed = 0;
         this.comment = "";
         this.ID = "";
+        for (ComponentTypeDTP t : ComponentTypeDTP.values()) {
+            byType.add(new CopyOnWriteArrayList<ComponentDTP>());
+        }
     }
 
 
-    // Returns number of ROIs named 'name' in the overlay. Returns 0 if ROI not found in overlay.
-    public int getNum(String name) {
-        int i, n=0;
+    // Returns the first component of type 't', or null if there is none.
+    public ComponentDTP get(ComponentTypeDTP t) {
+        for (ComponentDTP c : byType.get(t.ordinal())) {
+            return c;
+        }
+        return null;
+    }
 
-        for (i = 0; i < this.overlay.size(); i++) {
-            if (this.overlay.get(i).getName().equals(name)) {
-                n++;
-            }
+    // Returns all components of type 't' (e.g. holes); do not modify. The
+    // list may be iterated while components are added or removed.
+    public List<ComponentDTP> getAll(ComponentTypeDTP t) {
+        return byType.get(t.ordinal());
+    }
+
+    // Returns all components, in the order they were added; do not modify.
+    // The list may be iterated while components are added or removed.
+    public List<ComponentDTP> getComponents() {
+        return components;
+    }
+
+    public boolean has(ComponentTypeDTP t) {
+        return !byType.get(t.ordinal()).isEmpty();
+    }
+
+    // Returns number of components of type 't'.
+    public int getNum(ComponentTypeDTP t) {
+        return byType.get(t.ordinal()).size();
+    }
+
+    // Returns the total number of nodes or points in components of type 't'.
+    public int getNumPoints(ComponentTypeDTP t) {
+        return numPoints[t.ordinal()];
+    }
+
+    // Adds a component defined by 'roi', which becomes its view in the overlay.
+    public ComponentDTP add(ComponentTypeDTP t, Roi roi) {
+        return add(new ComponentDTP(t, roi, this.viewScale));
+    }
+
+    // Adds a component defined by full resolution coordinates; the arrays are
+    // not copied.
+    public ComponentDTP add(ComponentTypeDTP t, float[] x, float[] y, int n) {
+        return add(new ComponentDTP(t, x, y, n, this.viewScale));
+    }
+
+    private synchronized ComponentDTP add(ComponentDTP c) {
+        byType.get(c.type.ordinal()).add(c);
+        components.add(c);
+        byRoi.put(c.getRoi(), c);
+        numPoints[c.type.ordinal()] += c.n;
+        this.overlay.add(c.getRoi());
+        if (index != null) {
+            index.add(this, c);
+        }
+        if (stats != null) {
+            stats.changed(c.type, this);
+        }
+        distanceMapChanged(c.type);
+        if (journal != null) {
+            journal.added(this, c);
         }
-        return n;
+        this.dirty = true;
+        return c;
     }
-    // Returns number of points in ROI named 'name' in the overlay. Returns 0 if ROI not found in overlay.
-    public int getNumPoints(String name) {
-        if (this.overlay.getIndex(name) == -1) {
-            return 0;
-        } else {
-            return this.overlay.get(this.overlay.getIndex(name)).getPolygon().npoints;
+
+    public synchronized void remove(ComponentDTP c) {
+        if (!components.remove(c)) {
+            return;
+        }
+        byType.get(c.type.ordinal()).remove(c);
+        byRoi.remove(c.getRoi());
+        numPoints[c.type.ordinal()] -= c.n;
+        this.overlay.remove(c.getRoi());
+        if (index != null) {
+            index.remove(c);
         }
+        if (stats != null) {
+            stats.changed(c.type, this);
+        }
+        distanceMapChanged(c.type);
+        if (journal != null) {
+            journal.removed(this, c);
+        }
+    }
+
+    // Journals the comment, path note and random seed after a change.
+    void fieldsChanged() {
+        if (journal != null) {
+            journal.fieldsChanged(this);
+        }
+    }
+
+    public void setComment(String comment) {
+        this.comment = comment;
+        this.dirty = true;
+        fieldsChanged();
+    }
+
+    private void distanceMapChanged(ComponentTypeDTP t) {
+        if (t == ComponentTypeDTP.PATH) {
+            pathNote = "";
+        }
+        if (t == ComponentTypeDTP.PATH || t == ComponentTypeDTP.POSITIVE_POLARITY) {
+            DistanceMapDTP.remove(this);
+            heatMap = null;
+        }
+    }
+
+    // Adds the path traced as 'roi', simplified and/or smoothed as set in the
+    // options. Returns a description of what was done, with the largest
+    // deviation from the traced path, or "" if the path was added as traced.
+    public String addPath(ImagePlus imp, Roi roi) throws Exception {
+        if (this.pathTolerance <= 0 && !this.smoothPath) {
+            add(ComponentTypeDTP.PATH, roi);
+            return "";
+        }
+        double nmPerPixel = getNmPerPixel(imp);
+        ComponentDTP traced = new ComponentDTP(ComponentTypeDTP.PATH, roi, this.viewScale);
+        float[][] xy = {traced.x, traced.y};
+        String what = "";
+        if (this.smoothPath) {
+            xy = PathFilterDTP.smooth(xy[0], xy[1], xy[0].length, this.pathSpacing / nmPerPixel);
+            what = "smoothed";
+        }
+        if (this.pathTolerance > 0) {
+            xy = PathFilterDTP.simplify(xy[0], xy[1], xy[0].length, this.pathTolerance / nmPerPixel);
+            what = what.equals("") ? "simplified" : what + " and simplified";
+        }
+        double error = PathFilterDTP.maxError(traced.x, traced.y, traced.n,
+                xy[0], xy[1], xy[0].length) * nmPerPixel;
+        add(ComponentTypeDTP.PATH, xy[0], xy[1], xy[0].length);
+        this.pathNote = String.format(Locale.US, "%d nodes %s to %d, max error %.2f nm",
+                traced.n, what, xy[0].length, error);
+        fieldsChanged();
+        return "Path " + this.pathNote + ".";
+    }
+
+    public ProfileStatsDTP getStats() {
+        return stats;
+    }
+
+    // Returns the component that 'roi' is the view of, or null.
+    public synchronized ComponentDTP getComponent(Roi roi) {
+        return roi == null ? null : byRoi.get(roi);
     }
 
     public void deleteSelectedComponent(ImagePlus imp) {
-        if (!this.overlay.contains(imp.getRoi())) {
+        ComponentDTP c = getComponent(imp.getRoi());
+
+        if (c == null) {
             IJ.error("The current selection does not define a profile component.");
         } else {
             YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(),
-                    "DistToPath", "Delete " + imp.getRoi().getName() + "?");
+                    "DistToPath", "Delete " + c.type.name + "?");
             if (d.yesPressed()) {
-                this.overlay.remove(imp.getRoi());
+                remove(c);
                 imp.deleteRoi();
             }
         }
     }
 
-    public void deleteNamedComponent(ImagePlus imp, String name) {
-        if (this.overlay.getIndex(name) == -1) {
-            IJ.error("No " + name + " defined.");
+    public void deleteNamedComponent(ImagePlus imp, ComponentTypeDTP t) {
+        if (!has(t)) {
+            IJ.error("No " + t.name + " defined.");
         } else {
             YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(),
-                    "DistToPath", "Delete " + name + "?");
+                    "DistToPath", "Delete " + t.name + "?");
             if (d.yesPressed()) {
-                this.overlay.remove(this.overlay.getIndex(name));
+                remove(get(t));
             }
         }
     }
 
+    // Makes the current slice of 'imp' the image of the profile, with
+    // 'index' the index of the components on it; imp null takes the profile
+    // off its image.
+    void bind(ImagePlus imp, ComponentIndexDTP index) {
+        bind(imp, sliceOf(imp), index);
+    }
+
+    synchronized void bind(ImagePlus imp, int slice, ComponentIndexDTP index) {
+        if (this.index != null) {
+            for (ComponentDTP c : components) {
+                this.index.remove(c);
+            }
+        }
+        this.imgID = imp == null ? 0 : imp.getID();
+        this.slice = imp == null ? 0 : slice;
+        this.channel = slice > 0 && imp.getNChannels() > 1 ? imp.convertIndexToPosition(slice)[0] : 0;
+        this.viewScale = imp == null ? 1 : TiledImageDTP.getViewScale(imp);
+        this.index = index;
+        distanceMapChanged(ComponentTypeDTP.PATH);
+        if (index != null) {
+            for (ComponentDTP c : components) {
+                index.add(this, c);
+            }
+        }
+    }
+
+    // Takes over the settings and profile numbering of 'p'.
+    void copySettings(ProfileDataDTP p) {
+        this.n = p.n;
+        this.ntot = p.ntot;
+        this.prevImg = p.prevImg;
+        this.randompn = p.randompn;
+        this.randomSeed = p.randomSeed;
+        this.goldDiameter = p.goldDiameter;
+        this.diameterTolerance = p.diameterTolerance;
+        this.minCircularity = p.minCircularity;
+        this.distanceBinWidth = p.distanceBinWidth;
+        this.envelopeRuns = p.envelopeRuns;
+        this.envelopeRange = p.envelopeRange;
+        this.patternRange = p.patternRange;
+        this.pathTolerance = p.pathTolerance;
+        this.smoothPath = p.smoothPath;
+        this.pathSpacing = p.pathSpacing;
+        this.analyzedFormat = p.analyzedFormat;
+        this.previewSize = p.previewSize;
+        this.saveQueue = p.saveQueue;
+        this.journal = p.journal;
+    }
+
     public boolean isSameImage(ImagePlus imp) {
         if (!this.dirty || this.imgID == 0) {
             this.imgID = imp.getID();
+            this.slice = sliceOf(imp);
+            this.channel = this.slice > 0 && imp.getNChannels() > 1 ? imp.getChannel() : 0;
+            this.viewScale = TiledImageDTP.getViewScale(imp);
             return true;
-        } else if (this.imgID == imp.getID()) {
+        } else if (this.imgID == imp.getID() && this.slice == sliceOf(imp)) {
             return true;
         } else {
-            IJ.error("DistToPath", "All measurements must be performed on the same image.");
+            IJ.error("DistToPath", "All measurements must be performed on the same image and slice.");
             return false;
         }
     }
 
-    public boolean isDefined(String name, String errstr) {
-        if (this.overlay.getIndex(name) != -1) {
+    // Returns the stack index of the current slice of 'imp', or 0 if imp is
+    // not a stack.
+    static int sliceOf(ImagePlus imp) {
+        return imp == null || imp.getStackSize() == 1 ? 0 : imp.getCurrentSlice();
+    }
+
+    // Returns the processor of the slice of the profile: the processor of imp
+    // if the slice is shown, else one over the pixels of the slice in the
+    // stack (not copied), with the display range and threshold of imp.
+    public ImageProcessor getSliceProcessor(ImagePlus imp) {
+        return getSliceProcessor(imp, this.slice);
+    }
+
+    static ImageProcessor getSliceProcessor(ImagePlus imp, int slice) {
+        if (slice == 0 || slice == imp.getCurrentSlice() || slice > imp.getStackSize()) {
+            return imp.getProcessor();
+        }
+        ImageStack stack = imp.getStack();
+        ImageProcessor ip, shown = imp.getProcessor();
+        if (stack.isVirtual()) {
+            // Virtual stacks read slices through shared state
+            synchronized (stack) {
+                ip = stack.getProcessor(slice);
+            }
+        } else {
+            ip = stack.getProcessor(slice);
+        }
+        if (!(ip instanceof ColorProcessor)) {
+            ip.setMinAndMax(shown.getMin(), shown.getMax());
+            if (shown.getMinThreshold() != ImageProcessor.NO_THRESHOLD) {
+                ip.setThreshold(shown.getMinThreshold(), shown.getMaxThreshold(),
+                        ImageProcessor.NO_LUT_UPDATE);
+            }
+        }
+        return ip;
+    }
+
+    // Returns {x, y} arrays of profile.randompn random points inside the
+    // sampling frame (or the whole image if no frame is defined), avoiding
+    // holes. The seed used is kept in usedSeed so that it can be saved.
+    public float[][] placeRandomPoints(ImagePlus imp) throws Exception {
+        return placeRandomPoints(imp, this.randomSeed);
+    }
+
+    // As above, with 'seed' (0: a new seed) instead of randomSeed.
+    public float[][] placeRandomPoints(ImagePlus imp, long seed) throws Exception {
+        RandomPointsDTP generator;
+        PolygonTestDTP[] holes = getHoleTests();
+
+        if (has(ComponentTypeDTP.FRAME)) {
+            PolygonTestDTP frame = polygonTest(get(ComponentTypeDTP.FRAME));
+            generator = new RandomPointsDTP(frame.minx, frame.miny, frame.maxx - frame.minx,
+                    frame.maxy - frame.miny, frame, holes);
+        } else {
+            generator = new RandomPointsDTP(0, 0, getImageWidth(imp), getImageHeight(imp),
+                    null, holes);
+        }
+        this.usedSeed = seed != 0 ? seed : RandomPointsDTP.newSeed();
+        return generator.generate(this.randompn, this.usedSeed);
+    }
+
+    // Returns the pattern of the points of type 't' in the sampling frame,
+    // or the image, without holes.
+    public PointPatternDTP getPointPattern(ImagePlus imp, ComponentTypeDTP t) throws Exception {
+        ComponentDTP c = get(t);
+
+        return new PointPatternDTP(c.x, c.y, c.n, get(ComponentTypeDTP.FRAME),
+                new ArrayList<ComponentDTP>(getAll(ComponentTypeDTP.HOLE)),
+                getImageWidth(imp), getImageHeight(imp));
+    }
+
+    // Returns {x, y} arrays of the centroids of the thresholded particles of
+    // imp that match goldDiameter (within diameterTolerance) and
+    // minCircularity.
+    public float[][] detectParticles(ImagePlus imp) throws Exception {
+        TiledImageDTP src = TiledImageDTP.get(imp);
+        ParticleDetectorDTP detector = src == null ?
+                new ParticleDetectorDTP(getSliceProcessor(imp)) :
+                new ParticleDetectorDTP(src, imp.getProcessor());
+
+        if (!detector.isThresholded()) {
+            throw new Exception("The image must be thresholded (Image > Adjust > Threshold).");
+        }
+        double nmPerPixel = getNmPerPixel(imp);
+        double dmin = this.goldDiameter * (1 - this.diameterTolerance / 100) / nmPerPixel;
+        double dmax = this.goldDiameter * (1 + this.diameterTolerance / 100) / nmPerPixel;
+        return detector.detect(Math.PI / 4 * dmin * dmin, Math.PI / 4 * dmax * dmax,
+                this.minCircularity);
+    }
+
+    // Returns the full resolution pixel width of 'imp' in nm.
+    static double getNmPerPixel(ImagePlus imp) throws Exception {
+        Calibration cal = imp.getCalibration();
+        String unit = cal.getUnit();
+        double nmPerPixel;
+
+        if (unit.equals("nm")) {
+            nmPerPixel = cal.pixelWidth;
+        } else if (unit.equals("micron") || unit.equals("\u00B5m") || unit.equals("um")) {
+            nmPerPixel = cal.pixelWidth * 1000;
+        } else {
+            throw new Exception("The image scale must be set in nm or \u00B5m.");
+        }
+        return nmPerPixel / TiledImageDTP.getViewScale(imp);
+    }
+
+    // Full resolution size of imp, which may be the overview of a tiled image.
+    static int getImageWidth(ImagePlus imp) {
+        TiledImageDTP src = TiledImageDTP.get(imp);
+        return src == null ? imp.getWidth() : src.width;
+    }
+
+    static int getImageHeight(ImagePlus imp) {
+        TiledImageDTP src = TiledImageDTP.get(imp);
+        return src == null ? imp.getHeight() : src.height;
+    }
+
+    public PolygonTestDTP[] getHoleTests() {
+        ComponentDTP[] holes = getAll(ComponentTypeDTP.HOLE).toArray(new ComponentDTP[0]);
+        PolygonTestDTP[] tests = new PolygonTestDTP[holes.length];
+        int k;
+
+        for (k = 0; k < tests.length; k++) {
+            tests[k] = polygonTest(holes[k]);
+        }
+        return tests;
+    }
+
+    static PolygonTestDTP polygonTest(ComponentDTP c) {
+        return new PolygonTestDTP(c.x, c.y, c.n);
+    }
+
+    public boolean isDefined(ComponentTypeDTP t, String errstr) {
+        if (has(t)) {
             IJ.error(errstr + " already defined. Please delete old instance first.");
             return true;
         }
         return false;
     }
 
-    private boolean CheckProfileData(ImagePlus imp) {
-        String[] warnstr, errstr;
-        int i, nwarn = 0, nerr = 0;
-
-        warnstr = new String[9];
-        errstr = new String[9];
+    // Collects the errors and warnings that CheckProfileData reports, without
+    // showing any dialogs. Returns true if no errors were found.
+    public boolean validate(ImagePlus imp, List<String> errors, List<String> warnings) {
         Calibration c = imp.getCalibration();
         if (c.getUnit().equals(" ") || c.getUnit().equals("inch")) {
-            errstr[nerr++] = "It appears the scale has not been set.";
+            errors.add("It appears the scale has not been set.");
         }
-        if (this.getNumPoints("path") == 0) {
-            errstr[nerr++] = "Path not defined.";
+        if (getNumPoints(ComponentTypeDTP.PATH) == 0) {
+            errors.add("Path not defined.");
         }
-        if (this.getNumPoints("points") == 0) {
-            warnstr[nwarn++] = "No point coordinates defined.";
+        if (getNumPoints(ComponentTypeDTP.POINTS) == 0) {
+            warnings.add("No point coordinates defined.");
         }
-        if (this.overlay.getIndex("positive polarity") == -1) {
-            warnstr[nwarn++] = "Positive polarity not defined.";
+        if (!has(ComponentTypeDTP.POSITIVE_POLARITY)) {
+            warnings.add("Positive polarity not defined.");
         }
-        if (nerr > 0) {
-            IJ.error("DistToPath", "Error:\n" + errstr[0]);
+        return errors.isEmpty();
+    }
+
+    private boolean CheckProfileData(ImagePlus imp) {
+        List<String> errors = new ArrayList<String>();
+        List<String> warnings = new ArrayList<String>();
+
+        if (!validate(imp, errors, warnings)) {
+            IJ.error("DistToPath", "Error:\n" + errors.get(0));
             return false;
         }
-        if (nwarn > 0) {
-            for (i = 0; i < nwarn; i++) {
-                YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(),
-                        "DistToPath", "Warning:\n" + warnstr[i] + "\nContinue anyway?");
-                if (!d.yesPressed()) {
-                    return false;
-                }
+        for (String warning : warnings) {
+            YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(),
+                    "DistToPath", "Warning:\n" + warning + "\nContinue anyway?");
+            if (!d.yesPressed()) {
+                return false;
             }
         }
         return true;
     }
 
 
-    public boolean save(ImagePlus imp) {
-        int i;
-        double pixelwidth;
-        String s, unit;
-        Polygon pol;
+    public boolean save(final ImagePlus imp) {
+        String s;
+        final String profilePath;
+        final String imagePath;
 
         IJ.showStatus("Saving profile...");
-        if (!CheckProfileData(imp)) {
-            return false;
-        }
-        Calibration c = imp.getCalibration();
-        if (c.pixelWidth != c.pixelHeight) {
-            IJ.showMessage("Warning: pixel aspect ratio is not 1.\n" +
-                    "Only pixel WIDTH is used.");
-        }
+        MetricsDTP.Sample dialogs = MetricsDTP.registry.start("Save: dialogs");
         try {
+            if (!CheckProfileData(imp)) {
+                return false;
+            }
+            Calibration c = imp.getCalibration();
+            if (c.pixelWidth != c.pixelHeight) {
+                IJ.showMessage("Warning: pixel aspect ratio is not 1.\n" +
+                        "Only pixel WIDTH is used.");
+            }
             if (!imp.getTitle().equals(this.prevImg)) {
                 this.n = 0;
                 this.prevImg = imp.getTitle();
@@ -605,157 +1925,628 @@ class ProfileDataDTP implements OptionsDTP {
                             IJ.d2s(this.n,0), ".dtp");
             if (sd.getFileName() == null) {
                 this.n--;
+                MetricsDTP.registry.increment("Save: cancelled");
                 return false;
             }
-            PrintWriter outf =
-                    new PrintWriter(
-                            new BufferedWriter(
-                                    new FileWriter(sd.getDirectory() +
-                                            sd.getFileName())));
-            String versionInfo = String.format("# %s version %s (%s %s, %s)",
-                    VersionDTP.title,
-                    VersionDTP.version,
-                    VersionDTP.month,
-                    VersionDTP.day,
-                    VersionDTP.year);
-            outf.println(versionInfo);
-            outf.println("IMAGE " + imp.getTitle());
-            outf.println("PROFILE_ID " + this.ID);
-            if (!this.comment.equals("")) {
-                outf.println("COMMENT " + this.comment);
-            }
-            if (c.getUnit().equals("micron")) {
-                pixelwidth = c.pixelWidth * 1000;
-                unit = "nm";
+            profilePath = sd.getDirectory() + sd.getFileName();
+            this.ntot++;
+            sd = new SaveDialog("Save analyzed image",
+                    imp.getShortTitle(),
+                    getAnalyzedExtension());
+            imagePath = sd.getFileName() == null ? null : sd.getDirectory() + sd.getFileName();
+        } finally {
+            stopSample(dialogs, imp);
+        }
+        // Only the snapshot is taken here; the files are written by the save
+        // queue, or right away if there is none.
+        SaveQueueDTP.Job job = createSaveJob(imp, profilePath, imagePath);
+        job.stage("snapshot");
+        try {
+            if (this.saveQueue != null) {
+                this.saveQueue.submit(job);
             } else {
-                pixelwidth = c.pixelWidth;
-                unit = c.getUnit();
-            }
-            outf.println("PIXELWIDTH " + IJ.d2s(pixelwidth) + " " + unit);
-            if (this.overlay.getIndex("positive polarity") != -1) {
-                pol = this.overlay.get(this.overlay.getIndex("positive polarity")).getPolygon();
-                outf.println("POSLOC " + IJ.d2s(pol.xpoints[0], 0) + ", " + IJ.d2s(pol.ypoints[0], 0));
-            }
-            outf.println("PATH");
-            pol = this.overlay.get(this.overlay.getIndex("path")).getPolygon();
-            for (i = 0; i < pol.npoints; i++) {
-                outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", "+ IJ.d2s(pol.ypoints[i], 0));
-            }
-            outf.println("END");
-            for (n = 0; n < this.overlay.size(); n++) {
-                if (this.overlay.get(n).getName().equals("hole")) {
-                    outf.println("HOLE");
-                    pol = this.overlay.get(n).getPolygon();
-                    for (i = 0; i < pol.npoints; i++)
-                        outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", "+ IJ.d2s(pol.ypoints[i], 0));
-                    outf.println("END");
-                }
+                job.run();
             }
-            if (this.overlay.getIndex("points") != -1) {
-                outf.println("POINTS");
-                pol = this.overlay.get(this.overlay.getIndex("points")).getPolygon();
-                for (i = 0; i < pol.npoints; i++) {
-                    outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", " + IJ.d2s(pol.ypoints[i], 0));
+        } catch (Exception e) {
+            job.dispose();
+            MetricsDTP.registry.increment("Save: failed");
+            IJ.error("DistToPath", "Could not save profile:\n" + e.getMessage());
+            return false;
+        }
+        // The job ends the profile in the journal once it is written, so
+        // that a profile that fails to save can still be recovered
+        this.journalKey = 0;
+        return true;
+    }
+
+
+    // Returns a job that writes the profile to 'profilePath' and, unless
+    // null, the analyzed image to 'imagePath'. The profile, and the image if
+    // it is to be written, are copied when the job is made, and the job holds
+    // a reference to the source of a tiled image, so they may be changed or
+    // closed before the job is run.
+    SaveQueueDTP.Job createSaveJob(final ImagePlus imp, final String profilePath,
+                                   final String imagePath) {
+        final JournalDTP journal = this.journal;
+        final int journalKey = this.journalKey;
+        SaveQueueDTP.Job job = new SaveQueueDTP.Job(new File(profilePath).getName()) {
+            ProfileDataDTP snap = snapshot();
+            // Pixels are only copied for the analyzed image; the profile
+            // alone needs the title and calibration
+            ImagePlus image = imagePath != null ? snapshotImage(imp, getSliceProcessor(imp))
+                    : snapshotHeader(imp);
+            // A tiled source is read when the job runs, maybe after imp is closed
+            TiledImageDTP src = imagePath != null ? TiledImageDTP.retain(imp) : null;
+            long bytes = reserveBytes(imagePath != null ? getJobBytes(image) : 0);
+
+            void run() throws Exception {
+                try {
+                    File dest = new File(profilePath);
+                    File tmp = SaveQueueDTP.createTempFile(dest);
+                    try {
+                        snap.writeProfile(image, tmp.getPath());
+                        SaveQueueDTP.rename(tmp, dest);
+                    } finally {
+                        tmp.delete();
+                    }
+                    stage("profile");
+                    if (journal != null) {
+                        journal.end(journalKey);
+                    }
+                    if (imagePath != null) {
+                        dest = new File(imagePath);
+                        tmp = SaveQueueDTP.createTempFile(dest);
+                        try {
+                            snap.writeAnalyzedImage(image, tmp.getPath());
+                            SaveQueueDTP.rename(tmp, dest);
+                        } finally {
+                            tmp.delete();
+                        }
+                        stage("image");
+                    }
+                } finally {
+                    dispose();
                 }
-                outf.println("END");
             }
-            if (this.overlay.getIndex("randon points") != -1) {
-                outf.println("RANDOM_POINTS");
-                pol = this.overlay.get(this.overlay.getIndex("randon points")).getPolygon();
-                for (i = 0; i < pol.npoints; i++) {
-                    outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", " + IJ.d2s(pol.ypoints[i], 0));
+
+            synchronized void dispose() {
+                image.flush();
+                if (src != null) {
+                    src.release();
+                    src = null;
                 }
-                outf.println("END");
+                pendingBytes.addAndGet(-bytes);
+                bytes = 0;
             }
-            outf.close();
-        } catch (Exception e) {
-            return false;
+        };
+        sampleHeap();
+        job.pixels = (long) getImageWidth(imp) * getImageHeight(imp);
+        job.components = components.size();
+        job.points = getNumPoints(ComponentTypeDTP.POINTS);
+        return job;
+    }
+
+    // Records a timing sample with the image size and component counts.
+    void stopSample(MetricsDTP.Sample sample, ImagePlus imp) {
+        long pixels = imp == null ? 0 : (long) getImageWidth(imp) * getImageHeight(imp);
+
+        sample.stop(pixels, components.size(), getNumPoints(ComponentTypeDTP.POINTS));
+    }
+
+
+    // Returns a copy of the profile for saving in the background. Components
+    // are never modified once made, so they are shared.
+    synchronized ProfileDataDTP snapshot() {
+        ProfileDataDTP snap = new ProfileDataDTP();
+
+        snap.stats = null;
+        snap.ID = this.ID;
+        snap.comment = this.comment;
+        snap.usedSeed = this.usedSeed;
+        snap.viewScale = this.viewScale;
+        snap.slice = this.slice;
+        snap.channel = this.channel;
+        snap.analyzedFormat = this.analyzedFormat;
+        snap.previewSize = this.previewSize;
+        snap.pathNote = this.pathNote;
+        for (ComponentDTP c : this.components) {
+            snap.add(c);
         }
-        writeIDtext(imp);
-        drawComponents(imp);
-        this.ntot++;
-        SaveDialog sd = new SaveDialog("Save analyzed image",
-                imp.getShortTitle(),
-                ".a.tif");
-        if (sd.getFileName() != null) {
-            FileSaver saveTiff = new FileSaver(imp);
-            saveTiff.saveAsTiff(sd.getDirectory() + sd.getFileName());
+        snap.dirty = false;
+        return snap;
+    }
+
+    // Returns a copy of 'ip' (the processor of a slice of imp) as an image
+    // like imp, so that it can be saved after imp is closed. A tiled image is
+    // not copied, only its overview.
+    static ImagePlus snapshotImage(ImagePlus imp, ImageProcessor ip) {
+        ImagePlus snap = new ImagePlus(imp.getTitle(), ip.duplicate());
+
+        snap.setCalibration(imp.getCalibration());
+        if (!(ip instanceof ColorProcessor)) {
+            snap.setDisplayRange(imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
         }
-        return true;
+        if (TiledImageDTP.get(imp) != null) {
+            snap.setProperty(TiledImageDTP.PROPERTY, TiledImageDTP.get(imp));
+        }
+        return snap;
     }
 
 
-    private void drawComponents(ImagePlus imp) {
-        Polygon pol;
-        int n, x, y;
+    // Returns an image with the title and calibration of imp but no pixels,
+    // for saving the profile without the analyzed image.
+    static ImagePlus snapshotHeader(ImagePlus imp) {
+        ImagePlus snap = new ImagePlus();
+
+        snap.setTitle(imp.getTitle());
+        snap.setCalibration(imp.getCalibration());
+        return snap;
+    }
+
+
+    String getAnalyzedExtension() {
+        return getAnalyzedExtension(this.analyzedFormat);
+    }
+
+    // Returns the file name extension of analyzed images in 'format', one of
+    // analyzedFormats.
+    static String getAnalyzedExtension(String format) {
+        if (format.startsWith("JPEG")) {
+            return ".a.jpg";
+        } else if (format.startsWith("PNG")) {
+            return ".a.png";
+        }
+        return ".a.tif";
+    }
+
 
-        for (n = 0; n < this.overlay.size(); n++) {
-            imp.setColor(this.overlay.get(n).getStrokeColor());
-            if (this.overlay.get(n).getName().equals("points")) {
-                pol = this.overlay.get(n).getPolygon();
-                for (i = 0; i < pol.npoints; i++) {
-                    x = pol.xpoints[i];
-                    y = pol.ypoints[i];
-                    imp.getProcessor().drawLine(x - 3, y, x + 3, y);
-                    imp.getProcessor().drawLine(x, y - 3, x, y + 3);
+    // Saves the analyzed image (see createAnalyzedImage) in analyzedFormat: a
+    // TIFF file, optionally compressed, or a JPEG or PNG preview of at most
+    // previewSize pixels. For a tiled image, a TIFF is read, burned and
+    // written one band of tiles at a time, so it never has to fit in memory.
+    public void writeAnalyzedImage(ImagePlus imp, String path) throws IOException {
+        TiledImageDTP src = TiledImageDTP.get(imp);
+        int compression = RgbTiffWriterDTP.NONE;
+        int y0;
+
+        if (this.analyzedFormat.endsWith("preview")) {
+            writePreview(imp, path);
+            return;
+        } else if (this.analyzedFormat.equals("TIFF (LZW)")) {
+            compression = RgbTiffWriterDTP.LZW;
+        } else if (this.analyzedFormat.equals("TIFF (deflate)")) {
+            compression = RgbTiffWriterDTP.DEFLATE;
+        }
+        if (src == null) {
+            ImagePlus analyzed = createAnalyzedImage(imp);
+            if (compression == RgbTiffWriterDTP.NONE) {
+                FileSaver saveTiff = new FileSaver(analyzed);
+                if (!saveTiff.saveAsTiff(path)) {
+                    throw new IOException("Could not write " + path);
+                }
+            } else {
+                RgbTiffWriterDTP out = new RgbTiffWriterDTP(path, analyzed.getWidth(),
+                        analyzed.getHeight(), analyzed.getCalibration(), compression);
+                try {
+                    out.writeRows((int[]) analyzed.getProcessor().getPixels(), analyzed.getHeight());
+                } finally {
+                    out.close();
                 }
-            }  else {
-                this.overlay.get(n).drawPixels(imp.getProcessor());
             }
+            analyzed.flush();
+            return;
+        }
+        int bandHeight = TiledImageDTP.tileSize;
+        Calibration cal = imp.getCalibration().copy();
+        cal.pixelWidth /= this.viewScale;
+        // The ID text may straddle bands, so it is drawn once on a patch of the
+        // image that is then inserted in the bands. The text bounds are only
+        // known once drawn, so the patch is sized by the font size.
+        ColorProcessor label;
+        Rectangle lb;
+        synchronized (TextRoi.class) {
+            TextRoi t = createIDtext(src.width, src.height, 1);
+            int size = src.height / 42;
+            Rectangle loc = t.getBounds();
+            lb = new Rectangle(loc.x - size, loc.y - size, size * (this.ID.length() + 3), size * 4)
+                    .intersection(new Rectangle(0, 0, src.width, src.height));
+            label = toRGB(src.readRegion(0, lb), imp);
+            t.setLocation(loc.x - lb.x, loc.y - lb.y);
+            label.setColor(textCol);
+            t.drawPixels(label);
+        }
+        RgbTiffWriterDTP out = new RgbTiffWriterDTP(path, src.width, src.height, cal, compression);
+        try {
+            for (y0 = 0; y0 < src.height; y0 += bandHeight) {
+                IJ.showProgress(y0, src.height);
+                ColorProcessor rgb = toRGB(src.readRegion(0,
+                        new Rectangle(0, y0, src.width, Math.min(bandHeight, src.height - y0))), imp);
+                rgb.insert(label, lb.x, lb.y - y0);
+                drawComponents(rgb, 1, y0);
+                out.writeRows((int[]) rgb.getPixels(), rgb.getHeight());
+            }
+        } finally {
+            IJ.showProgress(1.0);
+            out.close();
+        }
+    }
+
+    // Converts part of a tiled image to RGB, with the display range of its
+    // overview.
+    private static ColorProcessor toRGB(ImageProcessor ip, ImagePlus overview) {
+        ip.setMinAndMax(overview.getDisplayRangeMin(), overview.getDisplayRangeMax());
+        return (ColorProcessor) ip.convertToRGB();
+    }
+
+    // Writes a JPEG or PNG of the analyzed image, reduced to at most
+    // previewSize pixels wide and high. The components are drawn after
+    // reducing the image, so that lines stay one pixel wide.
+    private void writePreview(ImagePlus imp, String path) throws IOException {
+        boolean saved;
+
+        ImagePlus preview = new ImagePlus(imp.getTitle(), createPreview(imp, this.previewSize));
+        FileSaver fs = new FileSaver(preview);
+        saved = this.analyzedFormat.startsWith("JPEG") ? fs.saveAsJpeg(path) : fs.saveAsPng(path);
+        preview.flush();
+        if (!saved) {
+            throw new IOException("Could not write " + path);
+        }
+    }
+
+
+    // Returns an RGB copy of the image reduced to at most 'size' pixels wide
+    // and high, with the profile ID and components drawn on it.
+    public ImageProcessor createPreview(ImagePlus imp, int size) {
+        ImageProcessor ip = getSliceProcessor(imp);
+        ImageProcessor rgb = ip instanceof ColorProcessor ? ip.duplicate() : ip.convertToRGB();
+        double f = Math.max(1.0, (double) Math.max(rgb.getWidth(), rgb.getHeight()) / size);
+
+        if (f > 1) {
+            rgb.setInterpolationMethod(ImageProcessor.BILINEAR);
+            rgb = rgb.resize((int) Math.round(rgb.getWidth() / f),
+                    (int) Math.round(rgb.getHeight() / f), true);
+        }
+        double scale = f * TiledImageDTP.getViewScale(imp);
+        writeIDtext(rgb, scale);
+        drawComponents(rgb, scale, 0);
+        return rgb;
+    }
+
+    // Returns a preview of at most 'size' pixels of the profile drawn on a
+    // white image 'width' x 'height' pixels large. Only the preview is made,
+    // not the image, so a profile without an image costs no more to preview
+    // than its preview.
+    public ImageProcessor createPreview(int width, int height, int size) {
+        double f = Math.max(1.0, (double) Math.max(width, height) / size);
+        ImageProcessor rgb = new ColorProcessor(Math.max(1, (int) Math.round(width / f)),
+                Math.max(1, (int) Math.round(height / f)));
+
+        rgb.invert();
+        writeIDtext(rgb, f);
+        drawComponents(rgb, f, 0);
+        return rgb;
+    }
+
+
+    // Returns an RGB copy of the image with the profile ID and components
+    // burned in. The copy is only made here, at save time, so that the image
+    // being annotated keeps its original bit depth and data.
+    public ImagePlus createAnalyzedImage(ImagePlus imp) {
+        ImageProcessor ip = getSliceProcessor(imp);
+        ImageProcessor rgb = ip instanceof ColorProcessor ? ip.duplicate() : ip.convertToRGB();
+        ImagePlus analyzed = new ImagePlus(imp.getTitle(), rgb);
+        analyzed.setCalibration(imp.getCalibration());
+        analyzed.setOverlay(this.overlay.duplicate());
+        burnComponents(analyzed);
+        return analyzed;
+    }
+
+
+    // Returns the bytes of heap the profile holds: the coordinates of its
+    // components, its distance map (if cached) and heat map, and the image
+    // copies and working images of its save jobs still pending. Images it is
+    // drawn on belong to their windows, not to the profile.
+    public long getHeapBytes() {
+        long bytes = pendingBytes.get() + DistanceMapDTP.getBytes(this);
+        Roi h = heatMap;
+
+        for (ComponentDTP c : components) {
+            bytes += 4L * (c.x.length + c.y.length);
+        }
+        if (h instanceof ImageRoi) {
+            bytes += bytesOf(((ImageRoi) h).getProcessor());
+        }
+        return bytes;
+    }
+
+    // Samples the heap the profile holds, keeping the peak since the profile
+    // was cleared.
+    public void sampleHeap() {
+        long bytes = getHeapBytes();
+
+        synchronized (pendingBytes) {
+            this.peakHeap = Math.max(this.peakHeap, bytes);
         }
     }
 
+    private long reserveBytes(long bytes) {
+        pendingBytes.addAndGet(bytes);
+        return bytes;
+    }
+
+    // Returns the bytes a save job holds for the analyzed image: the copy of
+    // the slice ('image') and the RGB image burned from it, or for a tiled
+    // image one band of tiles and its RGB copy.
+    private long getJobBytes(ImagePlus image) {
+        TiledImageDTP src = TiledImageDTP.get(image);
+        ImageProcessor ip = image.getProcessor();
+
+        if (src != null) {
+            long band = (long) src.width * TiledImageDTP.tileSize;
+            return bytesOf(ip) + band * (src.bytesPerPixel + 4);
+        }
+        if (this.analyzedFormat.endsWith("preview")) {
+            long n = Math.min((long) this.previewSize * this.previewSize, ip.getPixelCount());
+            return bytesOf(ip) + 4 * n;
+        }
+        return bytesOf(ip) + 4L * ip.getPixelCount();
+    }
+
+    static long bytesOf(ImageProcessor ip) {
+        return ip == null ? 0 : (long) ip.getPixelCount() * ip.getBitDepth() / 8;
+    }
+
+
+    // Returns a snapshot of the profile as saved in .dtp files. Components
+    // are shared with the profile, not copied.
+    public ProfileRecordDTP toRecord(ImagePlus imp) {
+        ProfileRecordDTP r = new ProfileRecordDTP();
+        Calibration c = imp.getCalibration();
+
+        r.image = imp.getTitle();
+        r.id = this.ID;
+        r.comment = this.comment;
+        if (c.getUnit().equals("micron")) {
+            r.pixelwidth = c.pixelWidth / this.viewScale * 1000;
+            r.unit = "nm";
+        } else {
+            r.pixelwidth = c.pixelWidth / this.viewScale;
+            r.unit = c.getUnit();
+        }
+        r.seed = this.usedSeed;
+        r.pathNote = this.pathNote;
+        r.slice = this.slice;
+        r.channel = this.channel;
+        r.components.addAll(this.components);
+        return r;
+    }
+
+    // Adds the components and header fields of saved profile 'r', to edit it
+    // on 'imp'. If imp has no scale, the scale of the profile is set on it.
+    // Returns a warning if imp has another scale than the profile, else "".
+    public String load(ProfileRecordDTP r, ImagePlus imp) {
+        Calibration c = imp.getCalibration();
+        String unit = c.getUnit();
+
+        if (!c.scaled() || unit.equals(" ") || unit.equals("inch")) {
+            c.pixelWidth = c.pixelHeight = r.pixelwidth * this.viewScale;
+            c.setUnit(r.unit);
+            imp.setCalibration(c);
+        }
+        for (ComponentDTP comp : r.components) {
+            add(comp.type, comp.x, comp.y, comp.n);
+        }
+        this.ID = r.id;
+        this.comment = r.comment;
+        this.usedSeed = r.seed;
+        this.pathNote = r.pathNote;
+        fieldsChanged();
+        ProfileRecordDTP now = toRecord(imp);
+        if (!now.unit.equals(r.unit) || Math.abs(now.pixelwidth - r.pixelwidth) > 1e-3 * r.pixelwidth) {
+            return String.format(Locale.US, "pixel width of profile (%s %s) differs from image (%s %s)",
+                    IJ.d2s(r.pixelwidth), r.unit, IJ.d2s(now.pixelwidth), now.unit);
+        }
+        return "";
+    }
+
+
+    // Writes the profile in .dtp format to 'path'. Does not ask the user for
+    // anything, so it may be called from batch mode.
+    public void writeProfile(ImagePlus imp, String path) throws IOException {
+        toRecord(imp).write(path);
+    }
+
+
+    // Returns a distance engine for the path, with the polarity set if
+    // defined, or null if the path has not been defined.
+    public DistanceEngineDTP getDistanceEngine() {
+        return DistanceEngineDTP.create(get(ComponentTypeDTP.PATH),
+                get(ComponentTypeDTP.POSITIVE_POLARITY));
+    }
 
-    private Point findxy(Polygon pol, ImagePlus imp) {
-        int miny, x;
 
-        miny = imp.getHeight();
-        x = imp.getWidth();
-        for (i = 0; i < pol.npoints; i++) {
-            if (pol.ypoints[i] < miny) {
-                miny = pol.ypoints[i];
-                x = pol.xpoints[i];
-                if (pol.ypoints[i] == miny && pol.xpoints[i] < x) {
-                    x = pol.xpoints[i];
+    // Returns the distance map of the path over 'imp', at overview
+    // resolution, from the shared cache or computed if it is not there; null
+    // if the path is not defined.
+    public synchronized DistanceMapDTP getDistanceMap(ImagePlus imp) throws Exception {
+        if (!has(ComponentTypeDTP.PATH)) {
+            return null;
+        }
+        return DistanceMapDTP.get(this, getDistanceEngine(), imp.getWidth(),
+                imp.getHeight(), this.viewScale);
+    }
+
+    // Shows or hides the distance map of the path as a heat map under the
+    // components. Returns the map if shown, else null.
+    public synchronized DistanceMapDTP toggleHeatMap(ImagePlus imp) throws Exception {
+        if (heatMap != null) {
+            heatMap = null;
+            return null;
+        }
+        DistanceMapDTP map = getDistanceMap(imp);
+        if (map != null) {
+            ImageRoi roi = new ImageRoi(0, 0, map.toHeatMap(imp.getWidth(), imp.getHeight()));
+            roi.setOpacity(0.4);
+            heatMap = roi;
+        }
+        return map;
+    }
+
+    // Returns a table of the area in each distance bin of distanceBinWidth
+    // nm, inside the sampling frame (if defined) and outside holes.
+    public ResultsTable getDistanceAreas(ImagePlus imp) throws Exception {
+        DistanceMapDTP map = getDistanceMap(imp);
+        ProfileRecordDTP r = toRecord(imp);
+        ResultsTable rt = new ResultsTable();
+        int[] first = new int[1];
+        int i;
+
+        if (map == null) {
+            throw new Exception("Path not defined.");
+        }
+        if (!r.unit.equals("nm")) {
+            throw new Exception("The image scale must be set in nm or \u00B5m.");
+        }
+        PolygonTestDTP frame = has(ComponentTypeDTP.FRAME) ?
+                polygonTest(get(ComponentTypeDTP.FRAME)) : null;
+        long[] counts = map.histogram(this.distanceBinWidth / r.pixelwidth, frame,
+                getHoleTests(), first);
+        double pixelArea = Math.pow(map.scale * r.pixelwidth / 1000, 2);
+        for (i = 0; i < counts.length; i++) {
+            rt.incrementCounter();
+            rt.addValue("From (nm)", (first[0] + i) * this.distanceBinWidth);
+            rt.addValue("To (nm)", (first[0] + i + 1) * this.distanceBinWidth);
+            rt.addValue("Area (\u00B5m\u00B2)", counts[i] * pixelArea);
+        }
+        return rt;
+    }
+
+
+    // Burns the profile ID and all components into the image processor.
+    public void burnComponents(ImagePlus imp) {
+        writeIDtext(imp.getProcessor(), 1);
+        drawComponents(imp.getProcessor(), 1, 0);
+    }
+
+
+    // Draws the components on 'ip', which holds the image at 1 / scale of
+    // full resolution, from row y0 (of ip) down. RGB images are drawn into
+    // directly by BurnRendererDTP, with the same result.
+    private void drawComponents(ImageProcessor ip, double scale, int y0) {
+        int i, x, y;
+
+        if (new BurnRendererDTP().render(ip, components, scale, y0)) {
+            return;
+        }
+        for (ComponentDTP comp : components) {
+            ip.setColor(comp.type.color);
+            if (comp.type == ComponentTypeDTP.POINTS) {
+                for (i = 0; i < comp.n; i++) {
+                    x = (int) (comp.x[i] / scale);
+                    y = (int) (comp.y[i] / scale) - y0;
+                    ip.drawLine(x - 3, y, x + 3, y);
+                    ip.drawLine(x, y - 3, x, y + 3);
                 }
+            } else if (comp.viewScale == scale && y0 == 0) {
+                comp.getRoi().drawPixels(ip);
+            } else {
+                comp.createRoi(scale, 0, y0 * scale).drawPixels(ip);
+            }
+        }
+    }
+
+
+    private Point findxy(ComponentDTP path, double scale, int width, int height) {
+        int i, miny, x;
+
+        miny = height;
+        x = width;
+        for (i = 0; i < path.n; i++) {
+            if ((int) (path.y[i] / scale) < miny) {
+                miny = (int) (path.y[i] / scale);
+                x = (int) (path.x[i] / scale);
             }
         }
         return new Point(x, miny);
     }
 
 
-    private void writeIDtext(ImagePlus imp) {
+    private void writeIDtext(ImageProcessor ip, double scale) {
+        // The TextRoi font is static, so guard it against concurrent batch workers
+        synchronized (TextRoi.class) {
+            TextRoi profileLabel = createIDtext(ip.getWidth(), ip.getHeight(), scale);
+            ip.setColor(textCol);
+            profileLabel.drawPixels(ip);
+            ip.setColor(Color.black);
+        }
+    }
+
+    // Returns the profile ID as a text ROI above the path, for an image of
+    // width x height pixels at 1 / scale of full resolution. Sets the static
+    // TextRoi font, so the caller must hold the TextRoi class lock until the
+    // text is drawn.
+    private TextRoi createIDtext(int width, int height, double scale) {
         TextRoi profileLabel;
-        Polygon pol;
         Point p;
         int locx, locy, size;
-        String label = "";
 
-        for (i = 0; i < this.ID.length(); i++) {
-            label += this.ID.charAt(i);
-        }
-        size = imp.getHeight() / 42;  // adjust font size for image size (by an arbitrary factor)
+        size = height / 42;  // adjust font size for image size (by an arbitrary factor)
+        p = findxy(get(ComponentTypeDTP.PATH), scale, width, height);
         TextRoi.setFont(TextRoi.getFont(), size, Font.BOLD);
-        profileLabel = new TextRoi(0, 0, label);
+        profileLabel = new TextRoi(0, 0, this.ID);
         profileLabel.setAntialiased(true);
-        pol = this.overlay.get(this.overlay.getIndex("path")).getPolygon();
-        p = findxy(pol, imp);
         locy = p.y - profileLabel.getBounds().height;
         locx = p.x - profileLabel.getBounds().width;
         if (locx < 0) locx = 3;
         if (locy < 0) locy = 3;
         profileLabel.setLocation(locx, locy);
-        imp.setColor(textCol);
-        profileLabel.drawPixels(imp.getProcessor());
-        imp.setColor(Color.black);
+        return profileLabel;
+    }
+
+
+    // Adds the ROIs in 'rois' that are named after a profile component, e.g. when
+    // read from an image overlay or a RoiManager zip file. Returns the number of
+    // components added.
+    public int addNamedComponents(Roi[] rois) {
+        int added = 0;
+
+        for (Roi roi : rois) {
+            ComponentTypeDTP t = ComponentTypeDTP.forName(roi.getName());
+            if (t == null || !t.accepts(roi) || (t.single && has(t))) {
+                continue;
+            }
+            add(t, roi);
+            added++;
+        }
+        return added;
     }
 
 
-    public void clear() {
+    public synchronized void clear() {
         this.dirty = false;
+        this.peakHeap = 0;
         this.overlay.clear();
+        if (index != null) {
+            for (ComponentDTP c : components) {
+                index.remove(c);
+            }
+        }
+        for (List<ComponentDTP> l : byType) {
+            l.clear();
+        }
+        components.clear();
+        byRoi.clear();
+        Arrays.fill(numPoints, 0);
+        if (stats != null) {
+            stats.clear();
+        }
+        distanceMapChanged(ComponentTypeDTP.PATH);
         this.comment = "";
         this.ID = "";
+        if (journal != null) {
+            journal.end(journalKey);
+        }
+        this.journalKey = 0;
     }
 
 
@@ -0,0 +1,286 @@
+/*
+    file   : DistanceEngineDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Point-to-path distances for the DistToPath ImageJ plugin.
+
+    The path segments are held in a bounding volume hierarchy (a static,
+    binary R-tree built by median splits), and nearest segment queries descend
+    it depth-first, nearer child first, skipping subtrees whose bounding box
+    is farther away than the closest segment found so far. A query thus costs
+    about O(log segments), also for points far from the path.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+
+class DistanceEngineDTP {
+    final double[] x, y;        // path nodes
+    final double[] cumlen;      // arc length at the start of each node
+    final int nseg;
+    double polaritySign = 0;    // 0 if polarity not defined; else +1 or -1
+    // bounding volume hierarchy over the path segments; leaves hold the
+    // segments order[lo[node]] .. order[hi[node] - 1]
+    static final int leafSize = 8;
+    int[] order, lo, hi, left, right;
+    double[] bminx, bminy, bmaxx, bmaxy;
+    int nnodes;
+
+
+    DistanceEngineDTP(float[] xpoints, float[] ypoints, int npoints) {
+        int i;
+
+        if (npoints < 2) {
+            throw new IllegalArgumentException("Path must have at least two nodes.");
+        }
+        this.x = new double[npoints];
+        this.y = new double[npoints];
+        this.cumlen = new double[npoints];
+        for (i = 0; i < npoints; i++) {
+            this.x[i] = xpoints[i];
+            this.y[i] = ypoints[i];
+            if (i > 0) {
+                this.cumlen[i] = this.cumlen[i - 1] + Math.hypot(this.x[i] - this.x[i - 1],
+                        this.y[i] - this.y[i - 1]);
+            }
+        }
+        this.nseg = npoints - 1;
+        buildTree();
+    }
+
+    // Returns an engine for 'path' with the polarity set from 'polarity' (if
+    // not null), or null if there is no path of at least two nodes.
+    static DistanceEngineDTP create(ComponentDTP path, ComponentDTP polarity) {
+        if (path == null || path.n < 2) {
+            return null;
+        }
+        DistanceEngineDTP engine = new DistanceEngineDTP(path.x, path.y, path.n);
+        if (polarity != null) {
+            engine.setPolarity(polarity.x[0], polarity.y[0]);
+        }
+        return engine;
+    }
+
+    private void buildTree() {
+        double[] key = new double[nseg];
+        // Leaves hold at least leafSize / 2 segments (unless the path is shorter)
+        int i, maxnodes = 2 * (nseg / (leafSize / 2) + 1);
+
+        order = new int[nseg];
+        for (i = 0; i < nseg; i++) {
+            order[i] = i;
+        }
+        lo = new int[maxnodes];
+        hi = new int[maxnodes];
+        left = new int[maxnodes];
+        right = new int[maxnodes];
+        bminx = new double[maxnodes];
+        bminy = new double[maxnodes];
+        bmaxx = new double[maxnodes];
+        bmaxy = new double[maxnodes];
+        nnodes = 0;
+        build(0, nseg, key);
+    }
+
+    private int build(int from, int to, double[] key) {
+        int node = nnodes++;
+        double minx = Double.MAX_VALUE, miny = Double.MAX_VALUE;
+        double maxx = -Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+        int i;
+
+        for (i = from; i < to; i++) {
+            int seg = order[i];
+            minx = Math.min(minx, Math.min(x[seg], x[seg + 1]));
+            maxx = Math.max(maxx, Math.max(x[seg], x[seg + 1]));
+            miny = Math.min(miny, Math.min(y[seg], y[seg + 1]));
+            maxy = Math.max(maxy, Math.max(y[seg], y[seg + 1]));
+        }
+        bminx[node] = minx;
+        bminy[node] = miny;
+        bmaxx[node] = maxx;
+        bmaxy[node] = maxy;
+        lo[node] = from;
+        hi[node] = to;
+        left[node] = right[node] = -1;
+        if (to - from <= leafSize) {
+            return node;
+        }
+        // Split at the median segment midpoint along the longer box side
+        boolean alongx = maxx - minx >= maxy - miny;
+        for (i = from; i < to; i++) {
+            int seg = order[i];
+            key[i] = alongx ? x[seg] + x[seg + 1] : y[seg] + y[seg + 1];
+        }
+        int mid = (from + to) >>> 1;
+        select(from, to - 1, mid, key);
+        left[node] = build(from, mid, key);
+        right[node] = build(mid, to, key);
+        return node;
+    }
+
+    // Partially sorts order[from..to] (and key) so that element k is in place.
+    private void select(int from, int to, int k, double[] key) {
+        while (to > from) {
+            double pivot = key[(from + to) >>> 1];
+            int i = from, j = to;
+            while (i <= j) {
+                while (key[i] < pivot) i++;
+                while (key[j] > pivot) j--;
+                if (i <= j) {
+                    double tk = key[i]; key[i] = key[j]; key[j] = tk;
+                    int to_ = order[i]; order[i] = order[j]; order[j] = to_;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                to = j;
+            } else if (k >= i) {
+                from = i;
+            } else {
+                break;
+            }
+        }
+    }
+
+    double getLength() {
+        return cumlen[nseg];
+    }
+
+    // Sets the side of the path that is positive from the location of the
+    // 'positive polarity' point.
+    void setPolarity(double px, double py) {
+        double[] r = new double[3];
+
+        polaritySign = 0;
+        nearest(px, py, r);
+        int seg = (int) r[2];
+        polaritySign = side(px, py, seg, projection(px, py, seg)) >= 0 ? 1 : -1;
+    }
+
+    // Finds the path segment closest to (px, py). On return, r[0] is the
+    // lateral distance (signed if polarity is set, otherwise unsigned), r[1]
+    // the position of the projection along the path (arc length from the
+    // first node) and r[2] the index of the nearest segment.
+    void nearest(double px, double py, double[] r) {
+        nearest(px, py, -1, r);
+    }
+
+    // As nearest(px, py, r), starting from segment 'hint' (if not -1) as the
+    // nearest so far: a hint near the answer prunes most of the tree, and
+    // the result is the same as without one.
+    void nearest(double px, double py, int hint, double[] r) {
+        double best = Double.MAX_VALUE, bestt = 0;
+        int bestseg = 0;
+        int[] stack = new int[64];
+        int sp = 0, i;
+
+        if (hint >= 0) {
+            bestt = projection(px, py, hint);
+            double ex = x[hint] + bestt * (x[hint + 1] - x[hint]) - px;
+            double ey = y[hint] + bestt * (y[hint + 1] - y[hint]) - py;
+            best = ex * ex + ey * ey;
+            bestseg = hint;
+        }
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (boxDist2(node, px, py) > best) {
+                continue;
+            }
+            if (left[node] == -1) {
+                for (i = lo[node]; i < hi[node]; i++) {
+                    int seg = order[i];
+                    double ax = x[seg], ay = y[seg];
+                    double dx = x[seg + 1] - ax, dy = y[seg + 1] - ay;
+                    double len2 = dx * dx + dy * dy;
+                    double t = len2 == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / len2;
+                    t = Math.max(0, Math.min(1, t));
+                    double ex = ax + t * dx - px, ey = ay + t * dy - py;
+                    double d2 = ex * ex + ey * ey;
+                    if (d2 < best || (d2 == best && seg < bestseg)) {
+                        best = d2;
+                        bestseg = seg;
+                        bestt = t;
+                    }
+                }
+            } else {
+                // Push the farther child first so that the nearer one is searched first
+                int a = left[node], b = right[node];
+                if (boxDist2(a, px, py) < boxDist2(b, px, py)) {
+                    stack[sp++] = b;
+                    stack[sp++] = a;
+                } else {
+                    stack[sp++] = a;
+                    stack[sp++] = b;
+                }
+            }
+        }
+        double d = Math.sqrt(best);
+        if (polaritySign != 0) {
+            double s = side(px, py, bestseg, bestt);
+            d *= (s >= 0 ? 1 : -1) * polaritySign;
+        }
+        r[0] = d;
+        r[1] = cumlen[bestseg] + bestt * (cumlen[bestseg + 1] - cumlen[bestseg]);
+        r[2] = bestseg;
+    }
+
+    private double boxDist2(int node, double px, double py) {
+        double dx = Math.max(0, Math.max(bminx[node] - px, px - bmaxx[node]));
+        double dy = Math.max(0, Math.max(bminy[node] - py, py - bmaxy[node]));
+        return dx * dx + dy * dy;
+    }
+
+    private double projection(double px, double py, int seg) {
+        double dx = x[seg + 1] - x[seg], dy = y[seg + 1] - y[seg];
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : ((px - x[seg]) * dx + (py - y[seg]) * dy) / len2;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    // Returns a positive number if (px, py) lies to the left of the path (in
+    // image coordinates) near segment 'seg' and a negative number if it lies to
+    // the right. When the nearest point is an interior node, the sum of the
+    // normals of the two adjoining segments is used, so that points outside a
+    // corner are classified consistently.
+    private double side(double px, double py, int seg, double t) {
+        double nx = -(y[seg + 1] - y[seg]), ny = x[seg + 1] - x[seg];
+        int node = -1;
+
+        if (t <= 0 && seg > 0) {
+            node = seg;
+            nx += -(y[seg] - y[seg - 1]);
+            ny += x[seg] - x[seg - 1];
+        } else if (t >= 1 && seg < nseg - 1) {
+            node = seg + 1;
+            nx += -(y[seg + 2] - y[seg + 1]);
+            ny += x[seg + 2] - x[seg + 1];
+        }
+        if (node == -1) {
+            node = seg;
+        }
+        return (px - x[node]) * nx + (py - y[node]) * ny;
+    }
+
+    // Computes distances for 'n' points; returns {distance, position, segment}
+    // arrays as described for nearest().
+    double[][] computeAll(float[] xpoints, float[] ypoints, int n) {
+        double[][] result = new double[3][n];
+        double[] r = new double[3];
+        int i;
+
+        for (i = 0; i < n; i++) {
+            nearest(xpoints[i], ypoints[i], r);
+            result[0][i] = r[0];
+            result[1][i] = r[1];
+            result[2][i] = r[2];
+        }
+        return result;
+    }
+
+} // end of DistanceEngineDTP
@@ -0,0 +1,444 @@
+/*
+    file   : DistanceMapDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Distance map of a profile path for the DistToPath ImageJ plugin: the
+    lateral distance to the path of every pixel of the image, signed by the
+    positive polarity if defined, for area-normalized labeling density.
+
+    The path is drawn into the pixel grid as seed pixels, each remembering
+    its path segment, and the nearest seed of every pixel is found by an
+    exact Euclidean distance transform (Felzenszwalb & Huttenlocher: nearest
+    seed along each column, then the lower envelope of parabolas along each
+    row). The nearest seed is near the nearest part of the path, but at a
+    coarse map scale a seed pixel covers several segments, and on a winding
+    path it may lie on another part of it than the nearest one. So the seed's
+    segment only starts the distance engine's search, as the nearest so far,
+    which then prunes all but a few nodes of its tree: the distance and its
+    sign are those of the nearest segment, as exact as measured directly.
+    Both passes are split over the worker pool: columns in blocks (read row
+    by row, for the cache) and rows.
+
+    Maps are built at overview resolution: one map pixel covers as many
+    image pixels as needed to keep the map within maxPixels. Each map pixel
+    holds the distance of its center, so the areas of the distance bins are
+    exact up to the map pixels that straddle a bin limit. The map holds the
+    distances as floats, in full resolution pixels. During the transform the
+    same array holds the nearest seed of each pixel, so that no second
+    image-sized array is needed. If the path leaves the image, the nearest
+    segment may lie outside and have no seeds, so then every pixel is
+    measured with the distance engine instead.
+
+    Maps are kept in an LRU cache shared by all profiles, within a budget,
+    rather than one per profile for as long as the profile lives.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+
+class DistanceMapDTP {
+    static final int nchunks = 64;
+    private static final int NONE = 0x3fffffff;     // no seed; a finite float as bits
+    static final int maxPixels = 1 << 22;   // largest map, in map pixels
+    private static final Cache cache = new Cache(64L << 20);
+    final int width, height;
+    final double scale;         // full resolution pixels per map pixel
+    final boolean signed;
+    private final float[] map;
+    private final DistanceEngineDTP engine;
+    private int[] seedx, seedy, seedseg;
+    private float min, max;
+
+
+    // Returns the map of 'engine' over a width x height image, each pixel of
+    // which is 'viewScale' full resolution pixels wide, for 'owner': from the
+    // cache if it has one, else computed at overview resolution and cached.
+    static DistanceMapDTP get(Object owner, DistanceEngineDTP engine, int width, int height,
+                              int viewScale) throws Exception {
+        DistanceMapDTP map = cache.get(owner);
+
+        if (map == null) {
+            int f = (int) Math.ceil(Math.sqrt((double) width * height / maxPixels));
+            f = Math.max(1, f);
+            map = new DistanceMapDTP(engine, (width + f - 1) / f, (height + f - 1) / f,
+                    (double) viewScale * f);
+            cache.put(owner, map);
+        }
+        return map;
+    }
+
+    // Returns the bytes of the cached map of 'owner', or 0 if it has none.
+    static long getBytes(Object owner) {
+        return cache.getBytes(owner);
+    }
+
+    // Drops the map of 'owner' from the cache, when its path changes.
+    static void remove(Object owner) {
+        cache.remove(owner);
+    }
+
+    // Computes the map of 'engine' over a width x height image, each pixel
+    // of which is 'scale' full resolution pixels wide.
+    DistanceMapDTP(DistanceEngineDTP engine, int width, int height, double scale) throws Exception {
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.engine = engine;
+        this.signed = engine.polaritySign != 0;
+        this.map = new float[width * height];
+        if (drawSeeds()) {
+            transformColumns();
+            transformRows();
+        } else {
+            measureAll();
+        }
+        seedx = seedy = seedseg = null;
+        findRange();
+    }
+
+    // Lateral distance of pixel (x, y), in full resolution pixels.
+    float get(int x, int y) {
+        return map[y * width + x];
+    }
+
+    // Smallest and largest distance in the map.
+    float getMin() {
+        return min;
+    }
+
+    float getMax() {
+        return max;
+    }
+
+    // Draws the path into the map as seeds, with seed ids as float bits.
+    // Returns false (and draws nothing) if the path leaves the image.
+    private boolean drawSeeds() {
+        int seg, k, n = 0;
+        int[] sx = new int[1024], sy = new int[1024], ss = new int[1024];
+
+        Arrays.fill(map, Float.intBitsToFloat(NONE));
+        for (seg = 0; seg < engine.nseg; seg++) {
+            double x0 = engine.x[seg] / scale, y0 = engine.y[seg] / scale;
+            double x1 = engine.x[seg + 1] / scale, y1 = engine.y[seg + 1] / scale;
+            if (!inside(x0, y0) || !inside(x1, y1)) {
+                return false;
+            }
+            int steps = 1 + (int) (2 * Math.max(Math.abs(x1 - x0), Math.abs(y1 - y0)));
+            for (k = 0; k <= steps; k++) {
+                int px = Math.min(width - 1, (int) (x0 + (x1 - x0) * k / steps));
+                int py = Math.min(height - 1, (int) (y0 + (y1 - y0) * k / steps));
+                int p = py * width + px;
+                if (Float.floatToRawIntBits(map[p]) != NONE) {
+                    continue;
+                }
+                if (n == sx.length) {
+                    sx = Arrays.copyOf(sx, 2 * n);
+                    sy = Arrays.copyOf(sy, 2 * n);
+                    ss = Arrays.copyOf(ss, 2 * n);
+                }
+                sx[n] = px;
+                sy[n] = py;
+                ss[n] = seg;
+                map[p] = Float.intBitsToFloat(n++);
+            }
+        }
+        seedx = sx;
+        seedy = sy;
+        seedseg = ss;
+        return true;
+    }
+
+    private boolean inside(double x, double y) {
+        return x >= 0 && y >= 0 && x <= width && y <= height;
+    }
+
+    // Pass 1: the nearest seed in the same column, for every pixel.
+    private void transformColumns() throws Exception {
+        final int block = 16;
+        final int nblocks = (width + block - 1) / block;
+
+        ParallelDTP.run(Math.min(nchunks, nblocks), new ParallelDTP.ChunkTask() {
+            public void run(int chunk) {
+                int[] last = new int[block];
+                int b, x, y, nc = Math.min(nchunks, nblocks);
+
+                for (b = chunk * nblocks / nc; b < (chunk + 1) * nblocks / nc; b++) {
+                    int x0 = b * block, x1 = Math.min(width, x0 + block);
+                    // Down: the nearest seed above or at each pixel
+                    Arrays.fill(last, NONE);
+                    for (y = 0; y < height; y++) {
+                        for (x = x0; x < x1; x++) {
+                            int p = y * width + x;
+                            int id = Float.floatToRawIntBits(map[p]);
+                            if (id != NONE) {
+                                last[x - x0] = id;
+                            } else {
+                                map[p] = Float.intBitsToFloat(last[x - x0]);
+                            }
+                        }
+                    }
+                    // Up: keep the seed below if it is nearer
+                    Arrays.fill(last, NONE);
+                    for (y = height - 1; y >= 0; y--) {
+                        for (x = x0; x < x1; x++) {
+                            int p = y * width + x;
+                            int id = Float.floatToRawIntBits(map[p]);
+                            if (id != NONE && seedy[id] == y) {
+                                last[x - x0] = id;
+                            } else if (last[x - x0] != NONE && (id == NONE
+                                    || seedy[last[x - x0]] - y < y - seedy[id])) {
+                                map[p] = Float.intBitsToFloat(last[x - x0]);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // Pass 2: the nearest seed in the whole image, from the lower envelope
+    // of the column distances along each row; then the distance to the path,
+    // searched from the seed's segment.
+    private void transformRows() throws Exception {
+        ParallelDTP.run(Math.min(nchunks, height), new ParallelDTP.ChunkTask() {
+            public void run(int chunk) {
+                int nc = Math.min(nchunks, height);
+                int[] ids = new int[width], v = new int[width];
+                double[] z = new double[width + 1], f = new double[width];
+                double[] r = new double[3];
+                int x, y;
+
+                for (y = chunk * height / nc; y < (chunk + 1) * height / nc; y++) {
+                    double py = (y + 0.5) * scale;
+                    int row = y * width, k = -1;
+                    for (x = 0; x < width; x++) {
+                        ids[x] = Float.floatToRawIntBits(map[row + x]);
+                        if (ids[x] == NONE) {
+                            continue;
+                        }
+                        double dy = seedy[ids[x]] - y;
+                        f[x] = dy * dy;
+                        // Add the parabola of column x to the envelope
+                        while (k >= 0) {
+                            double s = ((f[x] + (double) x * x) - (f[v[k]] + (double) v[k] * v[k]))
+                                    / (2.0 * (x - v[k]));
+                            if (s > z[k]) {
+                                v[++k] = x;
+                                z[k] = s;
+                                break;
+                            }
+                            k--;
+                        }
+                        if (k < 0) {
+                            v[k = 0] = x;
+                            z[0] = Double.NEGATIVE_INFINITY;
+                        }
+                    }
+                    int j = 0;
+                    for (x = 0; x < width; x++) {
+                        while (j < k && z[j + 1] < x) {
+                            j++;
+                        }
+                        engine.nearest((x + 0.5) * scale, py, seedseg[ids[v[j]]], r);
+                        map[row + x] = (float) r[0];
+                    }
+                }
+            }
+        });
+    }
+
+    // Measures every pixel with the distance engine.
+    private void measureAll() throws Exception {
+        ParallelDTP.run(Math.min(nchunks, height), new ParallelDTP.ChunkTask() {
+            public void run(int chunk) {
+                int nc = Math.min(nchunks, height);
+                double[] r = new double[3];
+                int x, y;
+
+                for (y = chunk * height / nc; y < (chunk + 1) * height / nc; y++) {
+                    for (x = 0; x < width; x++) {
+                        engine.nearest((x + 0.5) * scale, (y + 0.5) * scale, r);
+                        map[y * width + x] = (float) r[0];
+                    }
+                }
+            }
+        });
+    }
+
+    private void findRange() {
+        float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+
+        for (float d : map) {
+            if (d < lo) {
+                lo = d;
+            }
+            if (d > hi) {
+                hi = d;
+            }
+        }
+        min = lo;
+        max = hi;
+    }
+
+
+    // Returns the number of pixels in each distance bin, counting only pixels
+    // whose center is inside 'frame' (if not null) and outside all 'holes'.
+    // Bin i holds distances from (first + i) * binWidth up to (first + i + 1)
+    // * binWidth, in full resolution pixels, where first is returned in
+    // firstBin[0].
+    long[] histogram(final double binWidth, final PolygonTestDTP frame,
+                     final PolygonTestDTP[] holes, int[] firstBin) throws Exception {
+        final int first = (int) Math.floor(min / binWidth);
+        final int nbins = (int) Math.floor(max / binWidth) - first + 1;
+        final long[][] counts = new long[Math.min(nchunks, height)][nbins];
+
+        ParallelDTP.run(counts.length, new ParallelDTP.ChunkTask() {
+            public void run(int chunk) {
+                long[] c = counts[chunk];
+                int x, y, i;
+
+                for (y = chunk * height / counts.length; y < (chunk + 1) * height / counts.length; y++) {
+                    double py = (y + 0.5) * scale;
+                    pixels:
+                    for (x = 0; x < width; x++) {
+                        double px = (x + 0.5) * scale;
+                        if (frame != null && !frame.contains(px, py)) {
+                            continue;
+                        }
+                        for (i = 0; i < holes.length; i++) {
+                            if (holes[i].contains(px, py)) {
+                                continue pixels;
+                            }
+                        }
+                        int bin = (int) Math.floor(map[y * width + x] / binWidth) - first;
+                        c[Math.max(0, Math.min(nbins - 1, bin))]++;
+                    }
+                }
+            }
+        });
+        long[] total = new long[nbins];
+        for (long[] c : counts) {
+            for (int i = 0; i < nbins; i++) {
+                total[i] += c[i];
+            }
+        }
+        firstBin[0] = first;
+        return total;
+    }
+
+    // Returns the map as an 8-bit image with a color table for display:
+    // blue (negative) through white (on the path) to red (positive) if
+    // signed, else black (on the path) through yellow. The image is scaled
+    // up to 'width' x 'height' if the map is at a coarser resolution.
+    ImageProcessor toHeatMap(int width, int height) {
+        byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+        byte[] pixels = new byte[map.length];
+        float range = Math.max(Math.abs(min), Math.abs(max));
+        int i;
+
+        if (range == 0) {
+            range = 1;
+        }
+        for (i = 0; i < 256; i++) {
+            if (signed) {
+                int t = Math.abs(2 * i - 255);   // 0 at the path, 255 farthest
+                r[i] = (byte) (i < 128 ? 255 - t : 255);
+                g[i] = (byte) (255 - t);
+                b[i] = (byte) (i < 128 ? 255 : 255 - t);
+            } else {
+                r[i] = (byte) Math.min(255, 2 * i);
+                g[i] = (byte) Math.max(0, 2 * i - 255);
+                b[i] = 0;
+            }
+        }
+        for (i = 0; i < pixels.length; i++) {
+            double t = signed ? (map[i] / range + 1) / 2 : map[i] / range;
+            pixels[i] = (byte) Math.max(0, Math.min(255, (int) (t * 255 + 0.5)));
+        }
+        ImageProcessor ip = new ByteProcessor(this.width, this.height, pixels,
+                new IndexColorModel(8, 256, r, g, b));
+        if (width == this.width && height == this.height) {
+            return ip;
+        }
+        ip.setInterpolationMethod(ImageProcessor.NONE);
+        return ip.resize(width, height);
+    }
+
+    private long sizeOf() {
+        return 4L * map.length;
+    }
+
+
+    // LRU cache of distance maps by owner, that keeps the total size of the
+    // maps within a budget.
+    private static class Cache {
+        private final long budget;
+        private long bytes = 0;
+        private final LinkedHashMap<Object, DistanceMapDTP> maps =
+                new LinkedHashMap<Object, DistanceMapDTP>(16, 0.75f, true);
+
+
+        Cache(long budget) {
+            this.budget = budget;
+        }
+
+        synchronized DistanceMapDTP get(Object owner) {
+            return maps.get(owner);
+        }
+
+        // Without marking the map as used, unlike get().
+        synchronized long getBytes(Object owner) {
+            for (Map.Entry<Object, DistanceMapDTP> e : maps.entrySet()) {
+                if (e.getKey() == owner) {
+                    return e.getValue().sizeOf();
+                }
+            }
+            return 0;
+        }
+
+        synchronized void put(Object owner, DistanceMapDTP map) {
+            DistanceMapDTP old = maps.put(owner, map);
+
+            if (old != null) {
+                bytes -= old.sizeOf();
+            }
+            bytes += map.sizeOf();
+            evict(map);
+        }
+
+        synchronized void remove(Object owner) {
+            DistanceMapDTP old = maps.remove(owner);
+
+            if (old != null) {
+                bytes -= old.sizeOf();
+            }
+        }
+
+        // Drops least recently used maps until the cache is within budget,
+        // keeping 'keep' (the map just added) even if it alone exceeds it.
+        private void evict(DistanceMapDTP keep) {
+            Iterator<DistanceMapDTP> it = maps.values().iterator();
+
+            while (bytes > budget && it.hasNext()) {
+                DistanceMapDTP map = it.next();
+                if (map != keep) {
+                    bytes -= map.sizeOf();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+} // end of DistanceMapDTP
@@ -0,0 +1,315 @@
+/*
+    file   : EnvelopeTestDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Monte Carlo envelope test of the lateral distances of points to the path,
+    for the DistToPath ImageJ plugin.
+
+    The distances of the points of one or more profiles are binned, and the
+    same is done for simulated point patterns: in each simulation run, every
+    profile gets as many random points as it has points, uniformly in its
+    sampling frame (or image) outside holes. From the runs come pointwise
+    envelopes of the expected count in each bin and two tests, each with
+    p = (1 + number of runs at least as extreme) / (1 + number of runs):
+    a global deviation test (largest standardized difference from the mean
+    of the runs over all bins) and a test of the mean distance. Distances
+    are signed if all profiles have a positive polarity.
+
+    Runs are done in parallel batches. Each run has its own random stream,
+    derived from the seed and the run number (and each profile from that),
+    so the results do not depend on the number of threads or batches. After
+    each batch a summary of the runs so far is passed to a listener, which
+    may stop the test early.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+class EnvelopeTestDTP {
+    static final int batchSize = 64;    // runs per parallel batch
+    final double binWidth, maxDistance; // nm
+    private final List<Profile> profiles = new ArrayList<Profile>();
+    private boolean signed = true;
+    private int first, nbins;
+    private int[] observed;
+    private double observedMean;
+    private double pathLength;          // nm, all profiles
+    private int[][] runs;               // counts per bin of each run
+    private double[] runMeans;
+
+
+    // The results of the runs so far.
+    static class Summary {
+        int runs;
+        boolean signed;
+        double[] from, to;              // bin limits, nm
+        int[] observed;
+        double[] mean, low, high;       // of the runs; low and high at 2.5 and 97.5%
+        double pathLength;              // nm
+        double observedMean;            // nm
+        double pGlobal, pMean;
+    }
+
+
+    interface Listener {
+        // Called after each batch of runs; return false to stop.
+        boolean progress(Summary s);
+    }
+
+
+    private static class Profile {
+        DistanceEngineDTP engine;
+        RandomPointsDTP generator;
+        ComponentDTP points;
+        double nmPerPixel;
+    }
+
+
+    EnvelopeTestDTP(double binWidth, double maxDistance) {
+        this.binWidth = binWidth;
+        this.maxDistance = maxDistance;
+    }
+
+    // Adds a profile with points. A profile without a sampling frame is
+    // sampled over its image, 'width' x 'height' full resolution pixels, or
+    // if that is not known (0), over the box of its path and points widened
+    // by the largest distance tested.
+    void add(ProfileRecordDTP r, int width, int height) throws Exception {
+        ComponentDTP path = r.get(ComponentTypeDTP.PATH);
+        ComponentDTP points = r.get(ComponentTypeDTP.POINTS);
+        ComponentDTP frame = r.get(ComponentTypeDTP.FRAME);
+        Profile p = new Profile();
+
+        if (path == null || points == null) {
+            throw new Exception("Path or points not defined in " + r.image + ".");
+        }
+        if (r.unit.equals("nm")) {
+            p.nmPerPixel = r.pixelwidth;
+        } else if (r.unit.equals("micron") || r.unit.equals("\u00B5m") || r.unit.equals("um")) {
+            p.nmPerPixel = r.pixelwidth * 1000;
+        } else {
+            throw new Exception("The scale of " + r.image + " must be set in nm or \u00B5m.");
+        }
+        p.engine = r.getDistanceEngine();
+        if (p.engine == null) {
+            throw new Exception("Path of " + r.image + " has too few nodes.");
+        }
+        p.points = points;
+        List<ComponentDTP> holes = r.getAll(ComponentTypeDTP.HOLE);
+        PolygonTestDTP[] holeTests = new PolygonTestDTP[holes.size()];
+        for (int i = 0; i < holeTests.length; i++) {
+            holeTests[i] = ProfileDataDTP.polygonTest(holes.get(i));
+        }
+        if (frame != null) {
+            PolygonTestDTP f = ProfileDataDTP.polygonTest(frame);
+            p.generator = new RandomPointsDTP(f.minx, f.miny, f.maxx - f.minx, f.maxy - f.miny,
+                    f, holeTests);
+        } else if (width > 0 && height > 0) {
+            p.generator = new RandomPointsDTP(0, 0, width, height, null, holeTests);
+        } else {
+            double[] b = bounds(path, points);
+            double m = maxDistance / p.nmPerPixel;
+            p.generator = new RandomPointsDTP(b[0] - m, b[1] - m, b[2] - b[0] + 2 * m,
+                    b[3] - b[1] + 2 * m, null, holeTests);
+        }
+        signed &= p.engine.polaritySign != 0;
+        pathLength += p.engine.getLength() * p.nmPerPixel;
+        profiles.add(p);
+    }
+
+    private static double[] bounds(ComponentDTP... cs) {
+        double[] b = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+        for (ComponentDTP c : cs) {
+            for (int i = 0; i < c.n; i++) {
+                b[0] = Math.min(b[0], c.x[i]);
+                b[1] = Math.min(b[1], c.y[i]);
+                b[2] = Math.max(b[2], c.x[i]);
+                b[3] = Math.max(b[3], c.y[i]);
+            }
+        }
+        return b;
+    }
+
+    int getNumProfiles() {
+        return profiles.size();
+    }
+
+
+    // Does up to 'nruns' simulation runs from 'seed'; returns the summary of
+    // the runs done.
+    Summary run(int nruns, final long seed, Listener listener) throws Exception {
+        int done = 0;
+
+        if (profiles.isEmpty()) {
+            throw new Exception("No profiles with points.");
+        }
+        first = signed ? -(int) Math.ceil(maxDistance / binWidth) : 0;
+        nbins = (int) Math.ceil(maxDistance / binWidth) - first;
+        runs = new int[nruns][];
+        runMeans = new double[nruns];
+        observed = new int[nbins];
+        double[] r = new double[3];
+        double sum = 0;
+        int n = 0;
+        for (Profile p : profiles) {
+            for (int i = 0; i < p.points.n; i++) {
+                double d = distance(p, p.points.x[i], p.points.y[i], r);
+                if (count(observed, d)) {
+                    sum += d;
+                    n++;
+                }
+            }
+        }
+        observedMean = n > 0 ? sum / n : Double.NaN;
+        while (done < nruns) {
+            final int from = done;
+            int batch = Math.min(batchSize, nruns - done);
+            ParallelDTP.run(batch, new ParallelDTP.ChunkTask() {
+                public void run(int chunk) {
+                    simulate(from + chunk, ParallelDTP.mix(seed, from + chunk));
+                }
+            });
+            done += batch;
+            if (listener != null && done < nruns && !listener.progress(summarize(done))) {
+                break;
+            }
+        }
+        Summary s = summarize(done);
+        if (listener != null) {
+            listener.progress(s);
+        }
+        return s;
+    }
+
+    // Distance of (x, y) to the path of 'p' in nm, unsigned unless all
+    // profiles are signed.
+    private double distance(Profile p, double x, double y, double[] r) {
+        p.engine.nearest(x, y, r);
+        return (signed ? r[0] : Math.abs(r[0])) * p.nmPerPixel;
+    }
+
+    // Adds distance 'd' (nm) to the bin counts if in range; returns true if
+    // it was.
+    private boolean count(int[] counts, double d) {
+        if (Math.abs(d) >= maxDistance) {
+            return false;
+        }
+        int bin = (int) Math.floor(d / binWidth) - first;
+        if (bin < 0 || bin >= nbins) {
+            return false;
+        }
+        counts[bin]++;
+        return true;
+    }
+
+    private void simulate(int run, long runSeed) {
+        int[] counts = new int[nbins];
+        double[] r = new double[3];
+        double sum = 0;
+        int n = 0, k, i;
+
+        for (k = 0; k < profiles.size(); k++) {
+            Profile p = profiles.get(k);
+            float[] xs = new float[p.points.n], ys = new float[p.points.n];
+            p.generator.fill(xs, ys, 0, xs.length, ParallelDTP.mix(runSeed, k));
+            for (i = 0; i < xs.length; i++) {
+                double d = distance(p, xs[i], ys[i], r);
+                if (count(counts, d)) {
+                    sum += d;
+                    n++;
+                }
+            }
+        }
+        runs[run] = counts;
+        runMeans[run] = n > 0 ? sum / n : Double.NaN;
+    }
+
+    private Summary summarize(int nruns) {
+        Summary s = new Summary();
+        double[] values = new double[nruns], sd = new double[nbins];
+        int b, i;
+
+        s.runs = nruns;
+        s.signed = signed;
+        s.pathLength = pathLength;
+        s.observed = observed.clone();
+        s.observedMean = observedMean;
+        s.from = new double[nbins];
+        s.to = new double[nbins];
+        s.mean = new double[nbins];
+        s.low = new double[nbins];
+        s.high = new double[nbins];
+        for (b = 0; b < nbins; b++) {
+            double sum = 0, sum2 = 0;
+            for (i = 0; i < nruns; i++) {
+                values[i] = runs[i][b];
+                sum += values[i];
+                sum2 += values[i] * values[i];
+            }
+            s.from[b] = (first + b) * binWidth;
+            s.to[b] = Math.min((first + b + 1) * binWidth, maxDistance);
+            s.mean[b] = nruns > 0 ? sum / nruns : Double.NaN;
+            sd[b] = nruns > 1 ? Math.sqrt(Math.max(0, (sum2 - sum * s.mean[b]) / (nruns - 1))) : 0;
+            Arrays.sort(values);
+            s.low[b] = quantile(values, 0.025);
+            s.high[b] = quantile(values, 0.975);
+        }
+        // Global deviation test
+        double tobs = deviation(s.observed, s.mean, sd);
+        int extreme = 0;
+        for (i = 0; i < nruns; i++) {
+            if (deviation(runs[i], s.mean, sd) >= tobs) {
+                extreme++;
+            }
+        }
+        s.pGlobal = (1.0 + extreme) / (1.0 + nruns);
+        // Mean distance test, two-sided around the mean of the runs
+        double mean = 0;
+        int nmeans = 0;
+        for (i = 0; i < nruns; i++) {
+            if (!Double.isNaN(runMeans[i])) {
+                mean += runMeans[i];
+                nmeans++;
+            }
+        }
+        mean /= nmeans;
+        extreme = 0;
+        for (i = 0; i < nruns; i++) {
+            if (!(Math.abs(runMeans[i] - mean) < Math.abs(observedMean - mean))) {
+                extreme++;
+            }
+        }
+        s.pMean = (1.0 + extreme) / (1.0 + nruns);
+        return s;
+    }
+
+    // Largest difference from 'mean' over all bins, in standard deviations
+    // (bins without variation are skipped).
+    private static double deviation(int[] counts, double[] mean, double[] sd) {
+        double max = 0;
+
+        for (int b = 0; b < counts.length; b++) {
+            if (sd[b] > 0) {
+                max = Math.max(max, Math.abs(counts[b] - mean[b]) / sd[b]);
+            }
+        }
+        return max;
+    }
+
+    private static double quantile(double[] sorted, double q) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.floor(q * sorted.length))];
+    }
+
+} // end of EnvelopeTestDTP
@@ -0,0 +1,569 @@
+/*
+    file   : JournalDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Crash-recovery journal of the DistToPath ImageJ plugin.
+
+    Every change to the components of an open profile is appended to a
+    binary journal file of the session, so that unsaved profiles can be
+    recovered after a crash or after ImageJ was closed without saving them.
+    Changes are collected in memory and written and forced to disk by a
+    timer every few seconds, so that drawing is never held up by the disk.
+
+    The journal is a sequence of records, each for one profile (key) of the
+    session: BEGIN (the image), ADD and REMOVE of a component, FIELDS
+    (comment, path note and random seed) and END, written when the profile
+    has been saved or is cleared. Once a profile has ended, the journal is
+    compacted: rewritten with only the records of the profiles still open,
+    as a new generation of the file, before the old one is deleted. The new
+    generation is written to a temporary file and forced to disk before it
+    is renamed into place, so that the latest generation is always complete.
+
+    A session holds a lock on its journal. Journals of earlier sessions that
+    are not locked are read when the plugin starts, and their open profiles
+    offered for recovery; of the generations of a session, only the latest
+    is read.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.io.FileInfo;
+
+
+class JournalDTP {
+    static final String extension = ".dtj";
+    static final long flushInterval = 2000;     // ms
+    private static final int magic = 0x44544a32;        // "DTJ2"
+    private static final int magicV1 = 0x44544a31;      // "DTJ1": BEGIN without slice
+    private static final int BEGIN = 1, ADD = 2, REMOVE = 3, FIELDS = 4, END = 5;
+    final File dir;
+    private final String session;
+    private int generation = 0;
+    private File file;
+    private RandomAccessFile raf;
+    private FileLock lock;
+    private final Object io = new Object();     // held while writing the file
+    // Records not yet written
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(pending);
+    private final Map<ComponentDTP, Integer> ids = new WeakHashMap<ComponentDTP, Integer>();
+    private int nextKey = 1, nextId = 1;
+    private boolean compact = false, failed = false;
+    private final Timer timer;
+
+
+    // An open profile as read from a journal.
+    static class Profile {
+        String image = "", path = "";   // title, and file if known
+        boolean tiled;
+        int slice;                      // stack index; 0 if not on a stack
+        String comment = "", pathNote = "";
+        long usedSeed;
+        // By component id, in the order added
+        final Map<Integer, ComponentDTP> components = new LinkedHashMap<Integer, ComponentDTP>();
+
+        // Returns the image of the profile: the open image with its title,
+        // else its file opened and shown; null if neither is found.
+        ImagePlus openImage() {
+            ImagePlus imp = WindowManager.getImage(image);
+
+            if (imp != null || path.equals("") || !new File(path).isFile()) {
+                return imp;
+            }
+            try {
+                imp = tiled ? TiledImageDTP.openOverview(new File(path)) : IJ.openImage(path);
+            } catch (IOException e) {
+                return null;
+            }
+            if (imp != null) {
+                imp.show();
+            }
+            return imp;
+        }
+
+        // Adds the components and fields to profile 'p', which should be
+        // empty and on the image of the profile.
+        void restore(ProfileDataDTP p) {
+            for (ComponentDTP c : components.values()) {
+                p.add(c.type, c.x, c.y, c.n);
+            }
+            p.comment = comment;
+            p.pathNote = pathNote;
+            p.usedSeed = usedSeed;
+            p.fieldsChanged();
+        }
+    }
+
+
+    // The open profiles of the journals of earlier sessions.
+    static class Recovery {
+        final List<Profile> profiles = new ArrayList<Profile>();
+        final List<File> files = new ArrayList<File>();
+
+        // Deletes the journals read, once their profiles have been restored
+        // or carried over.
+        void discard() {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+
+    private JournalDTP(File dir) throws IOException {
+        this.dir = dir;
+        this.session = Long.toString(System.currentTimeMillis(), 36) + "-" +
+                Integer.toString(new Random().nextInt(1 << 20), 36);
+        openFile();
+        timer = new Timer("DistToPath-journal", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                tick();
+            }
+        }, flushInterval, flushInterval);
+    }
+
+    // Starts the journal of a new session in 'dir'.
+    static JournalDTP open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir.getPath());
+        }
+        return new JournalDTP(dir);
+    }
+
+    // The folder of the journals, in the ImageJ preferences folder.
+    static File getDefaultDirectory() {
+        return new File(Prefs.getPrefsDir(), "DistToPath-journal");
+    }
+
+    private void openFile() throws IOException {
+        file = getFile(generation);
+        raf = new RandomAccessFile(file, "rw");
+        lock = raf.getChannel().tryLock();
+        raf.setLength(0);
+        raf.writeInt(magic);
+    }
+
+    private File getFile(int gen) {
+        return new File(dir, "session-" + session + "-" + gen + extension);
+    }
+
+
+    // Records that component 'c' has been added to profile 'p'.
+    synchronized void added(ProfileDataDTP p, ComponentDTP c) {
+        try {
+            if (p.journalKey == 0) {
+                p.journalKey = nextKey++;
+                writeBegin(out, p.journalKey, imageOf(p));
+            }
+            int id = nextId++;
+            ids.put(c, id);
+            writeAdd(out, p.journalKey, id, c);
+        } catch (IOException e) {
+            // Not thrown by the in-memory stream
+        }
+    }
+
+    synchronized void removed(ProfileDataDTP p, ComponentDTP c) {
+        Integer id = ids.remove(c);
+
+        if (id == null || p.journalKey == 0) {
+            return;
+        }
+        try {
+            out.writeByte(REMOVE);
+            out.writeInt(p.journalKey);
+            out.writeInt(id);
+        } catch (IOException e) {
+            // Not thrown by the in-memory stream
+        }
+    }
+
+    // Records the comment, path note and random seed of profile 'p'.
+    synchronized void fieldsChanged(ProfileDataDTP p) {
+        if (p.journalKey == 0) {
+            return;
+        }
+        try {
+            writeFields(out, p.journalKey, p.comment, p.pathNote, p.usedSeed);
+        } catch (IOException e) {
+            // Not thrown by the in-memory stream
+        }
+    }
+
+    // Records that the profile with 'key' has been saved or cleared; the
+    // journal is compacted on the next tick.
+    synchronized void end(int key) {
+        if (key == 0) {
+            return;
+        }
+        try {
+            out.writeByte(END);
+            out.writeInt(key);
+        } catch (IOException e) {
+            // Not thrown by the in-memory stream
+        }
+        compact = true;
+    }
+
+    // Keeps a recovered profile that could not be restored in this session's
+    // journal, so that it is offered again next time.
+    synchronized void carryOver(Profile p) {
+        int key = nextKey++;
+
+        try {
+            writeBegin(out, key, p);
+            for (ComponentDTP c : p.components.values()) {
+                writeAdd(out, key, nextId++, c);
+            }
+            writeFields(out, key, p.comment, p.pathNote, p.usedSeed);
+        } catch (IOException e) {
+            // Not thrown by the in-memory stream
+        }
+    }
+
+    private static Profile imageOf(ProfileDataDTP p) {
+        Profile info = new Profile();
+        ImagePlus imp = WindowManager.getImage(p.imgID);
+
+        if (imp == null) {
+            return info;
+        }
+        info.image = imp.getTitle();
+        info.slice = p.slice;
+        TiledImageDTP src = TiledImageDTP.get(imp);
+        FileInfo fi = imp.getOriginalFileInfo();
+        if (src != null) {
+            info.path = src.file.getPath();
+            info.tiled = true;
+        } else if (fi != null && fi.directory != null && fi.fileName != null) {
+            info.path = new File(fi.directory, fi.fileName).getPath();
+        }
+        return info;
+    }
+
+
+    private static void writeBegin(DataOutputStream o, int key, Profile image) throws IOException {
+        o.writeByte(BEGIN);
+        o.writeInt(key);
+        o.writeUTF(image.image);
+        o.writeUTF(image.path);
+        o.writeBoolean(image.tiled);
+        o.writeInt(image.slice);
+    }
+
+    private static void writeAdd(DataOutputStream o, int key, int id, ComponentDTP c) throws IOException {
+        o.writeByte(ADD);
+        o.writeInt(key);
+        o.writeInt(id);
+        o.writeByte(c.type.ordinal());
+        o.writeInt(c.n);
+        for (int i = 0; i < c.n; i++) {
+            o.writeFloat(c.x[i]);
+            o.writeFloat(c.y[i]);
+        }
+    }
+
+    private static void writeFields(DataOutputStream o, int key, String comment, String pathNote,
+                                    long usedSeed) throws IOException {
+        o.writeByte(FIELDS);
+        o.writeInt(key);
+        o.writeUTF(comment);
+        o.writeUTF(pathNote);
+        o.writeLong(usedSeed);
+    }
+
+
+    private void tick() {
+        boolean c;
+
+        synchronized (this) {
+            c = compact;
+            compact = false;
+        }
+        try {
+            if (c) {
+                compact();
+            } else {
+                flush();
+            }
+        } catch (IOException e) {
+            if (!failed) {
+                failed = true;
+                IJ.log("DistToPath: could not write recovery journal: " + e.getMessage());
+            }
+        }
+    }
+
+    // Writes the records collected so far and forces them to disk.
+    void flush() throws IOException {
+        synchronized (io) {
+            byte[] b;
+            synchronized (this) {
+                b = pending.toByteArray();
+                pending.reset();
+            }
+            if (b.length > 0) {
+                raf.write(b);
+                raf.getChannel().force(false);
+            }
+        }
+    }
+
+    // Rewrites the journal with the records of the open profiles only, as
+    // the next generation. The old generation is kept, and locked, until
+    // the new one is complete on disk and in place.
+    private void compact() throws IOException {
+        synchronized (io) {
+            flush();
+            Map<Integer, Profile> open = read(file);
+            File next = getFile(generation + 1);
+            File tmp = SaveQueueDTP.createTempFile(next);
+            try {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                DataOutputStream o = new DataOutputStream(b);
+                o.writeInt(magic);
+                for (Map.Entry<Integer, Profile> e : open.entrySet()) {
+                    Profile p = e.getValue();
+                    writeBegin(o, e.getKey(), p);
+                    for (Map.Entry<Integer, ComponentDTP> c : p.components.entrySet()) {
+                        writeAdd(o, e.getKey(), c.getKey(), c.getValue());
+                    }
+                    writeFields(o, e.getKey(), p.comment, p.pathNote, p.usedSeed);
+                }
+                FileOutputStream fos = new FileOutputStream(tmp);
+                try {
+                    fos.write(b.toByteArray());
+                    fos.getChannel().force(false);
+                } finally {
+                    fos.close();
+                }
+                SaveQueueDTP.rename(tmp, next);
+            } finally {
+                tmp.delete();
+            }
+            File old = file;
+            RandomAccessFile oldraf = raf;
+            generation++;
+            file = next;
+            raf = new RandomAccessFile(file, "rw");
+            lock = raf.getChannel().tryLock();
+            raf.seek(raf.length());
+            oldraf.close();
+            old.delete();
+        }
+    }
+
+    // Writes what is left and ends the session. The journal is deleted if
+    // no profile is open, else kept for recovery.
+    void close() {
+        timer.cancel();
+        synchronized (io) {
+            try {
+                flush();
+                boolean empty = read(file).isEmpty();
+                raf.close();
+                if (empty) {
+                    file.delete();
+                }
+            } catch (IOException e) {
+                IJ.log("DistToPath: could not write recovery journal: " + e.getMessage());
+            }
+        }
+    }
+
+
+    // Returns the open profiles in journal 'f', by key. A record cut short
+    // or not valid (by a crash while writing, which may also leave zeroed
+    // bytes at the end) ends the journal.
+    static Map<Integer, Profile> read(File f) throws IOException {
+        Map<Integer, Profile> profiles = new LinkedHashMap<Integer, Profile>();
+        ComponentTypeDTP[] types = ComponentTypeDTP.values();
+        byte[] data;
+
+        if (f.length() > Integer.MAX_VALUE) {
+            throw new IOException(f.getName() + " is too large for a DistToPath journal.");
+        }
+        data = new byte[(int) f.length()];
+        InputStream fin = new FileInputStream(f);
+        int len = 0, k;
+        try {
+            while (len < data.length && (k = fin.read(data, len, data.length - len)) > 0) {
+                len += k;
+            }
+        } finally {
+            fin.close();
+        }
+        // available() is exact on an array: the bytes left in the journal
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, len));
+        try {
+            int version = in.readInt();
+            if (version != magic && version != magicV1) {
+                throw new IOException(f.getName() + " is not a DistToPath journal.");
+            }
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+                int key = in.readInt();
+                Profile p = profiles.get(key);
+                if (op == BEGIN) {
+                    p = new Profile();
+                    p.image = in.readUTF();
+                    p.path = in.readUTF();
+                    p.tiled = in.readBoolean();
+                    p.slice = version == magic ? in.readInt() : 0;
+                    profiles.put(key, p);
+                } else if (op == ADD) {
+                    int id = in.readInt();
+                    int type = in.readByte();
+                    int n = in.readInt();
+                    if (type < 0 || type >= types.length || n < 0 || 8L * n > in.available()) {
+                        break;
+                    }
+                    ComponentTypeDTP t = types[type];
+                    float[] x = new float[n], y = new float[n];
+                    for (int i = 0; i < n; i++) {
+                        x[i] = in.readFloat();
+                        y[i] = in.readFloat();
+                    }
+                    if (p != null) {
+                        p.components.put(id, new ComponentDTP(t, x, y, n));
+                    }
+                } else if (op == REMOVE) {
+                    int id = in.readInt();
+                    if (p != null) {
+                        p.components.remove(id);
+                    }
+                } else if (op == FIELDS) {
+                    String comment = in.readUTF(), pathNote = in.readUTF();
+                    long seed = in.readLong();
+                    if (p != null) {
+                        p.comment = comment;
+                        p.pathNote = pathNote;
+                        p.usedSeed = seed;
+                    }
+                } else if (op == END) {
+                    profiles.remove(key);
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // Cut short; keep what was read
+        } catch (UTFDataFormatException e) {
+            // Not valid; keep what was read
+        } finally {
+            in.close();
+        }
+        return profiles;
+    }
+
+    // Reads the journals of earlier sessions in the folder of this journal
+    // that are not in use, for the profiles that were not saved or cleared.
+    Recovery recover() throws IOException {
+        Recovery r = new Recovery();
+        Map<String, File> latest = new TreeMap<String, File>();
+        Map<String, List<File>> bySession = new HashMap<String, List<File>>();
+        File[] l = dir.listFiles();
+
+        if (l == null) {
+            return r;
+        }
+        for (File f : l) {
+            String name = f.getName();
+            int dash = name.lastIndexOf('-');
+            if (name.startsWith(".session-") && name.endsWith(".tmp") &&
+                    !name.startsWith(".session-" + session + "-")) {
+                f.delete();             // left by a crash while compacting
+                continue;
+            }
+            if (!name.startsWith("session-") || !name.endsWith(extension) || dash < 0) {
+                continue;
+            }
+            String s = name.substring(8, dash);
+            if (s.equals(session)) {
+                continue;
+            }
+            int gen;
+            try {
+                gen = Integer.parseInt(name.substring(dash + 1, name.length() - extension.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (!bySession.containsKey(s)) {
+                bySession.put(s, new ArrayList<File>());
+            }
+            bySession.get(s).add(f);
+            File prev = latest.get(s);
+            if (prev == null || gen > generationOf(prev)) {
+                latest.put(s, f);
+            }
+        }
+        for (Map.Entry<String, File> e : latest.entrySet()) {
+            // Any generation may hold the lock of a session while it compacts
+            if (isLocked(bySession.get(e.getKey()))) {
+                continue;
+            }
+            Map<Integer, Profile> open;
+            try {
+                open = read(e.getValue());
+            } catch (IOException ex) {
+                IJ.log("DistToPath: could not read recovery journal " + e.getValue().getName() +
+                        ": " + ex.getMessage());
+                continue;
+            }
+            for (Profile p : open.values()) {
+                if (!p.components.isEmpty()) {
+                    r.profiles.add(p);
+                }
+            }
+            r.files.addAll(bySession.get(e.getKey()));
+        }
+        return r;
+    }
+
+    // Returns true if one of 'files' is locked, by another ImageJ or by this
+    // one.
+    private static boolean isLocked(List<File> files) {
+        for (File f : files) {
+            try {
+                RandomAccessFile check = new RandomAccessFile(f, "rw");
+                try {
+                    FileLock held = check.getChannel().tryLock();
+                    if (held == null) {
+                        return true;
+                    }
+                    held.release();
+                } finally {
+                    check.close();
+                }
+            } catch (IOException ex) {
+                return true;
+            } catch (OverlappingFileLockException ex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int generationOf(File f) {
+        String name = f.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1,
+                name.length() - extension.length()));
+    }
+
+} // end of JournalDTP
@@ -0,0 +1,320 @@
+/*
+    file   : MetricsDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    In-process timing and memory metrics for the DistToPath ImageJ plugin.
+
+    Every command of the plugin window and every stage of saving a profile is
+    timed. For each timer the registry keeps a count, the total time and
+    memory allocated, and a histogram of durations, from which percentiles
+    are read; the most recent samples are also kept as they are, with the
+    image size and component counts at the time. Counters count events that
+    are not timed. All of it can be written to a JSON or CSV file (from the
+    Options dialog), so that timings can be compared between workstations.
+
+    Histogram buckets are a quarter of a power of two wide (about 19%), which
+    needs 256 buckets to cover any duration in microseconds.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import ij.IJ;
+
+
+class MetricsDTP {
+    static final int nBuckets = 256;
+    static final int nRecent = 1000;
+    // Allocated bytes of a thread, where the JVM can tell (HotSpot)
+    private static final Object threadBean = ManagementFactory.getThreadMXBean();
+    private static final Method allocatedBytes = findAllocatedBytes();
+    static final MetricsDTP registry = new MetricsDTP();
+    private final Map<String, Timer> timers = new TreeMap<String, Timer>();
+    private final Map<String, long[]> counters = new TreeMap<String, long[]>();
+    private final Sample[] recent = new Sample[nRecent];
+    private int nextRecent = 0;          // slot of the next sample
+    private long nRecorded = 0;          // samples recorded since the reset
+    private long since = System.currentTimeMillis();
+
+
+    private static class Timer {
+        long count, totalNanos, maxNanos, totalBytes, nBytes;
+        final long[] buckets = new long[nBuckets];   // durations in µs
+    }
+
+
+    // A timed event. Made by start(); recorded when stopped.
+    class Sample {
+        String name;            // may be changed until stopped
+        final long start = System.currentTimeMillis();
+        final long t0 = System.nanoTime();
+        final Thread thread = Thread.currentThread();
+        final long bytes0 = getAllocatedBytes();
+        long nanos;
+        long bytes = -1;        // -1 if not known
+        long pixels;            // full resolution image size
+        int components, points;
+
+        Sample(String name) {
+            this.name = name;
+        }
+
+        // Records the sample, with the image size and component counts.
+        void stop(long pixels, int components, int points) {
+            this.nanos = System.nanoTime() - t0;
+            if (bytes0 >= 0 && thread == Thread.currentThread()) {
+                this.bytes = getAllocatedBytes() - bytes0;
+            }
+            this.pixels = pixels;
+            this.components = components;
+            this.points = points;
+            record(this);
+        }
+    }
+
+
+    // Starts timing 'name' on the current thread.
+    Sample start(String name) {
+        return new Sample(name);
+    }
+
+    // Increments counter 'name'.
+    synchronized void increment(String name) {
+        long[] c = counters.get(name);
+        if (c == null) {
+            c = new long[1];
+            counters.put(name, c);
+        }
+        c[0]++;
+    }
+
+    private synchronized void record(Sample s) {
+        Timer t = timers.get(s.name);
+
+        if (t == null) {
+            t = new Timer();
+            timers.put(s.name, t);
+        }
+        t.count++;
+        t.totalNanos += s.nanos;
+        t.maxNanos = Math.max(t.maxNanos, s.nanos);
+        if (s.bytes >= 0) {
+            t.totalBytes += s.bytes;
+            t.nBytes++;
+        }
+        t.buckets[bucket(s.nanos / 1000)]++;
+        recent[nextRecent] = s;
+        nextRecent = (nextRecent + 1) % nRecent;
+        nRecorded++;
+    }
+
+    synchronized void reset() {
+        timers.clear();
+        counters.clear();
+        Arrays.fill(recent, null);
+        nextRecent = 0;
+        nRecorded = 0;
+        since = System.currentTimeMillis();
+    }
+
+    // Values below 4 have a bucket each; above, each power of two is split
+    // in four.
+    static int bucket(long v) {
+        if (v < 4) {
+            return (int) Math.max(0, v);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        return exp * 4 + (int) ((v >>> (exp - 2)) & 3);
+    }
+
+    // Lowest value of bucket 'b'.
+    static long bucketStart(int b) {
+        if (b < 8) {
+            return Math.min(b, 4);
+        }
+        return (4L + (b & 3)) << ((b >> 2) - 2);
+    }
+
+    // Returns the 'q' quantile of the durations of 't' in ms, taken as the
+    // middle of its bucket.
+    private static double percentile(Timer t, double q) {
+        long rank = (long) Math.ceil(q * t.count), n = 0;
+        int b;
+
+        for (b = 0; b < nBuckets - 1; b++) {
+            n += t.buckets[b];
+            if (n >= rank) {
+                break;
+            }
+        }
+        double us = (bucketStart(b) + Math.max(bucketStart(b), bucketStart(b + 1) - 1)) / 2.0;
+        return Math.min(us / 1000, t.maxNanos / 1e6);
+    }
+
+    private static Method findAllocatedBytes() {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (!c.isInstance(threadBean)) {
+                return null;
+            }
+            Method m = c.getMethod("getThreadAllocatedBytes", long.class);
+            m.invoke(threadBean, Thread.currentThread().getId());
+            return m;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    // Bytes allocated by the current thread so far, or -1 if not known.
+    static long getAllocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return (Long) allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+
+    // Writes the metrics to 'path', as CSV if it ends in .csv, else JSON.
+    // The CSV file holds one line per timer; the JSON file also holds the
+    // counters, the recent samples and the system.
+    synchronized void write(String path) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(path), "UTF-8")));
+
+        try {
+            write(out, path.toLowerCase(Locale.US).endsWith(".csv"));
+            if (out.checkError()) {
+                throw new IOException("Could not write " + path);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    synchronized void write(PrintWriter out, boolean csv) {
+        if (csv) {
+            writeCSV(out);
+        } else {
+            writeJSON(out);
+        }
+    }
+
+    private void writeCSV(PrintWriter out) {
+        out.println("host,timer,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,mean_alloc_bytes");
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            Timer t = e.getValue();
+            out.println(csv(getHost()) + "," + csv(e.getKey()) + "," + t.count + ","
+                    + fmt(t.totalNanos / 1e6 / t.count) + ","
+                    + fmt(percentile(t, 0.5)) + "," + fmt(percentile(t, 0.9)) + ","
+                    + fmt(percentile(t, 0.99)) + "," + fmt(t.maxNanos / 1e6) + ","
+                    + (t.nBytes > 0 ? Long.toString(t.totalBytes / t.nBytes) : ""));
+        }
+    }
+
+    private void writeJSON(PrintWriter out) {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.US);
+        Runtime rt = Runtime.getRuntime();
+        String sep;
+
+        out.println("{");
+        out.println("  \"plugin\": " + json(VersionDTP.title + " " + VersionDTP.version) + ",");
+        out.println("  \"imagej\": " + json(IJ.getVersion()) + ",");
+        out.println("  \"host\": " + json(getHost()) + ",");
+        out.println("  \"os\": " + json(System.getProperty("os.name") + " "
+                + System.getProperty("os.version") + " " + System.getProperty("os.arch")) + ",");
+        out.println("  \"java\": " + json(System.getProperty("java.vm.name") + " "
+                + System.getProperty("java.version")) + ",");
+        out.println("  \"processors\": " + rt.availableProcessors() + ",");
+        out.println("  \"maxHeapBytes\": " + rt.maxMemory() + ",");
+        out.println("  \"since\": " + json(iso.format(new Date(since))) + ",");
+        out.println("  \"written\": " + json(iso.format(new Date())) + ",");
+        out.println("  \"timers\": {");
+        sep = "";
+        double seconds = Math.max(1e-3, (System.currentTimeMillis() - since) / 1000.0);
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            Timer t = e.getValue();
+            out.print(sep + "    " + json(e.getKey()) + ": {\"count\": " + t.count
+                    + ", \"perSecond\": " + fmt(t.count / seconds)
+                    + ", \"meanMs\": " + fmt(t.totalNanos / 1e6 / t.count)
+                    + ", \"p50Ms\": " + fmt(percentile(t, 0.5))
+                    + ", \"p90Ms\": " + fmt(percentile(t, 0.9))
+                    + ", \"p99Ms\": " + fmt(percentile(t, 0.99))
+                    + ", \"maxMs\": " + fmt(t.maxNanos / 1e6)
+                    + ", \"meanAllocBytes\": " + (t.nBytes > 0 ? t.totalBytes / t.nBytes : -1)
+                    + "}");
+            sep = ",\n";
+        }
+        out.println();
+        out.println("  },");
+        out.println("  \"counters\": {");
+        sep = "";
+        for (Map.Entry<String, long[]> e : counters.entrySet()) {
+            out.print(sep + "    " + json(e.getKey()) + ": " + e.getValue()[0]);
+            sep = ",\n";
+        }
+        out.println();
+        out.println("  },");
+        out.println("  \"recent\": [");
+        sep = "";
+        int n = (int) Math.min(nRecorded, nRecent);
+        for (int i = 0; i < n; i++) {
+            Sample s = recent[(nextRecent - n + i + nRecent) % nRecent];
+            out.print(sep + "    {\"time\": " + json(iso.format(new Date(s.start)))
+                    + ", \"name\": " + json(s.name)
+                    + ", \"ms\": " + fmt(s.nanos / 1e6)
+                    + ", \"allocBytes\": " + s.bytes
+                    + ", \"pixels\": " + s.pixels
+                    + ", \"components\": " + s.components
+                    + ", \"points\": " + s.points + "}");
+            sep = ",\n";
+        }
+        out.println();
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private static String getHost() {
+        try {
+            return java.net.InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private static String fmt(double v) {
+        return String.format(Locale.US, "%.3f", v);
+    }
+
+    static String csv(String s) {
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+} // end of MetricsDTP
@@ -0,0 +1,100 @@
+/*
+    file   : ParallelDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Shared worker pool for the DistToPath ImageJ plugin.
+
+    Work is split into a fixed number of chunks that do not depend on the
+    number of threads, so that results (e.g. seeded random points) are the
+    same on every machine. Work started from within a chunk (e.g. particle
+    detection on each slice of a stack) is run on the thread of that chunk,
+    so that workers never wait for the pool.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+
+class ParallelDTP {
+    static final int nThreads = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService pool;
+    // Set on the threads of the pool
+    private static final ThreadLocal<Boolean> worker = new ThreadLocal<Boolean>();
+
+    interface ChunkTask {
+        void run(int chunk) throws Exception;
+    }
+
+    static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+                int n = 0;
+
+                public synchronized Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        public void run() {
+                            worker.set(Boolean.TRUE);
+                            r.run();
+                        }
+                    }, "DistToPath-worker-" + (++n));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+    // Runs task.run(0) .. task.run(nchunks - 1) on the pool and waits for all
+    // of them; called from a chunk, runs them in turn on the calling thread.
+    // The first exception thrown by a chunk is rethrown.
+    static void run(int nchunks, final ChunkTask task) throws Exception {
+        if (nchunks == 1 || nThreads == 1 || worker.get() != null) {
+            for (int chunk = 0; chunk < nchunks; chunk++) {
+                task.run(chunk);
+            }
+            return;
+        }
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(nchunks);
+        for (int chunk = 0; chunk < nchunks; chunk++) {
+            final int c = chunk;
+            futures.add(getPool().submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    task.run(c);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            for (Future<Object> f : futures) {
+                f.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    // SplitMix64 finalizer; derives well-separated seeds from a base seed and
+    // a chunk index.
+    static long mix(long seed, long index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+} // end of ParallelDTP
@@ -0,0 +1,350 @@
+/*
+    file   : ParticleDetectorDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Gold particle detection for the DistToPath ImageJ plugin.
+
+    Finds 8-connected particles among the thresholded pixels of an image and
+    returns the centroids of those within an area and circularity range. The
+    image is labeled in horizontal strips in parallel: each strip encodes its
+    particles as runs of pixels joined by union-find, and the runs on either
+    side of the seams between strips are joined afterwards. Area and
+    centroid are summed per run, so no label image is made. A tiled image is
+    read a row of tiles per strip, through the tile cache.
+
+    Circularity, 4 pi area / perimeter^2, needs the perimeter as ImageJ
+    measures it for traced particles, which depends on the order of the
+    corners along the outline (only every other corner of a staircase of
+    unit steps is cut). So each particle within the area range is drawn
+    into a mask of its bounding box from its runs and traced with the wand
+    as the particle analyzer does, and the length of the traced outline is
+    its perimeter. Circularity then agrees with the particle analyzer for
+    particles without holes.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.*;
+
+
+class ParticleDetectorDTP {
+    final ImageProcessor ip;     // null for a tiled image
+    final TiledImageDTP src;     // null for an image in memory
+    final int width, height, stripHeight;
+    final double lower, upper;
+    // Runs of all strips, numbered consecutively after the strips are done
+    private Strip[] strips;
+    private int[] parent;
+
+
+    ParticleDetectorDTP(ImageProcessor ip) {
+        this.ip = ip;
+        this.src = null;
+        this.width = ip.getWidth();
+        this.height = ip.getHeight();
+        this.stripHeight = 256;
+        this.lower = ip.getMinThreshold();
+        this.upper = ip.getMaxThreshold();
+    }
+
+    // Detects particles in the full resolution pixels of a tiled image, with
+    // the threshold of 'overview' (which has the same pixel type).
+    ParticleDetectorDTP(TiledImageDTP src, ImageProcessor overview) {
+        this.ip = null;
+        this.src = src;
+        this.width = src.width;
+        this.height = src.height;
+        this.stripHeight = TiledImageDTP.tileSize;
+        this.lower = overview.getMinThreshold();
+        this.upper = overview.getMaxThreshold();
+    }
+
+    boolean isThresholded() {
+        return lower != ImageProcessor.NO_THRESHOLD && !(ip instanceof ColorProcessor);
+    }
+
+    // Returns {x, y} of the centroids (in pixels) of particles with an area of
+    // minArea to maxArea pixels and a circularity of at least minCirc.
+    float[][] detect(double minArea, double maxArea, double minCirc) throws Exception {
+        int nstrips = (height + stripHeight - 1) / stripHeight;
+        int i, s;
+
+        strips = new Strip[nstrips];
+        ParallelDTP.run(nstrips, new ParallelDTP.ChunkTask() {
+            public void run(int chunk) throws java.io.IOException {
+                Strip strip = new Strip(chunk * stripHeight,
+                        Math.min(height, (chunk + 1) * stripHeight));
+                strip.label();
+                strips[chunk] = strip;
+            }
+        });
+        int nruns = 0;
+        for (s = 0; s < nstrips; s++) {
+            strips[s].first = nruns;
+            nruns += strips[s].nruns;
+        }
+        parent = new int[nruns];
+        for (Strip strip : strips) {
+            for (i = 0; i < strip.nruns; i++) {
+                parent[strip.first + i] = strip.first + strip.find(i);
+            }
+        }
+        for (s = 1; s < nstrips; s++) {
+            joinSeam(strips[s - 1], strips[s]);
+        }
+        // Sum the run statistics per particle, and chain the runs of each
+        // particle (from its root, in raster order) for tracing
+        double[] area = new double[nruns], sumx = new double[nruns], sumy = new double[nruns];
+        int[] runx0 = new int[nruns], runx1 = new int[nruns], runy = new int[nruns];
+        int[] next = new int[nruns], last = new int[nruns];
+        java.util.Arrays.fill(next, -1);
+        for (i = 0; i < nruns; i++) {
+            last[i] = i;
+        }
+        for (Strip strip : strips) {
+            for (int row = 0; row < strip.y1 - strip.y0; row++) {
+                for (i = strip.rowStart[row]; i < strip.rowStart[row + 1]; i++) {
+                    int run = strip.first + i, root = find(run);
+                    runx0[run] = strip.x0[i];
+                    runx1[run] = strip.x1[i];
+                    runy[run] = strip.y0 + row;
+                    area[root] += strip.x1[i] - strip.x0[i] + 1;
+                    sumx[root] += strip.sumx[i];
+                    sumy[root] += strip.sumy[i];
+                    if (run != root) {
+                        next[last[root]] = run;
+                        last[root] = run;
+                    }
+                }
+            }
+        }
+        FloatListDTP xs = new FloatListDTP(), ys = new FloatListDTP();
+        for (i = 0; i < nruns; i++) {
+            if (parent[i] != i || area[i] < minArea || area[i] > maxArea) {
+                continue;
+            }
+            if (minCirc > 0) {
+                double perimeter = tracedPerimeter(i, next, runx0, runx1, runy);
+                double circ = perimeter == 0 ? 0 : 4.0 * Math.PI * area[i] / (perimeter * perimeter);
+                if (Math.min(circ, 1.0) < minCirc) {
+                    continue;
+                }
+            }
+            xs.add((float) (sumx[i] / area[i] + 0.5));
+            ys.add((float) (sumy[i] / area[i] + 0.5));
+        }
+        strips = null;
+        parent = null;
+        return new float[][] {xs.toArray(), ys.toArray()};
+    }
+
+    // Returns the perimeter of the particle whose runs are chained from
+    // 'root' by 'next', measured as the particle analyzer does: the outline
+    // traced by the wand from the particle's first pixel, as a traced ROI.
+    private static double tracedPerimeter(int root, int[] next, int[] x0, int[] x1, int[] y) {
+        int left = Integer.MAX_VALUE, right = 0, bottom = 0, r;
+
+        for (r = root; r >= 0; r = next[r]) {
+            left = Math.min(left, x0[r]);
+            right = Math.max(right, x1[r]);
+            bottom = Math.max(bottom, y[r]);
+        }
+        // A background margin of one pixel, so that the outline is closed
+        int top = y[root];
+        ByteProcessor mask = new ByteProcessor(right - left + 3, bottom - top + 3);
+        byte[] pixels = (byte[]) mask.getPixels();
+        for (r = root; r >= 0; r = next[r]) {
+            int offset = (y[r] - top + 1) * mask.getWidth() - left + 1;
+            java.util.Arrays.fill(pixels, offset + x0[r], offset + x1[r] + 1, (byte) 255);
+        }
+        Wand wand = new Wand(mask);
+        wand.autoOutline(x0[root] - left + 1, 1, 255.0, 255.0, Wand.LEGACY_MODE);
+        return new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.TRACED_ROI).getLength();
+    }
+
+    // Joins the runs in the last row of 'a' with touching runs in the first
+    // row of 'b'.
+    private void joinSeam(Strip a, Strip b) {
+        int i = a.rowStart[a.y1 - a.y0 - 1], iend = a.nruns;
+        int j = 0, jend = b.rowStart.length > 1 ? b.rowStart[1] : b.nruns;
+
+        while (i < iend && j < jend) {
+            if (a.x0[i] <= b.x1[j] + 1 && b.x0[j] <= a.x1[i] + 1) {
+                union(a.first + i, b.first + j);
+            }
+            if (a.x1[i] < b.x1[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+    }
+
+    private int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a < b) {
+            parent[b] = a;
+        } else if (b < a) {
+            parent[a] = b;
+        }
+    }
+
+    // Sets m[x + 1] to true for thresholded pixels x in row y; all false
+    // outside the image.
+    private void maskRow(int y, boolean[] m) throws java.io.IOException {
+        int tx;
+
+        if (y < 0 || y >= height) {
+            java.util.Arrays.fill(m, false);
+            return;
+        }
+        if (src == null) {
+            mask(ip.getPixels(), y * width, width, m, 1);
+            return;
+        }
+        int ts = TiledImageDTP.tileSize;
+        for (tx = 0; tx * ts < width; tx++) {
+            ImageProcessor tile = src.getTile(0, tx, y / ts);
+            int tw = tile.getWidth();
+            mask(tile.getPixels(), (y % ts) * tw, tw, m, tx * ts + 1);
+        }
+    }
+
+    private void mask(Object pixels, int offset, int n, boolean[] m, int moffset) {
+        int x;
+
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (x = 0; x < n; x++) {
+                int v = p[offset + x] & 0xff;
+                m[moffset + x] = v >= lower && v <= upper;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (x = 0; x < n; x++) {
+                int v = p[offset + x] & 0xffff;
+                m[moffset + x] = v >= lower && v <= upper;
+            }
+        } else {
+            float[] p = (float[]) pixels;
+            for (x = 0; x < n; x++) {
+                float v = p[offset + x];
+                m[moffset + x] = v >= lower && v <= upper;
+            }
+        }
+    }
+
+
+    // A horizontal strip of rows y0 .. y1 - 1 and its runs.
+    private class Strip {
+        final int y0, y1;
+        int first, nruns;
+        int[] rowStart;         // index of the first run of each row
+        int[] x0 = new int[64], x1 = new int[64], local = new int[64];
+        double[] sumx = new double[64], sumy = new double[64];
+
+        Strip(int y0, int y1) {
+            this.y0 = y0;
+            this.y1 = y1;
+            this.rowStart = new int[y1 - y0 + 1];
+        }
+
+        // Masks are indexed from x = -1, so that m[x + 1] is pixel x and the
+        // first and last elements are always background.
+        void label() throws java.io.IOException {
+            boolean[] prev = new boolean[width + 2], cur = new boolean[width + 2];
+            boolean[] next = new boolean[width + 2], tmp;
+            int x, y;
+
+            maskRow(y0 - 1, prev);
+            maskRow(y0, cur);
+            for (y = y0; y < y1; y++) {
+                maskRow(y + 1, next);
+                rowStart[y - y0] = nruns;
+                for (x = 0; x < width; x++) {
+                    if (!cur[x + 1]) {
+                        continue;
+                    }
+                    int start = x;
+                    double sx = 0;
+                    while (x < width && cur[x + 1]) {
+                        sx += x;
+                        x++;
+                    }
+                    addRun(start, x - 1, sx, (double) y * (x - start));
+                }
+                if (y > y0) {
+                    joinRows(rowStart[y - y0 - 1], rowStart[y - y0], nruns);
+                }
+                tmp = prev;
+                prev = cur;
+                cur = next;
+                next = tmp;
+            }
+            rowStart[y1 - y0] = nruns;
+        }
+
+        private void addRun(int start, int end, double sx, double sy) {
+            if (nruns == x0.length) {
+                int n = nruns * 2;
+                x0 = java.util.Arrays.copyOf(x0, n);
+                x1 = java.util.Arrays.copyOf(x1, n);
+                local = java.util.Arrays.copyOf(local, n);
+                sumx = java.util.Arrays.copyOf(sumx, n);
+                sumy = java.util.Arrays.copyOf(sumy, n);
+            }
+            x0[nruns] = start;
+            x1[nruns] = end;
+            local[nruns] = nruns;
+            sumx[nruns] = sx;
+            sumy[nruns] = sy;
+            nruns++;
+        }
+
+        // Joins runs [a, b) of one row with touching runs [b, c) of the next.
+        private void joinRows(int a, int b, int c) {
+            int i = a, j = b;
+
+            while (i < b && j < c) {
+                if (x0[i] <= x1[j] + 1 && x0[j] <= x1[i] + 1) {
+                    int ri = find(i), rj = find(j);
+                    if (ri < rj) {
+                        local[rj] = ri;
+                    } else if (rj < ri) {
+                        local[ri] = rj;
+                    }
+                }
+                if (x1[i] < x1[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        }
+
+        int find(int i) {
+            while (local[i] != i) {
+                local[i] = local[local[i]];
+                i = local[i];
+            }
+            return i;
+        }
+    }
+
+} // end of ParticleDetectorDTP
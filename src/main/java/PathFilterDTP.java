@@ -0,0 +1,197 @@
+/*
+    file   : PathFilterDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Path processing for the DistToPath ImageJ plugin: simplification and
+    spline smoothing of densely traced paths.
+
+    Paths traced freehand or by auto-tracing have a node every pixel or so,
+    which makes profiles large and distance queries slow without adding any
+    accuracy. Simplification (Douglas-Peucker) keeps only the nodes needed to
+    stay within a tolerance of the traced path. Smoothing fits a centripetal
+    Catmull-Rom spline through the nodes, which does not overshoot or loop on
+    unevenly spaced nodes, and resamples it at an even spacing along the
+    path. Coordinates stay floats throughout. The error introduced is
+    measured as the Hausdorff distance between the traced and the processed
+    path: how far either strays from the other.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.util.Arrays;
+
+
+class PathFilterDTP {
+
+    private PathFilterDTP() {
+    }
+
+
+    // Returns {x, y} of the nodes of the path through the first 'n' nodes of
+    // x, y that are needed to keep it within 'tolerance' of it. The ends are
+    // always kept.
+    static float[][] simplify(float[] x, float[] y, int n, double tolerance) {
+        boolean[] keep = new boolean[n];
+        int[] stack = new int[2 * n];
+        int sp = 0, i;
+
+        if (n < 3) {
+            return copy(x, y, n);
+        }
+        keep[0] = keep[n - 1] = true;
+        stack[sp++] = 0;
+        stack[sp++] = n - 1;
+        while (sp > 0) {
+            int to = stack[--sp], from = stack[--sp];
+            double maxd = -1;
+            int farthest = -1;
+            for (i = from + 1; i < to; i++) {
+                double d = ComponentIndexDTP.segmentDistance(x[i], y[i], x[from], y[from], x[to], y[to]);
+                if (d > maxd) {
+                    maxd = d;
+                    farthest = i;
+                }
+            }
+            if (maxd > tolerance) {
+                keep[farthest] = true;
+                stack[sp++] = from;
+                stack[sp++] = farthest;
+                stack[sp++] = farthest;
+                stack[sp++] = to;
+            }
+        }
+        int m = 0;
+        float[] xs = new float[n], ys = new float[n];
+        for (i = 0; i < n; i++) {
+            if (keep[i]) {
+                xs[m] = x[i];
+                ys[m] = y[i];
+                m++;
+            }
+        }
+        return new float[][] {Arrays.copyOf(xs, m), Arrays.copyOf(ys, m)};
+    }
+
+    // Returns {x, y} of nodes 'spacing' apart along a centripetal Catmull-Rom
+    // spline through the first 'n' nodes of x, y. The ends are kept; the
+    // last node is nearer than 'spacing' to the one before it.
+    static float[][] smooth(float[] x, float[] y, int n, double spacing) {
+        float[][] p = dedupe(x, y, n);
+        float[] px = p[0], py = p[1];
+        int m = px.length, i, k;
+
+        if (m < 3) {
+            return p;
+        }
+        // The spline sampled densely, each span in steps of at most spacing / 4
+        FloatListDTP dx = new FloatListDTP(), dy = new FloatListDTP();
+        for (i = 0; i + 1 < m; i++) {
+            // Missing neighbours at the ends are mirrored
+            double x0 = i > 0 ? px[i - 1] : 2 * px[i] - px[i + 1];
+            double y0 = i > 0 ? py[i - 1] : 2 * py[i] - py[i + 1];
+            double x3 = i + 2 < m ? px[i + 2] : 2 * px[i + 1] - px[i];
+            double y3 = i + 2 < m ? py[i + 2] : 2 * py[i + 1] - py[i];
+            double t1 = Math.sqrt(Math.hypot(px[i] - x0, py[i] - y0));
+            double t2 = t1 + Math.sqrt(Math.hypot(px[i + 1] - px[i], py[i + 1] - py[i]));
+            double t3 = t2 + Math.sqrt(Math.hypot(x3 - px[i + 1], y3 - py[i + 1]));
+            int steps = 1 + (int) (4 * Math.hypot(px[i + 1] - px[i], py[i + 1] - py[i]) / spacing);
+            for (k = 0; k < steps; k++) {
+                double t = t1 + (t2 - t1) * k / steps;
+                dx.add((float) barryGoldman(x0, px[i], px[i + 1], x3, t1, t2, t3, t));
+                dy.add((float) barryGoldman(y0, py[i], py[i + 1], y3, t1, t2, t3, t));
+            }
+        }
+        dx.add(px[m - 1]);
+        dy.add(py[m - 1]);
+        return resample(dx.toArray(), dy.toArray(), dx.size(), spacing);
+    }
+
+    // Point at 't' of the centripetal Catmull-Rom span from p1 to p2, with
+    // knots 0, t1, t2, t3 (Barry and Goldman's pyramidal form).
+    private static double barryGoldman(double p0, double p1, double p2, double p3,
+                                       double t1, double t2, double t3, double t) {
+        double a1 = ((t1 - t) * p0 + t * p1) / t1;
+        double a2 = ((t2 - t) * p1 + (t - t1) * p2) / (t2 - t1);
+        double a3 = ((t3 - t) * p2 + (t - t2) * p3) / (t3 - t2);
+        double b1 = ((t2 - t) * a1 + t * a2) / t2;
+        double b2 = ((t3 - t) * a2 + (t - t1) * a3) / (t3 - t1);
+        return ((t2 - t) * b1 + (t - t1) * b2) / (t2 - t1);
+    }
+
+    // Returns {x, y} of points 'spacing' apart along the polyline, with both
+    // ends.
+    private static float[][] resample(float[] x, float[] y, int n, double spacing) {
+        FloatListDTP rx = new FloatListDTP(), ry = new FloatListDTP();
+        double next = spacing, pos = 0;
+        int i;
+
+        rx.add(x[0]);
+        ry.add(y[0]);
+        for (i = 1; i < n; i++) {
+            double len = Math.hypot(x[i] - x[i - 1], y[i] - y[i - 1]);
+            while (pos + len >= next) {
+                double t = (next - pos) / len;
+                rx.add((float) (x[i - 1] + t * (x[i] - x[i - 1])));
+                ry.add((float) (y[i - 1] + t * (y[i] - y[i - 1])));
+                next += spacing;
+            }
+            pos += len;
+        }
+        if (next - spacing < pos) {
+            rx.add(x[n - 1]);
+            ry.add(y[n - 1]);
+        }
+        return new float[][] {rx.toArray(), ry.toArray()};
+    }
+
+    // Returns a copy without repeated nodes.
+    private static float[][] dedupe(float[] x, float[] y, int n) {
+        float[] xs = new float[n], ys = new float[n];
+        int m = 0, i;
+
+        for (i = 0; i < n; i++) {
+            if (m == 0 || x[i] != xs[m - 1] || y[i] != ys[m - 1]) {
+                xs[m] = x[i];
+                ys[m] = y[i];
+                m++;
+            }
+        }
+        return new float[][] {Arrays.copyOf(xs, m), Arrays.copyOf(ys, m)};
+    }
+
+    private static float[][] copy(float[] x, float[] y, int n) {
+        return new float[][] {Arrays.copyOf(x, n), Arrays.copyOf(y, n)};
+    }
+
+    // Returns the Hausdorff distance between two paths, measured at the
+    // nodes: the largest distance from a node of either to the other path.
+    // With densely traced nodes, that is within a fraction of a node spacing
+    // of the distance over the whole paths.
+    static double maxError(float[] x0, float[] y0, int n0, float[] x1, float[] y1, int n1) {
+        return Math.max(maxDistance(x0, y0, n0, x1, y1, n1), maxDistance(x1, y1, n1, x0, y0, n0));
+    }
+
+    private static double maxDistance(float[] x, float[] y, int n, float[] px, float[] py, int pn) {
+        double[] r = new double[3];
+        double max = 0;
+        int i;
+
+        if (pn < 2) {
+            for (i = 0; i < n; i++) {
+                max = Math.max(max, Math.hypot(x[i] - px[0], y[i] - py[0]));
+            }
+            return max;
+        }
+        DistanceEngineDTP engine = new DistanceEngineDTP(px, py, pn);
+        for (i = 0; i < n; i++) {
+            engine.nearest(x[i], y[i], r);
+            max = Math.max(max, r[0]);
+        }
+        return max;
+    }
+
+} // end of PathFilterDTP
@@ -0,0 +1,346 @@
+/*
+    file   : PointPatternDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Point pattern analysis for the DistToPath ImageJ plugin: nearest
+    neighbour distances, Ripley's K and L functions and the pair correlation
+    function of the points (or random points) of a profile, to tell whether
+    particles cluster, whatever their distance to the path.
+
+    The window of the pattern is the sampling frame, or else the image,
+    without the holes; points outside it are left out. The points are sorted
+    into a uniform grid of cells (counting sort, so that the points of a cell
+    lie together in memory), so that neighbours are only looked for in
+    nearby cells. Both nearest neighbours and pair distances are found in
+    parallel over the points.
+
+    K is estimated with border correction (minus sampling): K(r) only counts
+    the neighbours of points at least r from the edge of the window, image
+    bounds and holes included, so that no neighbours are missed outside it.
+    L(r) = sqrt(K(r) / pi), which is r for complete spatial randomness, and
+    the pair correlation g(r) is the derivative of K over the ring area, 1
+    for complete spatial randomness.
+
+    Coordinates are full resolution pixels; results are converted to nm.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.util.Arrays;
+import java.util.List;
+
+
+class PointPatternDTP {
+    static final int nchunks = 64;
+    final int n;                    // points inside the window
+    final int excluded;             // points outside the window
+    final double area;              // of the window, pixels^2
+    private final double[] x, y;    // in cell order
+    private final double[] border;  // distance to the edge of the window
+    private final int[] cellStart;
+    private final double cell, gx0, gy0;
+    private final int ncx, ncy;
+
+
+    static class Result {
+        int n, excluded;
+        double area;                // um^2
+        double intensity;           // points per um^2
+        double[] nnd;               // nearest neighbour distance of each point, nm
+        double meanNnd;             // nm
+        double clarkEvans;          // mean nnd over its expectation under randomness
+        double[] r;                 // upper bin limits, nm
+        double[] g;                 // G: fraction of nnd up to r
+        double[] k, l;              // nm^2, nm
+        double[] pcf;               // pair correlation over each bin
+        int[] used;                 // points far enough from the edge for K(r)
+    }
+
+
+    // Makes the pattern of the first 'n' points of x, y in the window of
+    // 'frame' (or, if null, the width x height image) without 'holes'.
+    PointPatternDTP(float[] px, float[] py, int n, ComponentDTP frame, List<ComponentDTP> holes,
+                    double width, double height) throws Exception {
+        PolygonTestDTP frameTest = frame == null ? null : ProfileDataDTP.polygonTest(frame);
+        PolygonTestDTP[] holeTests = new PolygonTestDTP[holes.size()];
+        double[] ax = new double[n], ay = new double[n];
+        int m = 0, i;
+
+        for (i = 0; i < holeTests.length; i++) {
+            holeTests[i] = ProfileDataDTP.polygonTest(holes.get(i));
+        }
+        // Points in the window
+        points:
+        for (i = 0; i < n; i++) {
+            if (frameTest != null ? !frameTest.contains(px[i], py[i]) :
+                    px[i] < 0 || py[i] < 0 || px[i] > width || py[i] > height) {
+                continue;
+            }
+            for (PolygonTestDTP h : holeTests) {
+                if (h.contains(px[i], py[i])) {
+                    continue points;
+                }
+            }
+            ax[m] = px[i];
+            ay[m] = py[i];
+            m++;
+        }
+        this.n = m;
+        this.excluded = n - m;
+        double a = frame != null ? polygonArea(frame) : width * height;
+        for (ComponentDTP h : holes) {
+            a -= polygonArea(h);
+        }
+        this.area = a;
+        // Grid of about two points per cell, at most 4n cells
+        double minx = Double.MAX_VALUE, miny = Double.MAX_VALUE;
+        double maxx = -Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+        for (i = 0; i < m; i++) {
+            minx = Math.min(minx, ax[i]);
+            maxx = Math.max(maxx, ax[i]);
+            miny = Math.min(miny, ay[i]);
+            maxy = Math.max(maxy, ay[i]);
+        }
+        if (m == 0) {
+            minx = miny = maxx = maxy = 0;
+        }
+        double c = Math.max(1e-3, Math.sqrt(2 * Math.max(area, 1) / Math.max(m, 1)));
+        while ((long) ((maxx - minx) / c + 1) * (long) ((maxy - miny) / c + 1) > 4L * m + 16) {
+            c *= 1.5;
+        }
+        this.cell = c;
+        this.gx0 = minx;
+        this.gy0 = miny;
+        this.ncx = (int) ((maxx - minx) / c) + 1;
+        this.ncy = (int) ((maxy - miny) / c) + 1;
+        this.cellStart = new int[ncx * ncy + 1];
+        int[] cellOf = new int[m];
+        for (i = 0; i < m; i++) {
+            cellOf[i] = cellY(ay[i]) * ncx + cellX(ax[i]);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (i = 0; i < ncx * ncy; i++) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        int[] fill = Arrays.copyOf(cellStart, ncx * ncy);
+        this.x = new double[m];
+        this.y = new double[m];
+        for (i = 0; i < m; i++) {
+            int k = fill[cellOf[i]]++;
+            x[k] = ax[i];
+            y[k] = ay[i];
+        }
+        this.border = borderDistances(frame, holes, width, height);
+    }
+
+    private int cellX(double v) {
+        return Math.max(0, Math.min(ncx - 1, (int) ((v - gx0) / cell)));
+    }
+
+    private int cellY(double v) {
+        return Math.max(0, Math.min(ncy - 1, (int) ((v - gy0) / cell)));
+    }
+
+    static double polygonArea(ComponentDTP c) {
+        double a = 0;
+
+        for (int i = 0; i < c.n; i++) {
+            int j = (i + 1) % c.n;
+            a += (double) c.x[i] * c.y[j] - (double) c.x[j] * c.y[i];
+        }
+        return Math.abs(a) / 2;
+    }
+
+    // Distance of each point to the nearest edge of the window or a hole.
+    private double[] borderDistances(final ComponentDTP frame, final List<ComponentDTP> holes,
+                                     final double width, final double height) throws Exception {
+        final double[] b = new double[n];
+        final int nc = Math.max(1, Math.min(nchunks, n));
+
+        ParallelDTP.run(nc, new ParallelDTP.ChunkTask() {
+            public void run(int chunk) {
+                for (int i = chunk * n / nc; i < (chunk + 1) * n / nc; i++) {
+                    double d = frame != null ? edgeDistance(frame, x[i], y[i]) :
+                            Math.min(Math.min(x[i], width - x[i]), Math.min(y[i], height - y[i]));
+                    for (ComponentDTP h : holes) {
+                        d = Math.min(d, edgeDistance(h, x[i], y[i]));
+                    }
+                    b[i] = d;
+                }
+            }
+        });
+        return b;
+    }
+
+    private static double edgeDistance(ComponentDTP c, double px, double py) {
+        double d = Double.MAX_VALUE;
+
+        for (int i = 0; i < c.n; i++) {
+            int j = (i + 1) % c.n;
+            d = Math.min(d, ComponentIndexDTP.segmentDistance(px, py, c.x[i], c.y[i], c.x[j], c.y[j]));
+        }
+        return d;
+    }
+
+
+    // Returns the nearest neighbour distance of each point (in cell order),
+    // in pixels; NaN if there is no other point.
+    double[] nearestNeighbours() throws Exception {
+        final double[] nnd = new double[n];
+        final int nc = Math.max(1, Math.min(nchunks, n));
+
+        ParallelDTP.run(nc, new ParallelDTP.ChunkTask() {
+            public void run(int chunk) {
+                for (int i = chunk * n / nc; i < (chunk + 1) * n / nc; i++) {
+                    nnd[i] = nearest(i);
+                }
+            }
+        });
+        return nnd;
+    }
+
+    // Searches rings of cells around point i until no nearer point can be
+    // found farther out.
+    private double nearest(int i) {
+        int cx = cellX(x[i]), cy = cellY(y[i]), ring, j, k;
+        double best = Double.MAX_VALUE;
+
+        for (ring = 0; ring < Math.max(ncx, ncy); ring++) {
+            for (j = cy - ring; j <= cy + ring; j++) {
+                if (j < 0 || j >= ncy) {
+                    continue;
+                }
+                boolean edge = j == cy - ring || j == cy + ring;
+                for (k = cx - ring; k <= cx + ring; k += edge ? 1 : 2 * ring) {
+                    if (k >= 0 && k < ncx) {
+                        int c = j * ncx + k;
+                        for (int p = cellStart[c]; p < cellStart[c + 1]; p++) {
+                            if (p != i) {
+                                double dx = x[p] - x[i], dy = y[p] - y[i];
+                                best = Math.min(best, dx * dx + dy * dy);
+                            }
+                        }
+                    }
+                    if (ring == 0) {
+                        break;
+                    }
+                }
+            }
+            // Points in the next ring are at least 'ring' cells away
+            if (best <= ring * cell * ring * cell) {
+                break;
+            }
+        }
+        return best == Double.MAX_VALUE ? Double.NaN : Math.sqrt(best);
+    }
+
+    // Returns {sum, used} for border-corrected K: for each bin k of width
+    // 'dr' pixels, the number of pairs (i, j) at most (k + 1) * dr apart
+    // with i at least that far from the edge, and the number of such i.
+    long[][] pairCounts(final double dr, final int nbins) throws Exception {
+        final int nc = Math.max(1, Math.min(nchunks, n));
+        final long[][] sums = new long[nc][nbins], used = new long[nc][nbins];
+        final double rmax = dr * nbins;
+        final int rings = (int) Math.ceil(rmax / cell);
+
+        ParallelDTP.run(nc, new ParallelDTP.ChunkTask() {
+            public void run(int chunk) {
+                int[] hist = new int[nbins];
+                long[] s = sums[chunk], u = used[chunk];
+                int i, j, k, b;
+
+                for (i = chunk * n / nc; i < (chunk + 1) * n / nc; i++) {
+                    if (border[i] < dr) {
+                        continue;
+                    }
+                    Arrays.fill(hist, 0);
+                    int cx = cellX(x[i]), cy = cellY(y[i]);
+                    for (j = Math.max(0, cy - rings); j <= Math.min(ncy - 1, cy + rings); j++) {
+                        for (k = Math.max(0, cx - rings); k <= Math.min(ncx - 1, cx + rings); k++) {
+                            int c = j * ncx + k;
+                            for (int p = cellStart[c]; p < cellStart[c + 1]; p++) {
+                                double dx = x[p] - x[i], dy = y[p] - y[i];
+                                double d = Math.sqrt(dx * dx + dy * dy);
+                                if (p != i && d <= rmax) {
+                                    hist[Math.min(nbins - 1, Math.max(0, (int) Math.ceil(d / dr) - 1))]++;
+                                }
+                            }
+                        }
+                    }
+                    long cum = 0;
+                    for (b = 0; b < nbins && border[i] >= (b + 1) * dr; b++) {
+                        cum += hist[b];
+                        s[b] += cum;
+                        u[b]++;
+                    }
+                }
+            }
+        });
+        long[][] total = new long[2][nbins];
+        for (int c = 0; c < nc; c++) {
+            for (int b = 0; b < nbins; b++) {
+                total[0][b] += sums[c][b];
+                total[1][b] += used[c][b];
+            }
+        }
+        return total;
+    }
+
+
+    // Analyses the pattern up to 'maxDistance' nm in bins of 'binWidth' nm,
+    // with 'nmPerPixel' the full resolution pixel width.
+    Result analyze(double binWidth, double maxDistance, double nmPerPixel) throws Exception {
+        Result res = new Result();
+        int nbins = Math.max(1, (int) Math.ceil(maxDistance / binWidth));
+        double dr = binWidth / nmPerPixel;
+        double lambda = n / area;       // per pixel^2
+        int i, b;
+
+        res.n = n;
+        res.excluded = excluded;
+        res.area = area * nmPerPixel * nmPerPixel / 1e6;
+        res.intensity = n / res.area;
+        res.nnd = nearestNeighbours();
+        double sum = 0;
+        int nvalid = 0;
+        for (i = 0; i < n; i++) {
+            if (!Double.isNaN(res.nnd[i])) {
+                res.nnd[i] *= nmPerPixel;
+                sum += res.nnd[i];
+                nvalid++;
+            }
+        }
+        res.meanNnd = nvalid > 0 ? sum / nvalid : Double.NaN;
+        res.clarkEvans = res.meanNnd / (0.5 / Math.sqrt(lambda) * nmPerPixel);
+        double[] sorted = res.nnd.clone();
+        Arrays.sort(sorted);                // NaNs last
+        res.r = new double[nbins];
+        res.g = new double[nbins];
+        res.k = new double[nbins];
+        res.l = new double[nbins];
+        res.pcf = new double[nbins];
+        res.used = new int[nbins];
+        long[][] pairs = pairCounts(dr, nbins);
+        int at = 0;
+        for (b = 0; b < nbins; b++) {
+            res.r[b] = (b + 1) * binWidth;
+            while (at < nvalid && sorted[at] <= res.r[b]) {
+                at++;
+            }
+            res.g[b] = nvalid > 0 ? (double) at / nvalid : Double.NaN;
+            res.used[b] = (int) pairs[1][b];
+            res.k[b] = pairs[1][b] > 0 && lambda > 0 ?
+                    pairs[0][b] / (lambda * pairs[1][b]) * nmPerPixel * nmPerPixel : Double.NaN;
+            res.l[b] = Math.sqrt(res.k[b] / Math.PI);
+            double kprev = b == 0 ? 0 : res.k[b - 1];
+            double rprev = b * binWidth;
+            res.pcf[b] = (res.k[b] - kprev) / (Math.PI * (res.r[b] * res.r[b] - rprev * rprev));
+        }
+        return res;
+    }
+
+} // end of PointPatternDTP
@@ -0,0 +1,400 @@
+/*
+    file   : ProfileRecordDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    A saved profile of the DistToPath ImageJ plugin: the header fields and
+    components of a .dtp file, without an image. Reads and writes the .dtp
+    text format, and a binary form of the same fields (without the derived
+    distances) for clients of the analysis server.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import ij.IJ;
+
+
+class ProfileRecordDTP {
+    static final int binaryMagic = 0x44544232;      // "DTB2"
+    static final int binaryMagicV1 = 0x44544231;    // "DTB1": without slice and channel
+    String image = "";
+    String id = "";
+    String comment = "";
+    double pixelwidth = 1;
+    String unit = "pixel";
+    long seed = 0;           // random seed, 0 if unknown
+    String pathNote = "";    // how the path was processed, if it was
+    int slice, channel;      // stack index and channel on a stack; 0 if not on a stack
+    // Lateral distances (pixels) of the points and random points as read from
+    // the distance blocks of a file; null if not read
+    float[] pointDistances, randomPointDistances;
+    final List<ComponentDTP> components = new ArrayList<ComponentDTP>();
+
+
+    // Returns the first component of type 't', or null.
+    ComponentDTP get(ComponentTypeDTP t) {
+        for (ComponentDTP c : components) {
+            if (c.type == t) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    List<ComponentDTP> getAll(ComponentTypeDTP t) {
+        List<ComponentDTP> l = new ArrayList<ComponentDTP>();
+
+        for (ComponentDTP c : components) {
+            if (c.type == t) {
+                l.add(c);
+            }
+        }
+        return l;
+    }
+
+    // Returns a distance engine for the path, with the polarity set if
+    // defined, or null if the path has not been defined.
+    DistanceEngineDTP getDistanceEngine() {
+        return DistanceEngineDTP.create(get(ComponentTypeDTP.PATH),
+                get(ComponentTypeDTP.POSITIVE_POLARITY));
+    }
+
+
+    // Formats a coordinate; whole pixels are written without decimals, as in
+    // files from earlier versions.
+    static String coord(float v) {
+        return v == Math.rint(v) ? IJ.d2s(v, 0) : IJ.d2s(v, 2);
+    }
+
+    void write(String path) throws IOException {
+        PrintWriter outf =
+                new PrintWriter(
+                        new BufferedWriter(
+                                new FileWriter(path)));
+        try {
+            write(outf);
+        } finally {
+            outf.close();
+        }
+        if (outf.checkError()) {
+            throw new IOException("Could not write " + path);
+        }
+    }
+
+    void write(PrintWriter outf) {
+        ComponentDTP comp;
+
+        String versionInfo = String.format("# %s version %s (%s %s, %s)",
+                VersionDTP.title,
+                VersionDTP.version,
+                VersionDTP.month,
+                VersionDTP.day,
+                VersionDTP.year);
+        outf.println(versionInfo);
+        outf.println("IMAGE " + this.image);
+        outf.println("PROFILE_ID " + this.id);
+        if (!this.comment.equals("")) {
+            outf.println("COMMENT " + this.comment);
+        }
+        outf.println("PIXELWIDTH " + IJ.d2s(this.pixelwidth) + " " + this.unit);
+        if (this.slice > 0) {
+            outf.println("SLICE " + this.slice);
+        }
+        if (this.channel > 0) {
+            outf.println("CHANNEL " + this.channel);
+        }
+        if (!this.pathNote.equals("")) {
+            outf.println("# Path " + this.pathNote);
+        }
+        if (get(ComponentTypeDTP.RANDOM_POINTS) != null && this.seed != 0) {
+            outf.println("RANDOM_SEED " + this.seed);
+        }
+        if ((comp = get(ComponentTypeDTP.POSITIVE_POLARITY)) != null) {
+            outf.println("POSLOC " + coord(comp.x[0]) + ", " + coord(comp.y[0]));
+        }
+        if ((comp = get(ComponentTypeDTP.PATH)) != null) {
+            writeBlock(outf, comp);
+        }
+        for (ComponentDTP hole : getAll(ComponentTypeDTP.HOLE)) {
+            writeBlock(outf, hole);
+        }
+        if ((comp = get(ComponentTypeDTP.FRAME)) != null) {
+            writeBlock(outf, comp);
+        }
+        if ((comp = get(ComponentTypeDTP.POINTS)) != null) {
+            writeBlock(outf, comp);
+        }
+        if ((comp = get(ComponentTypeDTP.RANDOM_POINTS)) != null) {
+            writeBlock(outf, comp);
+        }
+        DistanceEngineDTP engine = getDistanceEngine();
+        if (engine != null) {
+            writeDistances(outf, engine, get(ComponentTypeDTP.POINTS), "POINT_DISTANCES");
+            writeDistances(outf, engine, get(ComponentTypeDTP.RANDOM_POINTS),
+                    "RANDOM_POINT_DISTANCES");
+        }
+    }
+
+    private static void writeBlock(PrintWriter outf, ComponentDTP comp) {
+        int i;
+
+        outf.println(comp.type.blockName);
+        for (i = 0; i < comp.n; i++) {
+            outf.println("  " + coord(comp.x[i]) + ", " + coord(comp.y[i]));
+        }
+        outf.println("END");
+    }
+
+    // Writes a block with one line per point of 'comp': the lateral distance
+    // to the path (positive on the side of the positive polarity point), the
+    // position of the point projected on the path (arc length from the first
+    // path node) and the index of the nearest path segment. Distances and
+    // positions are in pixels, like the coordinates.
+    private static void writeDistances(PrintWriter outf, DistanceEngineDTP engine,
+                                       ComponentDTP comp, String blockName) {
+        int i;
+
+        if (comp == null) {
+            return;
+        }
+        double[][] d = engine.computeAll(comp.x, comp.y, comp.n);
+        outf.println(blockName);
+        for (i = 0; i < comp.n; i++) {
+            outf.println("  " + IJ.d2s(d[0][i], 2) + ", " + IJ.d2s(d[1][i], 2) + ", " +
+                    IJ.d2s(d[2][i], 0));
+        }
+        outf.println("END");
+    }
+
+
+    static ProfileRecordDTP read(File f) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(f));
+
+        try {
+            return read(in, f.getName());
+        } finally {
+            in.close();
+        }
+    }
+
+    // Parses a profile in .dtp format, a line at a time. Of the derived
+    // distance blocks, only the lateral distances are kept; unknown blocks
+    // are skipped. 'source' is only used in error messages.
+    static ProfileRecordDTP read(BufferedReader in, String source) throws IOException {
+        ProfileRecordDTP r = new ProfileRecordDTP();
+        String line;
+        int lineno = 0;
+
+        while ((line = in.readLine()) != null) {
+            lineno++;
+            line = line.trim();
+            if (line.startsWith("# Path ")) {
+                r.pathNote = line.substring(7);
+            }
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int sp = line.indexOf(' ');
+            String key = sp == -1 ? line : line.substring(0, sp);
+            String value = sp == -1 ? "" : line.substring(sp + 1).trim();
+            try {
+                if (key.equals("IMAGE")) {
+                    r.image = value;
+                } else if (key.equals("PROFILE_ID")) {
+                    r.id = value;
+                } else if (key.equals("COMMENT")) {
+                    r.comment = value;
+                } else if (key.equals("PIXELWIDTH")) {
+                    String[] parts = value.split("\\s+", 2);
+                    r.pixelwidth = parseFinite(parts[0]);
+                    r.unit = parts.length > 1 ? parts[1] : "";
+                } else if (key.equals("SLICE")) {
+                    r.slice = Integer.parseInt(value);
+                } else if (key.equals("CHANNEL")) {
+                    r.channel = Integer.parseInt(value);
+                } else if (key.equals("RANDOM_SEED")) {
+                    r.seed = Long.parseLong(value);
+                } else if (key.equals("POSLOC")) {
+                    float[] xy = parseCoords(value);
+                    r.components.add(new ComponentDTP(ComponentTypeDTP.POSITIVE_POLARITY,
+                            new float[] {xy[0]}, new float[] {xy[1]}, 1));
+                } else if (sp == -1) {
+                    ComponentTypeDTP t = blockType(key);
+                    boolean distances = key.equals("POINT_DISTANCES") || key.equals("RANDOM_POINT_DISTANCES");
+                    FloatListDTP xs = new FloatListDTP(), ys = new FloatListDTP();
+                    while ((line = in.readLine()) != null) {
+                        lineno++;
+                        line = line.trim();
+                        if (line.equals("END")) {
+                            break;
+                        }
+                        if (t != null && line.length() > 0) {
+                            float[] xy = parseCoords(line);
+                            xs.add(xy[0]);
+                            ys.add(xy[1]);
+                        } else if (distances && line.length() > 0) {
+                            int comma = line.indexOf(',');
+                            xs.add((float) parseFinite(comma == -1 ? line : line.substring(0, comma).trim()));
+                        }
+                    }
+                    if (t != null) {
+                        r.components.add(new ComponentDTP(t, xs.toArray(), ys.toArray(), xs.size()));
+                    } else if (key.equals("POINT_DISTANCES")) {
+                        r.pointDistances = xs.toArray();
+                    } else if (distances) {
+                        r.randomPointDistances = xs.toArray();
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException(source + ", line " + lineno + ": " + e.getMessage());
+            }
+        }
+        return r;
+    }
+
+    // Writes the profile in binary form: the magic number, the header fields
+    // (with slice and channel) and, for each component, its type ordinal, number of points and
+    // coordinates, in DataOutput order (big-endian).
+    void writeBinary(DataOutputStream out) throws IOException {
+        out.writeInt(binaryMagic);
+        out.writeUTF(this.image);
+        out.writeUTF(this.id);
+        out.writeUTF(this.comment);
+        out.writeDouble(this.pixelwidth);
+        out.writeUTF(this.unit);
+        out.writeLong(this.seed);
+        out.writeUTF(this.pathNote);
+        out.writeInt(this.slice);
+        out.writeInt(this.channel);
+        out.writeInt(this.components.size());
+        for (ComponentDTP c : this.components) {
+            out.writeByte(c.type.ordinal());
+            out.writeInt(c.n);
+            for (int i = 0; i < c.n; i++) {
+                out.writeFloat(c.x[i]);
+                out.writeFloat(c.y[i]);
+            }
+        }
+        out.flush();
+    }
+
+    // Reads a profile in binary form from 'data'. Counts are checked against
+    // the bytes left before anything is allocated for them.
+    static ProfileRecordDTP readBinary(byte[] data) throws IOException {
+        ProfileRecordDTP r = new ProfileRecordDTP();
+        ComponentTypeDTP[] types = ComponentTypeDTP.values();
+        // available() is exact on an array: the bytes left
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        int version = in.readInt();
+        if (version != binaryMagic && version != binaryMagicV1) {
+            throw new IOException("Not a binary profile.");
+        }
+        r.image = in.readUTF();
+        r.id = in.readUTF();
+        r.comment = in.readUTF();
+        r.pixelwidth = in.readDouble();
+        if (!isFinite(r.pixelwidth)) {
+            throw new IOException("Bad pixel width in binary profile: " + r.pixelwidth);
+        }
+        r.unit = in.readUTF();
+        r.seed = in.readLong();
+        r.pathNote = in.readUTF();
+        if (version == binaryMagic) {
+            r.slice = in.readInt();
+            r.channel = in.readInt();
+        }
+        int ncomp = in.readInt();
+        // A component takes at least its type and number of points
+        if (ncomp < 0 || 5L * ncomp > in.available()) {
+            throw new IOException("Bad number of components in binary profile: " + ncomp);
+        }
+        for (int k = 0; k < ncomp; k++) {
+            int t = in.readUnsignedByte();
+            int n = in.readInt();
+            if (t >= types.length || n < 0 || 8L * n > in.available()) {
+                throw new IOException("Bad component " + k + " of binary profile.");
+            }
+            float[] x = new float[n], y = new float[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = in.readFloat();
+                y[i] = in.readFloat();
+                if (!isFinite(x[i]) || !isFinite(y[i])) {
+                    throw new IOException("Bad point " + i + " of component " + k + " of binary profile.");
+                }
+            }
+            r.components.add(new ComponentDTP(types[t], x, y, n));
+        }
+        return r;
+    }
+
+    // Returns the component type for a coordinate block, or null for blocks
+    // that are skipped.
+    static ComponentTypeDTP blockType(String blockName) {
+        for (ComponentTypeDTP t : ComponentTypeDTP.values()) {
+            if (t.blockName.equals(blockName) && t != ComponentTypeDTP.POSITIVE_POLARITY) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private static float[] parseCoords(String s) {
+        int comma = s.indexOf(',');
+
+        if (comma == -1) {
+            throw new NumberFormatException("Expected 'x, y': " + s);
+        }
+        return new float[] {(float) parseFinite(s.substring(0, comma).trim()),
+                (float) parseFinite(s.substring(comma + 1).trim())};
+    }
+
+    // Parses a number that must be finite as a float: NaN and infinities
+    // are not positions or scales, and would come out of the distance
+    // engine as nonsense rather than as an error.
+    private static double parseFinite(String s) {
+        double d = Double.parseDouble(s);
+
+        if (!isFinite(d) || !isFinite((float) d)) {
+            throw new NumberFormatException("Not a finite number: " + s);
+        }
+        return d;
+    }
+
+    private static boolean isFinite(double d) {
+        return !Double.isNaN(d) && !Double.isInfinite(d);
+    }
+
+} // end of ProfileRecordDTP
+
+
+// Growable float array.
+class FloatListDTP {
+    private float[] a = new float[16];
+    private int n = 0;
+
+    void add(float v) {
+        if (n == a.length) {
+            float[] b = new float[n * 2];
+            System.arraycopy(a, 0, b, 0, n);
+            a = b;
+        }
+        a[n++] = v;
+    }
+
+    int size() {
+        return n;
+    }
+
+    float[] toArray() {
+        float[] b = new float[n];
+        System.arraycopy(a, 0, b, 0, n);
+        return b;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+    file   : ProfileSetDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    The open profiles of the DistToPath ImageJ plugin.
+
+    Any number of profiles may be open at once, on one image or several. Each
+    profile belongs to the image it was started on, and on a stack to the
+    slice it was started on; the commands of the plugin window work on the
+    current profile, which is the most recently used profile of the current
+    image and slice. A new profile is started when the user
+    asks for one, or when work starts on an image without any. Settings and
+    profile numbering are shared: a profile takes them over from the previous
+    current profile when it becomes current.
+
+    The profiles of each image slice share a spatial index of their
+    components, so that the component under the mouse can be found quickly. The set may be
+    used from the event thread and from background workers, so all access
+    is synchronized.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.util.*;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+
+
+class ProfileSetDTP {
+    // Most recently used last; the last is the current profile
+    private final List<ProfileDataDTP> profiles = new ArrayList<ProfileDataDTP>();
+    // By image ID and slice (see key)
+    private final Map<Long, ComponentIndexDTP> indexes = new HashMap<Long, ComponentIndexDTP>();
+
+
+    ProfileSetDTP(ProfileDataDTP first) {
+        profiles.add(first);
+    }
+
+    synchronized ProfileDataDTP getCurrent() {
+        return profiles.get(profiles.size() - 1);
+    }
+
+    synchronized int size() {
+        return profiles.size();
+    }
+
+    // Returns the profiles of 'imp', on all its slices, in the order they were
+    // last used.
+    synchronized List<ProfileDataDTP> getProfiles(ImagePlus imp) {
+        List<ProfileDataDTP> l = new ArrayList<ProfileDataDTP>();
+
+        for (ProfileDataDTP p : profiles) {
+            if (imp != null && p.imgID == imp.getID()) {
+                l.add(p);
+            }
+        }
+        return l;
+    }
+
+    // Returns the most recently used profile on slice 'slice' of 'imp' (see
+    // ProfileDataDTP.sliceOf), or null.
+    synchronized ProfileDataDTP getProfile(ImagePlus imp, int slice) {
+        for (int i = profiles.size() - 1; i >= 0; i--) {
+            if (isOn(profiles.get(i), imp, slice)) {
+                return profiles.get(i);
+            }
+        }
+        return null;
+    }
+
+    // Returns the profile to work on in 'imp' and makes it current: the
+    // current profile if it is on the current slice of imp, else the most
+    // recently used profile of that slice, else the current profile if it is
+    // empty or not yet on an image, else a new profile.
+    synchronized ProfileDataDTP select(ImagePlus imp) {
+        ProfileDataDTP current = getCurrent();
+        int slice = ProfileDataDTP.sliceOf(imp);
+
+        if (imp == null || isOn(current, imp, slice)) {
+            return current;
+        }
+        ProfileDataDTP p = getProfile(imp, slice);
+        if (p != null) {
+            return makeCurrent(p);
+        }
+        if (!current.dirty || current.imgID == 0) {
+            bind(current, imp, slice);
+            return current;
+        }
+        return newProfile(imp);
+    }
+
+    // Starts a new, empty profile on the current slice of 'imp' and makes it
+    // current.
+    synchronized ProfileDataDTP newProfile(ImagePlus imp) {
+        ProfileDataDTP p = new ProfileDataDTP();
+
+        p.copySettings(getCurrent());
+        profiles.add(p);
+        bind(p, imp, ProfileDataDTP.sliceOf(imp));
+        return p;
+    }
+
+    // Starts a new, empty profile on slice 'slice' of 'imp', as the least
+    // recently used profile, so that the current profile stays current.
+    synchronized ProfileDataDTP newProfile(ImagePlus imp, int slice) {
+        ProfileDataDTP p = new ProfileDataDTP();
+
+        p.copySettings(getCurrent());
+        profiles.add(0, p);
+        bind(p, imp, slice);
+        return p;
+    }
+
+    synchronized ProfileDataDTP makeCurrent(ProfileDataDTP p) {
+        ProfileDataDTP current = getCurrent();
+
+        if (p != current) {
+            p.copySettings(current);
+            profiles.remove(p);
+            profiles.add(p);
+        }
+        return p;
+    }
+
+    // Makes the least recently used profile of the current slice of 'imp'
+    // current, so that repeated calls go through all of them; returns the
+    // current profile.
+    synchronized ProfileDataDTP next(ImagePlus imp) {
+        int slice = ProfileDataDTP.sliceOf(imp);
+
+        for (ProfileDataDTP p : profiles) {
+            if (isOn(p, imp, slice)) {
+                return makeCurrent(p);
+            }
+        }
+        return getCurrent();
+    }
+
+    // Closes a profile that has been saved or cleared. The last profile is
+    // kept open, cleared, so that there is always a current profile.
+    synchronized void close(ProfileDataDTP p) {
+        p.clear();
+        if (profiles.size() == 1) {
+            return;
+        }
+        ProfileDataDTP current = getCurrent();
+        profiles.remove(p);
+        unbind(p);
+        if (p == current) {
+            getCurrent().copySettings(p);
+        }
+    }
+
+    // Returns the profile that 'roi' is the view of a component of, or null.
+    synchronized ProfileDataDTP getOwner(Roi roi) {
+        for (ProfileDataDTP p : profiles) {
+            if (p.getComponent(roi) != null) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    // Returns the component of any profile of the current slice of 'imp'
+    // nearest to (x, y), in full resolution pixels, within 'tolerance', or
+    // null.
+    synchronized ComponentIndexDTP.Hit find(ImagePlus imp, double x, double y, double tolerance) {
+        ComponentIndexDTP index = indexes.get(key(imp.getID(), ProfileDataDTP.sliceOf(imp)));
+
+        return index == null ? null : index.find(x, y, tolerance);
+    }
+
+    // Returns an overlay with the components of all profiles of 'imp', over
+    // any heat maps shown. On a stack, each is shown on its slice only.
+    synchronized Overlay getOverlay(ImagePlus imp) {
+        Overlay overlay = new Overlay();
+
+        for (ProfileDataDTP p : getProfiles(imp)) {
+            if (p.heatMap != null) {
+                p.heatMap.setPosition(p.slice);
+                overlay.add(p.heatMap);
+            }
+        }
+        for (ProfileDataDTP p : getProfiles(imp)) {
+            for (Roi roi : p.overlay.toArray()) {
+                roi.setPosition(p.slice);
+                overlay.add(roi);
+            }
+        }
+        return overlay;
+    }
+
+    private static boolean isOn(ProfileDataDTP p, ImagePlus imp, int slice) {
+        return imp != null && p.imgID == imp.getID() && p.slice == slice;
+    }
+
+    private static long key(int imgID, int slice) {
+        return (long) imgID << 32 | slice;
+    }
+
+    private void bind(ProfileDataDTP p, ImagePlus imp, int slice) {
+        unbind(p);
+        p.bind(imp, slice, index(key(imp.getID(), slice)));
+    }
+
+    private void unbind(ProfileDataDTP p) {
+        long k = key(p.imgID, p.slice);
+
+        p.bind(null, 0, null);
+        for (ProfileDataDTP q : profiles) {
+            if (key(q.imgID, q.slice) == k) {
+                return;
+            }
+        }
+        indexes.remove(k);
+    }
+
+    private ComponentIndexDTP index(long key) {
+        ComponentIndexDTP index = indexes.get(key);
+
+        if (index == null) {
+            index = new ComponentIndexDTP();
+            indexes.put(key, index);
+        }
+        return index;
+    }
+
+} // end of ProfileSetDTP
@@ -0,0 +1,183 @@
+/*
+    file   : ProfileStatsDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Live statistics of a profile for the info panel of the DistToPath ImageJ
+    plugin: path length, number of points, and mean and median lateral
+    distance of the points to the path.
+
+    The statistics are updated as components are added or removed, and only
+    the changed component is looked at: a new points component is measured
+    against the current path, and a new path remeasures the points. Distances
+    are kept unsigned, sorted, and split by the side of the path; defining or
+    deleting the positive polarity only decides which side is positive, and
+    the median is read from the two sorted sides without merging them.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.util.Arrays;
+
+
+class ProfileStatsDTP {
+    private static final double[] none = new double[0];
+    private DistanceEngineDTP engine;   // distances positive left of the path
+    private ComponentDTP points;
+    private double pathLength = 0;      // pixels
+    private int polarity = 0;           // 1: left is positive, -1: right, 0: not defined
+    private double[] left = none, right = none;   // sorted unsigned distances
+    private double sumLeft = 0, sumRight = 0;
+
+
+    // Updates the statistics after a component of type 't' has been added to
+    // or removed from 'profile'.
+    void changed(ComponentTypeDTP t, ProfileDataDTP profile) {
+        switch (t) {
+            case PATH:
+                ComponentDTP path = profile.get(ComponentTypeDTP.PATH);
+                engine = null;
+                pathLength = 0;
+                if (path != null && path.n >= 2) {
+                    engine = new DistanceEngineDTP(path.x, path.y, path.n);
+                    engine.polaritySign = 1;
+                    pathLength = engine.getLength();
+                }
+                measurePoints();
+                measurePolarity(profile.get(ComponentTypeDTP.POSITIVE_POLARITY));
+                break;
+            case POINTS:
+                points = profile.get(ComponentTypeDTP.POINTS);
+                measurePoints();
+                break;
+            case POSITIVE_POLARITY:
+                measurePolarity(profile.get(ComponentTypeDTP.POSITIVE_POLARITY));
+                break;
+            default:
+                // holes, frame and random points do not enter the statistics
+        }
+    }
+
+    void clear() {
+        engine = null;
+        points = null;
+        pathLength = 0;
+        polarity = 0;
+        left = right = none;
+        sumLeft = sumRight = 0;
+    }
+
+    private void measurePoints() {
+        int i, nl = 0, nr = 0;
+
+        left = right = none;
+        sumLeft = sumRight = 0;
+        if (engine == null || points == null) {
+            return;
+        }
+        double[] d = engine.computeAll(points.x, points.y, points.n)[0];
+        for (i = 0; i < d.length; i++) {
+            if (d[i] >= 0) nl++;
+            else nr++;
+        }
+        left = new double[nl];
+        right = new double[nr];
+        nl = nr = 0;
+        for (i = 0; i < d.length; i++) {
+            if (d[i] >= 0) {
+                left[nl++] = d[i];
+                sumLeft += d[i];
+            } else {
+                right[nr++] = -d[i];
+                sumRight -= d[i];
+            }
+        }
+        Arrays.sort(left);
+        Arrays.sort(right);
+    }
+
+    private void measurePolarity(ComponentDTP pospol) {
+        double[] r = new double[3];
+
+        polarity = 0;
+        if (engine != null && pospol != null) {
+            engine.nearest(pospol.x[0], pospol.y[0], r);
+            polarity = r[0] >= 0 ? 1 : -1;
+        }
+    }
+
+    // Path length in pixels, 0 if there is no path.
+    double getPathLength() {
+        return pathLength;
+    }
+
+    // Number of points measured: 0 unless both points and path are defined.
+    int getNumMeasured() {
+        return left.length + right.length;
+    }
+
+    // True if distances are signed, i.e. the positive polarity is defined.
+    boolean isSigned() {
+        return polarity != 0;
+    }
+
+    // Mean lateral distance in pixels, NaN if no points are measured.
+    double getMean() {
+        int n = getNumMeasured();
+
+        if (n == 0) {
+            return Double.NaN;
+        }
+        if (polarity == 0) {
+            return (sumLeft + sumRight) / n;
+        }
+        return polarity * (sumLeft - sumRight) / n;
+    }
+
+    // Median lateral distance in pixels, NaN if no points are measured.
+    double getMedian() {
+        int n = getNumMeasured();
+
+        if (n == 0) {
+            return Double.NaN;
+        }
+        if (n % 2 == 1) {
+            return get(n / 2);
+        }
+        return (get(n / 2 - 1) + get(n / 2)) / 2;
+    }
+
+    // Returns the k:th smallest distance (signed if polarity is defined).
+    private double get(int k) {
+        if (polarity == 0) {
+            return kth(left, right, k);
+        }
+        // The negative side, in reverse, comes before the positive side
+        double[] neg = polarity > 0 ? right : left;
+        double[] pos = polarity > 0 ? left : right;
+        return k < neg.length ? -neg[neg.length - 1 - k] : pos[k - neg.length];
+    }
+
+    // Returns the k:th smallest element of the union of two sorted arrays,
+    // by binary search over how many elements are taken from 'a'.
+    private static double kth(double[] a, double[] b, int k) {
+        int lo = Math.max(0, k + 1 - b.length), hi = Math.min(a.length, k + 1);
+
+        while (lo < hi) {
+            int i = (lo + hi) / 2;    // take i from a, k + 1 - i from b
+            if (a[i] < b[k - i]) {
+                lo = i + 1;
+            } else {
+                hi = i;
+            }
+        }
+        int i = lo, j = k + 1 - lo;
+        double va = i > 0 ? a[i - 1] : Double.NEGATIVE_INFINITY;
+        double vb = j > 0 ? b[j - 1] : Double.NEGATIVE_INFINITY;
+        return Math.max(va, vb);
+    }
+
+} // end of ProfileStatsDTP
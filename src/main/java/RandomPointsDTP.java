@@ -0,0 +1,184 @@
+/*
+    file   : RandomPointsDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Random point generator for the DistToPath ImageJ plugin.
+
+    Points are sampled uniformly inside a sampling frame, excluding holes.
+    The points are generated in fixed-size chunks in parallel; each chunk has
+    its own SplitMix64 stream derived from the seed and the chunk index, so a
+    given seed always gives the same points, whatever the number of threads.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+
+class RandomPointsDTP {
+    static final int chunkSize = 8192;
+    static final int maxTriesPerPoint = 10000;
+    final double minx, miny, width, height;
+    final PolygonTestDTP frame;
+    final PolygonTestDTP[] holes;
+
+
+    // Samples inside 'frame', or inside the rectangle (x, y, width, height) if
+    // frame is null. The rectangle should be the bounding box of the frame.
+    RandomPointsDTP(double x, double y, double width, double height,
+                    PolygonTestDTP frame, PolygonTestDTP[] holes) {
+        this.minx = x;
+        this.miny = y;
+        this.width = width;
+        this.height = height;
+        this.frame = frame;
+        this.holes = holes == null ? new PolygonTestDTP[0] : holes;
+    }
+
+    boolean accept(double x, double y) {
+        if (frame != null && !frame.contains(x, y)) {
+            return false;
+        }
+        for (PolygonTestDTP hole : holes) {
+            if (hole.contains(x, y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns {x, y} coordinate arrays of 'n' random points.
+    float[][] generate(int n, final long seed) throws Exception {
+        final float[] xs = new float[n];
+        final float[] ys = new float[n];
+        final int npoints = n;
+
+        ParallelDTP.run((n + chunkSize - 1) / chunkSize, new ParallelDTP.ChunkTask() {
+            public void run(int chunk) {
+                int from = chunk * chunkSize;
+                fill(xs, ys, from, Math.min(npoints, from + chunkSize), ParallelDTP.mix(seed, chunk));
+            }
+        });
+        return new float[][] {xs, ys};
+    }
+
+    // Places random points in xs[from..to - 1], ys[from..to - 1] on the
+    // calling thread, from the stream of 'streamSeed'.
+    void fill(float[] xs, float[] ys, int from, int to, long streamSeed) {
+        long maxTries = (long) maxTriesPerPoint * (to - from);
+        long k = 0;
+        int i = from;
+
+        while (i < to) {
+            if (k > maxTries) {
+                throw new IllegalStateException(
+                        "The sampling frame appears to be covered by holes.");
+            }
+            double x = minx + (ParallelDTP.mix(streamSeed, k++) >>> 11) * 0x1.0p-53 * width;
+            double y = miny + (ParallelDTP.mix(streamSeed, k++) >>> 11) * 0x1.0p-53 * height;
+            if (accept(x, y)) {
+                xs[i] = (float) x;
+                ys[i] = (float) y;
+                i++;
+            }
+        }
+    }
+
+    // Returns a new seed for when the user has not chosen one.
+    static long newSeed() {
+        long seed;
+
+        do {
+            seed = ParallelDTP.mix(System.nanoTime(), System.currentTimeMillis()) & 0x7fffffffffffffffL;
+        } while (seed == 0);
+        return seed;
+    }
+
+} // end of RandomPointsDTP
+
+
+// Point-in-polygon test (even-odd rule) with a precomputed edge table. The
+// edges are binned in horizontal bands, so a test only looks at the edges
+// crossing the band of the query point.
+class PolygonTestDTP {
+    final double minx, miny, maxx, maxy;
+    final double[] ex, ey0, ey1, slope;
+    final int nbands;
+    final double bandh;
+    final int[] bandStart, bandEdges;
+
+
+    PolygonTestDTP(float[] x, float[] y, int n) {
+        int i, j, b, nedges = 0;
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+        double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+
+        for (i = 0; i < n; i++) {
+            x0 = Math.min(x0, x[i]);
+            x1 = Math.max(x1, x[i]);
+            y0 = Math.min(y0, y[i]);
+            y1 = Math.max(y1, y[i]);
+        }
+        minx = x0;
+        miny = y0;
+        maxx = x1;
+        maxy = y1;
+        ex = new double[n];
+        ey0 = new double[n];
+        ey1 = new double[n];
+        slope = new double[n];
+        for (i = 0; i < n; i++) {
+            j = (i + 1) % n;
+            if (y[i] == y[j]) {
+                continue;  // horizontal edges never cross a scan line
+            }
+            ex[nedges] = x[i];
+            ey0[nedges] = y[i];
+            ey1[nedges] = y[j];
+            slope[nedges] = (double) (x[j] - x[i]) / (y[j] - y[i]);
+            nedges++;
+        }
+        nbands = Math.max(1, Math.min(nedges, 4096));
+        bandh = Math.max(maxy - miny, 1e-9) / nbands;
+        bandStart = new int[nbands + 1];
+        for (i = 0; i < nedges; i++) {
+            for (b = band(Math.min(ey0[i], ey1[i])); b <= band(Math.max(ey0[i], ey1[i])); b++) {
+                bandStart[b + 1]++;
+            }
+        }
+        for (b = 0; b < nbands; b++) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        bandEdges = new int[bandStart[nbands]];
+        int[] fill = new int[nbands];
+        for (i = 0; i < nedges; i++) {
+            for (b = band(Math.min(ey0[i], ey1[i])); b <= band(Math.max(ey0[i], ey1[i])); b++) {
+                bandEdges[bandStart[b] + fill[b]++] = i;
+            }
+        }
+    }
+
+    private int band(double y) {
+        return Math.max(0, Math.min(nbands - 1, (int) ((y - miny) / bandh)));
+    }
+
+    boolean contains(double px, double py) {
+        boolean inside = false;
+        int i;
+
+        if (px < minx || px > maxx || py < miny || py > maxy) {
+            return false;
+        }
+        int b = band(py);
+        for (i = bandStart[b]; i < bandStart[b + 1]; i++) {
+            int e = bandEdges[i];
+            if ((ey0[e] > py) != (ey1[e] > py) && px < ex[e] + (py - ey0[e]) * slope[e]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+} // end of PolygonTestDTP
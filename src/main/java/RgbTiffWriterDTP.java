@@ -0,0 +1,285 @@
+/*
+    file   : RgbTiffWriterDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    RGB TIFF writer for the analyzed images of the DistToPath ImageJ plugin.
+
+    The image is written a band of rows at a time, so that an image larger
+    than memory can be written, with each strip optionally compressed (LZW or
+    deflate, both of which ImageJ reads). Since compressed strip sizes are
+    only known once written, the image directory is written last and the
+    header is then pointed to it.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import ij.IJ;
+import ij.measure.Calibration;
+
+
+class RgbTiffWriterDTP {
+    static final int NONE = 1, LZW = 5, DEFLATE = 8;   // TIFF compression codes
+    private static final int nEntries = 11;
+    private final FileOutputStream fos;
+    private final DataOutputStream out;
+    private final int width, height, rowsPerStrip, compression;
+    private final Calibration cal;
+    private final long[] stripOffsets, stripCounts;
+    private final byte[] strip;
+    private Deflater deflater;
+    private LzwEncoderDTP lzw;
+    private long pos = 8;
+    private int rowsWritten = 0;
+
+
+    RgbTiffWriterDTP(String path, int width, int height, Calibration cal,
+                     int compression) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.rowsPerStrip = getRowsPerStrip(width);
+        this.cal = cal;
+        this.compression = compression;
+        int nstrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        this.stripOffsets = new long[nstrips];
+        this.stripCounts = new long[nstrips];
+        this.strip = new byte[width * 3 * rowsPerStrip];
+        if (compression == DEFLATE) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        } else if (compression == LZW) {
+            lzw = new LzwEncoderDTP();
+        }
+        fos = new FileOutputStream(path);
+        out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+        out.writeShort(0x4d4d);  // big endian
+        out.writeShort(42);
+        out.writeInt(0);         // image directory offset, set by close()
+    }
+
+    // Rows per strip: about 1 MB per strip, and a power of two no larger
+    // than the tile size, so that bands of tiles hold whole strips.
+    static int getRowsPerStrip(int width) {
+        int rows = 1;
+
+        while (rows < TiledImageDTP.tileSize && (long) rows * 2 * width * 3 <= 1 << 20) {
+            rows *= 2;
+        }
+        return rows;
+    }
+
+    // Writes the next 'nrows' rows from 'pixels' (packed RGB, 'width' wide).
+    // All but the last call must write a multiple of the rows per strip.
+    void writeRows(int[] pixels, int nrows) throws IOException {
+        int row, x;
+
+        if (rowsWritten % rowsPerStrip != 0 || rowsWritten + nrows > height) {
+            throw new IllegalArgumentException("Rows do not fit the image strips.");
+        }
+        for (row = 0; row < nrows; row += rowsPerStrip) {
+            int n = Math.min(rowsPerStrip, nrows - row) * width;
+            int offset = row * width;
+            for (x = 0; x < n; x++) {
+                int c = pixels[offset + x];
+                strip[3 * x] = (byte) (c >> 16);
+                strip[3 * x + 1] = (byte) (c >> 8);
+                strip[3 * x + 2] = (byte) c;
+            }
+            writeStrip(rowsWritten / rowsPerStrip, strip, 3 * n);
+            rowsWritten += Math.min(rowsPerStrip, nrows - row);
+        }
+    }
+
+    private void writeStrip(int index, byte[] data, int len) throws IOException {
+        stripOffsets[index] = pos;
+        if (compression == DEFLATE) {
+            byte[] buf = new byte[8192];
+            deflater.reset();
+            deflater.setInput(data, 0, len);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+                pos += n;
+            }
+        } else if (compression == LZW) {
+            int n = lzw.encode(data, len);
+            out.write(lzw.getOutput(), 0, n);
+            pos += n;
+        } else {
+            out.write(data, 0, len);
+            pos += len;
+        }
+        stripCounts[index] = pos - stripOffsets[index];
+        if (pos > 0xffffffffL) {
+            throw new IOException("Image too large for a TIFF file (4 GB).");
+        }
+    }
+
+    // Writes the image directory and closes the file.
+    void close() throws IOException {
+        int i;
+
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Only " + rowsWritten + " of " + height + " rows written.");
+            }
+            int nstrips = stripOffsets.length;
+            byte[] description = ("ImageJ=" + IJ.getVersion() + "\nunit=" + cal.getUnit() + "\n\0")
+                    .getBytes("ISO-8859-1");
+            // After the strips: bits per sample, resolution, description,
+            // strip offsets and byte counts, then the directory
+            long bpsOffset = pos;
+            long resOffset = bpsOffset + 6;
+            long descOffset = resOffset + 8;
+            long stripOffsetsOffset = descOffset + description.length;
+            long stripCountsOffset = stripOffsetsOffset + 4L * nstrips;
+            long ifdOffset = stripCountsOffset + 4L * nstrips;
+            if (ifdOffset + 2 + nEntries * 12 + 4 > 0xffffffffL) {
+                throw new IOException("Image too large for a TIFF file (4 GB).");
+            }
+            out.writeShort(8);
+            out.writeShort(8);
+            out.writeShort(8);
+            double res = cal.pixelWidth > 0 ? 1.0 / cal.pixelWidth : 1.0;
+            out.writeInt((int) Math.min(Integer.MAX_VALUE, Math.round(res * 1000000)));
+            out.writeInt(1000000);
+            out.write(description);
+            for (i = 0; i < nstrips; i++) {
+                out.writeInt((int) stripOffsets[i]);
+            }
+            for (i = 0; i < nstrips; i++) {
+                out.writeInt((int) stripCounts[i]);
+            }
+            out.writeShort(nEntries);
+            writeEntry(256, 4, 1, width);                                // ImageWidth
+            writeEntry(257, 4, 1, height);                               // ImageLength
+            writeEntry(258, 3, 3, (int) bpsOffset);                      // BitsPerSample
+            writeEntry(259, 3, 1, compression << 16);                    // Compression
+            writeEntry(262, 3, 1, 2 << 16);                              // Photometric: RGB
+            writeEntry(270, 2, description.length, (int) descOffset);    // ImageDescription
+            writeEntry(273, 4, nstrips, nstrips == 1 ? (int) stripOffsets[0] : (int) stripOffsetsOffset);
+            writeEntry(277, 3, 1, 3 << 16);                              // SamplesPerPixel
+            writeEntry(278, 4, 1, rowsPerStrip);                         // RowsPerStrip
+            writeEntry(279, 4, nstrips, nstrips == 1 ? (int) stripCounts[0] : (int) stripCountsOffset);
+            writeEntry(282, 5, 1, (int) resOffset);                      // XResolution
+            out.writeInt(0);
+            out.flush();
+            ByteBuffer b = ByteBuffer.allocate(4);
+            b.putInt(0, (int) ifdOffset);
+            fos.getChannel().write(b, 4);
+        } finally {
+            out.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void writeEntry(int tag, int fieldType, int count, int value) throws IOException {
+        out.writeShort(tag);
+        out.writeShort(fieldType);
+        out.writeInt(count);
+        out.writeInt(value);
+    }
+
+} // end of RgbTiffWriterDTP
+
+
+// TIFF LZW encoder: variable code width from 9 to 12 bits, with the "early
+// change" of code width that TIFF readers expect.
+class LzwEncoderDTP {
+    private static final int CLEAR = 256, EOI = 257, FIRST = 258, MAX = 4094;
+    private static final int hashSize = 8192;
+    private final int[] hashKeys = new int[hashSize];    // (prefix << 8 | byte) + 1, 0 if empty
+    private final short[] hashCodes = new short[hashSize];
+    private byte[] output = new byte[1 << 16];
+    private int outLen, bitBuf, bitCount, nextCode;
+
+    byte[] getOutput() {
+        return output;
+    }
+
+    // Encodes data[0 .. len - 1]; returns the number of bytes in getOutput().
+    int encode(byte[] data, int len) {
+        int i;
+
+        outLen = 0;
+        bitBuf = 0;
+        bitCount = 0;
+        clear();
+        emit(CLEAR);
+        if (len == 0) {
+            emit(EOI);
+            return flush();
+        }
+        int prefix = data[0] & 0xff;
+        for (i = 1; i < len; i++) {
+            int b = data[i] & 0xff;
+            int key = (prefix << 8 | b) + 1;
+            int h = hash(key);
+            while (hashKeys[h] != 0 && hashKeys[h] != key) {
+                h = (h + 1) & (hashSize - 1);
+            }
+            if (hashKeys[h] == key) {
+                prefix = hashCodes[h];
+                continue;
+            }
+            emit(prefix);
+            hashKeys[h] = key;
+            hashCodes[h] = (short) nextCode++;
+            if (nextCode == MAX) {
+                emit(CLEAR);
+                clear();
+            }
+            prefix = b;
+        }
+        emit(prefix);
+        emit(EOI);
+        return flush();
+    }
+
+    private void clear() {
+        Arrays.fill(hashKeys, 0);
+        nextCode = FIRST;
+    }
+
+    private static int hash(int key) {
+        return (key * 0x9E3779B1 >>> 19) & (hashSize - 1);
+    }
+
+    // A reader has one table entry less than the encoder when reading a code,
+    // and widens codes when its table reaches 511, 1023 or 2047 entries.
+    private void emit(int code) {
+        int bits = nextCode >= 2048 ? 12 : nextCode >= 1024 ? 11 : nextCode >= 512 ? 10 : 9;
+
+        bitBuf = (bitBuf << bits) | code;
+        bitCount += bits;
+        while (bitCount >= 8) {
+            put((byte) (bitBuf >>> (bitCount - 8)));
+            bitCount -= 8;
+        }
+    }
+
+    private int flush() {
+        if (bitCount > 0) {
+            put((byte) (bitBuf << (8 - bitCount)));
+            bitCount = 0;
+        }
+        return outLen;
+    }
+
+    private void put(byte b) {
+        if (outLen == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        output[outLen++] = b;
+    }
+
+} // end of LzwEncoderDTP
@@ -0,0 +1,155 @@
+/*
+    file   : SaveQueueDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Background save queue for the DistToPath ImageJ plugin.
+
+    Saving a profile only takes a snapshot on the event thread; the files are
+    written by a single worker thread, in the order the profiles were saved.
+    The queue is bounded, so that a slow disk holds up the user (submit
+    blocks) rather than filling the heap with image snapshots. Files are
+    written to a temporary file next to the destination and renamed into
+    place when complete, so a file is never seen half written.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.IJ;
+
+
+class SaveQueueDTP {
+    static final int capacity = 4;
+    private final BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(capacity);
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Runnable listener;
+    private Thread worker;
+
+
+    // A save job. Timings are kept per stage, and recorded in the metrics as
+    // "Save: <stage>"; a stage ends when stage() is called, and the first
+    // stage starts when the job is made.
+    abstract static class Job {
+        final String name;
+        long pixels;                // image size and component counts for
+        int components, points;     // the metrics
+        private final StringBuilder timings = new StringBuilder();
+        private MetricsDTP.Sample sample = MetricsDTP.registry.start("Save");
+
+        Job(String name) {
+            this.name = name;
+        }
+
+        abstract void run() throws Exception;
+
+        // Releases what the job holds, for a job that will not be run; run()
+        // releases it when done.
+        void dispose() {
+        }
+
+        void stage(String stage) {
+            sample.name = "Save: " + stage;
+            sample.stop(pixels, components, points);
+            if (timings.length() > 0) {
+                timings.append(", ");
+            }
+            timings.append(stage).append(' ').append(sample.nanos / 1000000).append(" ms");
+            sample = MetricsDTP.registry.start("Save");
+        }
+
+        String getTimings() {
+            return timings.toString();
+        }
+    }
+
+
+    // 'listener' is run (on the worker thread) whenever the number of pending
+    // jobs changes.
+    SaveQueueDTP(Runnable listener) {
+        this.listener = listener;
+    }
+
+    // Queues a job, waiting for room in the queue if it is full.
+    void submit(Job job) throws InterruptedException {
+        startWorker();
+        pending.incrementAndGet();
+        fireChanged();
+        try {
+            queue.put(job);
+        } catch (InterruptedException e) {
+            pending.decrementAndGet();
+            fireChanged();
+            throw e;
+        }
+    }
+
+    // Returns the number of jobs queued or being run.
+    int getPending() {
+        return pending.get();
+    }
+
+    private synchronized void startWorker() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    Job job;
+                    try {
+                        job = queue.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    job.stage("queued");
+                    try {
+                        job.run();
+                        IJ.showStatus("Saved " + job.name + " (" + job.getTimings() + ")");
+                    } catch (Exception e) {
+                        MetricsDTP.registry.increment("Save: failed");
+                        IJ.error("DistToPath", "Could not save " + job.name + ":\n" + e.getMessage());
+                    } finally {
+                        pending.decrementAndGet();
+                        fireChanged();
+                    }
+                }
+            }
+        }, "DistToPath-save");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void fireChanged() {
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+
+    // Returns a new temporary file in the directory of 'dest'.
+    static File createTempFile(File dest) throws IOException {
+        File dir = dest.getAbsoluteFile().getParentFile();
+        return File.createTempFile("." + dest.getName() + ".", ".tmp", dir);
+    }
+
+    // Moves 'tmp' to 'dest', replacing dest. The rename is atomic where the
+    // platform allows it; elsewhere (Windows) dest is deleted first.
+    static void rename(File tmp, File dest) throws IOException {
+        if (tmp.renameTo(dest)) {
+            return;
+        }
+        if (!dest.delete() || !tmp.renameTo(dest)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp.getName() + " to " + dest.getName());
+        }
+    }
+
+} // end of SaveQueueDTP
@@ -0,0 +1,449 @@
+/*
+    file   : TiledImageDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Tiled, multi-resolution access to images too large to load, for the
+    DistToPath ImageJ plugin.
+
+    The source is an uncompressed single-image grayscale TIFF, read in square
+    tiles directly from the file. Level 0 is full resolution and each further
+    level halves the size, by averaging 2x2 pixels of the level below. Tiles
+    of all levels share one LRU cache with a memory budget, so only the tiles
+    in use are kept in memory.
+
+    Annotation is done on an overview image (the first level small enough
+    to open as a normal image); the overview keeps a reference to its source
+    as an image property, and its pixels are viewScale full resolution pixels
+    wide. The source is reference counted: the overview holds it, and so do
+    save jobs that burn the analyzed image after the overview may have been
+    closed. Its file is closed when the last holder releases it: the
+    overview when it is closed (flushed; hiding it keeps it open), a job
+    when it is done.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Rectangle;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.*;
+
+
+class TiledImageDTP {
+    static final String PROPERTY = "DistToPath.TiledImage";
+    static final int tileSize = 512;
+    static final int maxOverviewSize = 4096;
+    static final TileCacheDTP cache = new TileCacheDTP(256L << 20);
+    final File file;
+    final int width, height;
+    final int type;             // FileInfo.GRAY8, GRAY16_UNSIGNED or GRAY32_FLOAT
+    final int bytesPerPixel;
+    final Calibration cal;
+    private final long offset;
+    private final ByteOrder order;
+    private final FileChannel channel;
+    private int refs = 1;       // holders; the file is closed at 0
+
+
+    private TiledImageDTP(File file, FileInfo fi) throws IOException {
+        this.file = file;
+        this.width = fi.width;
+        this.height = fi.height;
+        this.type = fi.fileType;
+        this.bytesPerPixel = fi.getBytesPerPixel();
+        this.offset = fi.getOffset();
+        this.order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        this.cal = new Calibration();
+        String unit = fi.unit;
+        if (fi.description != null && fi.description.startsWith("ImageJ")) {
+            // ImageJ keeps the unit in the description, as FileOpener reads it
+            for (String line : fi.description.split("\n")) {
+                if (line.startsWith("unit=")) {
+                    unit = line.substring(5).trim();
+                }
+            }
+        }
+        if (unit != null && fi.pixelWidth > 0) {
+            cal.setUnit(unit);
+            cal.pixelWidth = fi.pixelWidth;
+            cal.pixelHeight = fi.pixelHeight;
+        }
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    // Opens a TIFF file as a tiled source. Only uncompressed, contiguous,
+    // single-image 8 or 16 bit or float images are supported.
+    static TiledImageDTP open(File f) throws IOException {
+        FileInfo[] info = new TiffDecoder(f.getParent() + File.separator, f.getName()).getTiffInfo();
+        int i;
+
+        if (info == null || info.length == 0) {
+            throw new IOException(f.getName() + " is not a TIFF file.");
+        }
+        FileInfo fi = info[0];
+        if (info.length > 1 || fi.nImages > 1) {
+            throw new IOException(f.getName() + ": stacks are not supported.");
+        }
+        if (fi.compression != FileInfo.COMPRESSION_NONE) {
+            throw new IOException(f.getName() + " is compressed; only uncompressed TIFF files " +
+                    "can be opened as tiled images.");
+        }
+        if (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED &&
+                fi.fileType != FileInfo.GRAY32_FLOAT) {
+            throw new IOException(f.getName() + ": only 8 bit, 16 bit and float images are supported.");
+        }
+        if (fi.stripOffsets != null) {
+            for (i = 1; i < fi.stripOffsets.length; i++) {
+                if ((fi.stripOffsets[i] & 0xffffffffL) !=
+                        (fi.stripOffsets[i - 1] & 0xffffffffL) + (fi.stripLengths[i - 1] & 0xffffffffL)) {
+                    throw new IOException(f.getName() + ": image strips are not contiguous.");
+                }
+            }
+        }
+        return new TiledImageDTP(f, fi);
+    }
+
+    // Returns the tiled source of an overview image, or null for other images.
+    static TiledImageDTP get(ImagePlus imp) {
+        Object o = imp == null ? null : imp.getProperty(PROPERTY);
+        return o instanceof TiledImageDTP ? (TiledImageDTP) o : null;
+    }
+
+    // Returns the number of full resolution pixels per pixel of 'imp': 1,
+    // unless imp is the overview of a tiled image.
+    static int getViewScale(ImagePlus imp) {
+        TiledImageDTP src = get(imp);
+        return src == null ? 1 : 1 << src.getOverviewLevel();
+    }
+
+    static void setCacheBudget(long bytes) {
+        cache.setBudget(bytes);
+    }
+
+    // Opens 'f' as a tiled source and returns its overview; the source is
+    // closed if the overview cannot be made.
+    static ImagePlus openOverview(File f) throws IOException {
+        TiledImageDTP src = open(f);
+
+        try {
+            return src.createOverview();
+        } catch (IOException e) {
+            src.closeQuietly();
+            throw e;
+        }
+    }
+
+    // Returns a reference to the source of 'imp' for a holder other than
+    // its overview, to be released when done; null if imp has no source or
+    // it is already closed.
+    static TiledImageDTP retain(ImagePlus imp) {
+        TiledImageDTP src = get(imp);
+
+        if (src == null) {
+            return null;
+        }
+        synchronized (src) {
+            if (src.refs == 0) {
+                return null;
+            }
+            src.refs++;
+        }
+        return src;
+    }
+
+    // Releases a reference, closing the source when it was the last.
+    void release() {
+        synchronized (this) {
+            if (refs == 0 || --refs > 0) {
+                return;
+            }
+        }
+        closeQuietly();
+    }
+
+    // Closes the source whatever holds it, for a source not shared with an
+    // overview.
+    void close() throws IOException {
+        synchronized (this) {
+            refs = 0;
+        }
+        cache.removeAll(this);
+        channel.close();
+    }
+
+    void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // Only read from
+        }
+    }
+
+    int getLevelWidth(int level) {
+        return (int) (((long) width + (1 << level) - 1) >> level);
+    }
+
+    int getLevelHeight(int level) {
+        return (int) (((long) height + (1 << level) - 1) >> level);
+    }
+
+    int getOverviewLevel() {
+        int level = 0;
+
+        while (Math.max(getLevelWidth(level), getLevelHeight(level)) > maxOverviewSize) {
+            level++;
+        }
+        return level;
+    }
+
+    // Returns the overview image, with a calibration for its pixel size. The
+    // overview releases the source when it is flushed, as when its window is
+    // closed; a hidden overview is locked while its window closes, so that
+    // its pixels, and the source, are kept.
+    ImagePlus createOverview() throws IOException {
+        int level = getOverviewLevel();
+        ImageProcessor ip = readRegion(level,
+                new Rectangle(0, 0, getLevelWidth(level), getLevelHeight(level)));
+        ip.resetMinAndMax();
+        ImagePlus imp = new ImagePlus(file.getName(), ip) {
+            private boolean released;
+
+            public synchronized void flush() {
+                super.flush();
+                if (getProcessor() == null && !released) {
+                    released = true;
+                    release();
+                }
+            }
+        };
+        Calibration c = cal.copy();
+        c.pixelWidth *= 1 << level;
+        c.pixelHeight *= 1 << level;
+        imp.setCalibration(c);
+        imp.setProperty(PROPERTY, this);
+        return imp;
+    }
+
+    // Returns tile (tx, ty) of 'level', from the cache if possible. Edge tiles
+    // are smaller than tileSize.
+    ImageProcessor getTile(int level, int tx, int ty) throws IOException {
+        ImageProcessor tile = cache.get(this, level, tx, ty);
+
+        if (tile == null) {
+            tile = level == 0 ? readTile(tx, ty) : downsampleTile(level, tx, ty);
+            cache.put(this, level, tx, ty, tile);
+        }
+        return tile;
+    }
+
+    // Returns the pixels of 'level' in rectangle r, which must lie inside the
+    // level.
+    ImageProcessor readRegion(int level, Rectangle r) throws IOException {
+        ImageProcessor ip = createProcessor(r.width, r.height);
+        int tx, ty;
+
+        for (ty = r.y / tileSize; ty <= (r.y + r.height - 1) / tileSize; ty++) {
+            for (tx = r.x / tileSize; tx <= (r.x + r.width - 1) / tileSize; tx++) {
+                ip.insert(getTile(level, tx, ty), tx * tileSize - r.x, ty * tileSize - r.y);
+            }
+        }
+        return ip;
+    }
+
+    private ImageProcessor createProcessor(int w, int h) {
+        switch (type) {
+            case FileInfo.GRAY8:
+                return new ByteProcessor(w, h);
+            case FileInfo.GRAY16_UNSIGNED:
+                return new ShortProcessor(w, h);
+            default:
+                return new FloatProcessor(w, h);
+        }
+    }
+
+    private ImageProcessor readTile(int tx, int ty) throws IOException {
+        int x0 = tx * tileSize, y0 = ty * tileSize;
+        int w = Math.min(tileSize, width - x0), h = Math.min(tileSize, height - y0);
+        ImageProcessor tile = createProcessor(w, h);
+        ByteBuffer buf = ByteBuffer.allocate(w * bytesPerPixel).order(order);
+        Object pixels = tile.getPixels();
+        int x, y;
+
+        for (y = 0; y < h; y++) {
+            long pos = offset + ((long) (y0 + y) * width + x0) * bytesPerPixel;
+            buf.clear();
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, pos + buf.position()) < 0) {
+                    throw new EOFException(file.getName() + " is truncated.");
+                }
+            }
+            buf.flip();
+            if (pixels instanceof byte[]) {
+                buf.get((byte[]) pixels, y * w, w);
+            } else if (pixels instanceof short[]) {
+                buf.asShortBuffer().get((short[]) pixels, y * w, w);
+            } else {
+                buf.asFloatBuffer().get((float[]) pixels, y * w, w);
+            }
+        }
+        return tile;
+    }
+
+    // Averages the (up to) four tiles of the level below that tile (tx, ty)
+    // of 'level' covers.
+    private ImageProcessor downsampleTile(int level, int tx, int ty) throws IOException {
+        int x0 = tx * tileSize, y0 = ty * tileSize;
+        int w = Math.min(tileSize, getLevelWidth(level) - x0);
+        int h = Math.min(tileSize, getLevelHeight(level) - y0);
+        int pw = getLevelWidth(level - 1), ph = getLevelHeight(level - 1);
+        ImageProcessor tile = createProcessor(w, h);
+        int x, y, qx, qy;
+
+        for (qy = 0; qy < 2; qy++) {
+            for (qx = 0; qx < 2; qx++) {
+                int ptx = 2 * tx + qx, pty = 2 * ty + qy;
+                if (ptx * tileSize >= pw || pty * tileSize >= ph) {
+                    continue;
+                }
+                ImageProcessor src = getTile(level - 1, ptx, pty);
+                int sw = src.getWidth(), sh = src.getHeight();
+                int ox = qx * tileSize / 2, oy = qy * tileSize / 2;
+                for (y = 0; y < (sh + 1) / 2; y++) {
+                    for (x = 0; x < (sw + 1) / 2; x++) {
+                        float sum = 0;
+                        int n = 0;
+                        for (int dy = 0; dy < 2 && 2 * y + dy < sh; dy++) {
+                            for (int dx = 0; dx < 2 && 2 * x + dx < sw; dx++) {
+                                sum += src.getf(2 * x + dx, 2 * y + dy);
+                                n++;
+                            }
+                        }
+                        float v = sum / n;
+                        tile.setf(ox + x, oy + y, type == FileInfo.GRAY32_FLOAT ? v : Math.round(v));
+                    }
+                }
+            }
+        }
+        return tile;
+    }
+
+} // end of TiledImageDTP
+
+
+// LRU cache of image tiles, shared by all tiled sources, that keeps the
+// total size of the tiles within a budget.
+class TileCacheDTP {
+    private long budget;
+    private long bytes = 0;
+    private long hits = 0, misses = 0;
+    private final LinkedHashMap<Key, ImageProcessor> tiles =
+            new LinkedHashMap<Key, ImageProcessor>(64, 0.75f, true);
+
+
+    TileCacheDTP(long budget) {
+        this.budget = budget;
+    }
+
+    synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    synchronized long getBudget() {
+        return budget;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    // Returns the fraction of lookups that found the tile, or 0.
+    synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    synchronized ImageProcessor get(TiledImageDTP src, int level, int tx, int ty) {
+        ImageProcessor tile = tiles.get(new Key(src, level, tx, ty));
+
+        if (tile == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return tile;
+    }
+
+    synchronized void put(TiledImageDTP src, int level, int tx, int ty, ImageProcessor tile) {
+        ImageProcessor old = tiles.put(new Key(src, level, tx, ty), tile);
+
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+        bytes += sizeOf(tile);
+        evict();
+    }
+
+    synchronized void removeAll(TiledImageDTP src) {
+        java.util.Iterator<Map.Entry<Key, ImageProcessor>> it = tiles.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Key, ImageProcessor> e = it.next();
+            if (e.getKey().src == src) {
+                bytes -= sizeOf(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // Drops least recently used tiles until the cache is within budget.
+    private void evict() {
+        java.util.Iterator<ImageProcessor> it = tiles.values().iterator();
+
+        while (bytes > budget && it.hasNext()) {
+            bytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(ImageProcessor ip) {
+        return (long) ip.getPixelCount() * ip.getBitDepth() / 8;
+    }
+
+
+    private static class Key {
+        final TiledImageDTP src;
+        final int level, tx, ty;
+
+        Key(TiledImageDTP src, int level, int tx, int ty) {
+            this.src = src;
+            this.level = level;
+            this.tx = tx;
+            this.ty = ty;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return k.src == src && k.level == level && k.tx == tx && k.ty == ty;
+        }
+
+        public int hashCode() {
+            return ((System.identityHashCode(src) * 31 + level) * 31 + tx) * 31 + ty;
+        }
+    }
+
+} // end of TileCacheDTP
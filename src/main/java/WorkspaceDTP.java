@@ -0,0 +1,368 @@
+/*
+    file   : WorkspaceDTP.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Workspace of the DistToPath ImageJ plugin: the images of a folder, gone
+    through in order, each marked done or pending.
+
+    Decoded images are kept in an LRU cache within a memory budget, and the
+    next few pending images are decoded in the background while the current
+    one is annotated, so that moving on only has to show an image that is
+    already in memory. Images dropped from the cache are flushed, unless
+    shown, which also closes the file of a tiled image. An image that still has unsaved profiles is kept
+    outside the cache, so that its profiles stay with it when the user comes
+    back to it. Files larger than the budget allows are opened as tiled
+    images, if they can be.
+
+    The done flags are kept in a small text file in the folder, so that work
+    can go on in a later session.
+
+    Copyright 2001-2014 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.IJ;
+import ij.ImagePlus;
+
+
+class WorkspaceDTP {
+    static final String fileName = "DistToPath.workspace";
+    static final String version = "# DistToPath workspace 1";
+    static final String[] extensions = {".tif", ".tiff", ".png", ".jpg", ".jpeg", ".gif", ".bmp",
+            ".dm3", ".zip"};
+    static long cacheBudget = 1024L << 20;      // bytes
+    static int prefetchCount = 2;               // images decoded ahead
+    final File dir;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private int current = -1;
+    private long bytes = 0;
+    private boolean closed = false;
+    private final LinkedHashMap<Entry, ImagePlus> cache =
+            new LinkedHashMap<Entry, ImagePlus>(16, 0.75f, true);
+    private final Map<Entry, Future<ImagePlus>> loading = new HashMap<Entry, Future<ImagePlus>>();
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DistToPath-prefetch");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+
+    static class Entry {
+        final File file;
+        boolean done;
+        ImagePlus kept;         // held outside the cache while it has unsaved profiles
+        long bytes;             // size of the decoded image
+
+        Entry(File file) {
+            this.file = file;
+        }
+    }
+
+
+    private WorkspaceDTP(File dir) {
+        this.dir = dir;
+    }
+
+    // Opens the images of 'dir', with the done flags of an earlier session.
+    static WorkspaceDTP open(File dir) throws IOException {
+        WorkspaceDTP w = new WorkspaceDTP(dir);
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                String lower = name.toLowerCase(Locale.US);
+                for (String ext : extensions) {
+                    if (lower.endsWith(ext) && !lower.contains(".a.")) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+
+        if (files == null || files.length == 0) {
+            throw new IOException("No images in " + dir.getPath());
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            w.entries.add(new Entry(f));
+        }
+        w.loadFlags();
+        return w;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    // Index of the current image, -1 before the first is shown.
+    synchronized int getIndex() {
+        return current;
+    }
+
+    synchronized Entry get(int i) {
+        return entries.get(i);
+    }
+
+    synchronized int getNumDone() {
+        int n = 0;
+
+        for (Entry e : entries) {
+            if (e.done) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // Returns the index of the entry whose image is 'imp', or -1.
+    synchronized int indexOf(ImagePlus imp) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            if (e.kept == imp || (imp != null && cache.get(e) == imp)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the first pending image after 'from', or -1 if none.
+    synchronized int nextPending(int from) {
+        for (int i = from + 1; i < entries.size(); i++) {
+            if (!entries.get(i).done) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    synchronized void setDone(int i, boolean done) throws IOException {
+        entries.get(i).done = done;
+        saveFlags();
+    }
+
+    // Keeps image 'imp' of entry i outside the cache (while it has unsaved
+    // profiles), or returns it to the cache.
+    synchronized void keep(int i, ImagePlus imp, boolean keep) {
+        Entry e = entries.get(i);
+
+        if (keep) {
+            e.kept = imp;
+            if (cache.remove(e) != null) {
+                bytes -= e.bytes;
+            }
+        } else if (e.kept != null) {
+            e.kept = null;
+            put(e, imp);
+        }
+    }
+
+
+    // Returns image i, decoded now unless it is kept, cached or being
+    // prefetched, makes it current and starts prefetching the pending
+    // images after it.
+    ImagePlus show(int i) throws Exception {
+        Entry e;
+        Future<ImagePlus> f;
+        ImagePlus imp;
+
+        synchronized (this) {
+            e = entries.get(i);
+            current = i;
+            imp = e.kept != null ? e.kept : cache.get(e);
+            if (imp != null && imp.getProcessor() == null) {
+                // Closed by the user since
+                if (e.kept == null) {
+                    cache.remove(e);
+                    bytes -= e.bytes;
+                }
+                e.kept = null;
+                imp = null;
+            }
+            f = loading.get(e);
+        }
+        if (imp == null && f != null) {
+            try {
+                imp = f.get();
+            } catch (ExecutionException ex) {
+                imp = null;
+            }
+        }
+        if (imp == null) {
+            imp = load(e.file);
+            synchronized (this) {
+                put(e, imp);
+            }
+        }
+        prefetch(i);
+        return imp;
+    }
+
+    // Starts decoding the next prefetchCount pending images after i that
+    // are not in memory.
+    private synchronized void prefetch(int i) {
+        int n = 0;
+
+        for (int k = nextPending(i); k >= 0 && n < prefetchCount; k = nextPending(k)) {
+            final Entry e = entries.get(k);
+            n++;
+            if (e.kept != null || cache.containsKey(e) || loading.containsKey(e)) {
+                continue;
+            }
+            loading.put(e, prefetcher.submit(new Callable<ImagePlus>() {
+                public ImagePlus call() throws Exception {
+                    ImagePlus imp = null;
+                    try {
+                        imp = load(e.file);
+                        return imp;
+                    } finally {
+                        synchronized (WorkspaceDTP.this) {
+                            loading.remove(e);
+                            if (imp != null && closed) {
+                                imp.flush();
+                            } else if (imp != null) {
+                                put(e, imp);
+                            }
+                        }
+                    }
+                }
+            }));
+        }
+    }
+
+    // Decodes an image; files too large for the cache are opened as tiled
+    // images if they can be.
+    static ImagePlus load(File f) throws IOException {
+        if (f.length() > cacheBudget / 2) {
+            try {
+                return TiledImageDTP.openOverview(f);
+            } catch (IOException e) {
+                // Not a plain TIFF; open it whole
+            }
+        }
+        ImagePlus imp = IJ.openImage(f.getPath());
+        if (imp == null) {
+            throw new IOException("Could not open " + f.getName());
+        }
+        return imp;
+    }
+
+    private void put(Entry e, ImagePlus imp) {
+        ImagePlus old = cache.put(e, imp);
+
+        if (old != null) {
+            bytes -= e.bytes;
+            if (old != imp) {
+                release(old);
+            }
+        }
+        e.bytes = sizeOf(imp);
+        bytes += e.bytes;
+        evict();
+    }
+
+    // Drops least recently used images until the cache is within budget;
+    // the current image is kept.
+    private void evict() {
+        Iterator<Map.Entry<Entry, ImagePlus>> it = cache.entrySet().iterator();
+        Entry cur = current >= 0 ? entries.get(current) : null;
+
+        while (bytes > cacheBudget && it.hasNext()) {
+            Map.Entry<Entry, ImagePlus> m = it.next();
+            if (m.getKey() == cur) {
+                continue;
+            }
+            bytes -= m.getKey().bytes;
+            it.remove();
+            release(m.getValue());
+        }
+    }
+
+    // Flushes an image dropped from the cache, unless it is shown.
+    private static void release(ImagePlus imp) {
+        if (imp.getWindow() == null) {
+            imp.flush();
+        }
+    }
+
+    private static long sizeOf(ImagePlus imp) {
+        return (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() *
+                Math.max(1, imp.getBitDepth() / 8);
+    }
+
+    synchronized long getCachedBytes() {
+        return bytes;
+    }
+
+    void close() {
+        prefetcher.shutdownNow();
+        synchronized (this) {
+            closed = true;
+            for (ImagePlus imp : cache.values()) {
+                release(imp);
+            }
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+
+    private void loadFlags() {
+        File f = new File(dir, fileName);
+        Set<String> done = new HashSet<String>();
+        String line;
+
+        if (!f.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            try {
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("done\t")) {
+                        done.add(line.substring(5));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return;
+        }
+        for (Entry e : entries) {
+            e.done = done.contains(e.file.getName());
+        }
+    }
+
+    private void saveFlags() throws IOException {
+        File dest = new File(dir, fileName);
+        File tmp = SaveQueueDTP.createTempFile(dest);
+
+        try {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), "UTF-8")));
+            try {
+                out.println(version);
+                for (Entry e : entries) {
+                    out.println((e.done ? "done" : "pending") + "\t" + e.file.getName());
+                }
+            } finally {
+                out.close();
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + dest.getPath());
+            }
+            SaveQueueDTP.rename(tmp, dest);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+} // end of WorkspaceDTP